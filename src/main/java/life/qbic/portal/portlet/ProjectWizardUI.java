@@ -6,9 +6,13 @@ import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -25,6 +29,7 @@ import com.vaadin.annotations.Theme;
 import com.vaadin.annotations.Widgetset;
 import com.vaadin.server.FontAwesome;
 import com.vaadin.server.VaadinRequest;
+import com.vaadin.ui.Component;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Layout;
 import com.vaadin.ui.TabSheet;
@@ -47,6 +52,7 @@ import life.qbic.projectwizard.registration.OmeroAdapter;
 import life.qbic.projectwizard.registration.OpenbisCreationController;
 import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import life.qbic.projectwizard.registration.OpenbisV3CreationController;
+import life.qbic.projectwizard.registration.VocabularyCache;
 import life.qbic.projectwizard.views.AdminView;
 import life.qbic.projectwizard.views.MetadataUploadView;
 
@@ -56,26 +62,51 @@ public class ProjectWizardUI extends QBiCPortletUI {
 
   public static boolean development = false;
   public static boolean v3RegistrationAPI = true;
+  public static int registrationThreads = 4;
+  public static boolean combinedRegistration = false;
+  public static boolean asyncRegistration = false;
+  public static int vocabularyRefreshMinutes = 60;
+  // designs creating more samples per tier are stopped before their samples are created
+  public static int maxDesignSamples = 50000;
   public static String MSLabelingMethods;
   public static String tmpFolder;
 
+  // vocabularies loaded from openBIS, shared by all portlet instances
+  private static final List<String> VOCABULARIES =
+      Arrays.asList("Q_NCBI_TAXONOMY", "Q_PRIMARY_TISSUES", "Q_MS_DEVICES", "Q_CELL_LINES",
+          "Q_DIGESTION_PROTEASES", "Q_CHROMATOGRAPHY_TYPES", "Q_ANTIBODY", "Q_LABELING_TYPES",
+          "Q_SAMPLE_PREPARATION", "Q_DIGESTION_METHODS", "Q_PROTEIN_PURIFICATION_METHODS",
+          "Q_SAMPLE_TYPES", "Q_MS_FRACTIONATION_PROTOCOLS", "Q_MS_ENRICHMENT_PROTOCOLS",
+          "Q_MS_PROTOCOLS", "Q_MS_LCMS_METHODS", "Q_MS_DISSOCIATION_METHODS", "Q_CULTURE_MEDIA",
+          "Q_CELL_HARVESTING_METHODS", "Q_CELL_LYSIS_TYPES", "Q_LC_DEVICES",
+          "Q_LC_DETECTION_METHODS", "Q_IONIZATION_MODES"));
+
   // hardcoded stuff (main experiment types used in the wizard)
   List<String> expTypes = new ArrayList<String>(
       Arrays.asList("Q_EXPERIMENTAL_DESIGN", "Q_SAMPLE_EXTRACTION", "Q_SAMPLE_PREPARATION"));
 
   private final static Logger logger = LogManager.getLogger(ProjectWizardUI.class);
+  // shared by all portlet instances for the remote calls done while loading. idle threads end
+  // after a minute and daemon threads don't keep the JVM alive after the portlet is undeployed
+  private static final ExecutorService bootstrapPool = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "project-wizard-bootstrap");
+    t.setDaemon(true);
+    return t;
+  });
 
   private ConfigurationManager config;
 
   private IOpenBisClient openbis;
 
   private final TabSheet tabs = new TabSheet();
+  private final Map<Component, Runnable> lazyTabs = new HashMap<>();
   private boolean isAdmin = false;
   private OpenbisV3APIWrapper v3;
 
   @Override
   protected Layout getPortletContent(final VaadinRequest request) {
     tabs.addStyleName(ValoTheme.TABSHEET_FRAMED);
+    tabs.addSelectedTabChangeListener(event -> buildSelectedTab());
     final VerticalLayout layout = new VerticalLayout();
     layout.setMargin(true);
     setContent(layout);
@@ -127,19 +158,26 @@ public class ProjectWizardUI extends QBiCPortletUI {
           "Data Management System could not be reached. Please try again later or contact us."));
     }
     if (success) {
-      // stuff from openbis
+      final String user = userID;
       Vocabularies vocabs = new Vocabularies();
-
-      prepareVocabularies(vocabs);
-
-      isAdmin = openbis.isUserAdmin(userID);
-      // stuff from mysql database
       DBConfig mysqlConfig = new DBConfig(config.getMysqlHost(), config.getMysqlPort(),
           config.getMysqlDB(), config.getMysqlUser(), config.getMysqlPass());
       DBManager dbm = new DBManager(mysqlConfig);
-      Map<String, Integer> peopleMap = dbm.fetchPeople();
-      vocabs.setPeople(peopleMap);
-      vocabs.setSpaces(openbis.getUserSpaces(userID));
+
+      // independent calls to openbis and the mysql database are done at the same time
+      CompletableFuture<Void> vocabsReady =
+          CompletableFuture.runAsync(() -> prepareVocabularies(vocabs), bootstrapPool);
+      CompletableFuture<Boolean> admin =
+          CompletableFuture.supplyAsync(() -> openbis.isUserAdmin(user), bootstrapPool);
+      CompletableFuture<Map<String, Integer>> people =
+          CompletableFuture.supplyAsync(dbm::fetchPeople, bootstrapPool);
+      CompletableFuture<List<String>> spaces =
+          CompletableFuture.supplyAsync(() -> openbis.getUserSpaces(user), bootstrapPool);
+
+      vocabsReady.join();
+      isAdmin = admin.join();
+      vocabs.setPeople(people.join());
+      vocabs.setSpaces(spaces.join());
       vocabs.setExperimentTypes(expTypes);
 
       // initialize the View with sample types, spaces and the dictionaries of tissues and species
@@ -150,46 +188,54 @@ public class ProjectWizardUI extends QBiCPortletUI {
   }
 
   private void prepareVocabularies(Vocabularies vocabs) {
-    vocabs.setTaxMap(openbis.getVocabCodesAndLabelsForVocab("Q_NCBI_TAXONOMY"));
-    vocabs.setTissueMap(openbis.getVocabCodesAndLabelsForVocab("Q_PRIMARY_TISSUES"));
-    vocabs.setMSDeviceMap(openbis.getVocabCodesAndLabelsForVocab("Q_MS_DEVICES"));
-    vocabs.setCellLinesMap(openbis.getVocabCodesAndLabelsForVocab("Q_CELL_LINES"));
-    vocabs.setEnzymes(openbis.getVocabCodesAndLabelsForVocab("Q_DIGESTION_PROTEASES"));
-    vocabs.setChromTypes(openbis.getVocabCodesAndLabelsForVocab("Q_CHROMATOGRAPHY_TYPES"));
-    vocabs.setAntibodies(openbis.getVocabCodesAndLabelsForVocab("Q_ANTIBODY"));
+    VocabularyCache vocabCache =
+        VocabularyCache.getInstance(v3.getSessionManager(), VOCABULARIES,
+            vocabularyRefreshMinutes);
+    vocabs.setTaxMap(vocabCache.getLabelsToCodes("Q_NCBI_TAXONOMY"));
+    vocabs.setTissueMap(vocabCache.getLabelsToCodes("Q_PRIMARY_TISSUES"));
+    vocabs.setMSDeviceMap(vocabCache.getLabelsToCodes("Q_MS_DEVICES"));
+    vocabs.setCellLinesMap(vocabCache.getLabelsToCodes("Q_CELL_LINES"));
+    vocabs.setEnzymes(vocabCache.getLabelsToCodes("Q_DIGESTION_PROTEASES"));
+    vocabs.setChromTypes(vocabCache.getLabelsToCodes("Q_CHROMATOGRAPHY_TYPES"));
+    vocabs.setAntibodies(vocabCache.getLabelsToCodes("Q_ANTIBODY"));
 
     //// Labeling Type : Q_LABELING_METHOD : Q_LABELING_TYPES
-    vocabs.setLabelingTypes(openbis.getVocabCodesForVocab("Q_LABELING_TYPES"));
+    vocabs.setLabelingTypes(vocabCache.getCodes("Q_LABELING_TYPES"));
     //// Sample Preparation
-    vocabs.setSamplePreparations(openbis.getVocabCodesAndLabelsForVocab("Q_SAMPLE_PREPARATION"));
-    vocabs.setDigestionMethods(openbis.getVocabCodesAndLabelsForVocab("Q_DIGESTION_METHODS"));
+    vocabs.setSamplePreparations(vocabCache.getLabelsToCodes("Q_SAMPLE_PREPARATION"));
+    vocabs.setDigestionMethods(vocabCache.getLabelsToCodes("Q_DIGESTION_METHODS"));
 
     vocabs.setProteinPurificationMethods(
-        openbis.getVocabCodesAndLabelsForVocab("Q_PROTEIN_PURIFICATION_METHODS"));
+        vocabCache.getLabelsToCodes("Q_PROTEIN_PURIFICATION_METHODS"));
 
-    vocabs.setMeasureTypes(openbis.getVocabCodesForVocab("Q_SAMPLE_TYPES"));
-    vocabs.setFractionationTypes(openbis.getVocabCodesForVocab("Q_MS_FRACTIONATION_PROTOCOLS"));
-    vocabs.setEnrichmentTypes(openbis.getVocabCodesForVocab("Q_MS_ENRICHMENT_PROTOCOLS"));
-    vocabs.setMsProtocols(openbis.getVocabCodesForVocab("Q_MS_PROTOCOLS"));
-    vocabs.setLcmsMethods(openbis.getVocabCodesForVocab("Q_MS_LCMS_METHODS"));
+    vocabs.setMeasureTypes(vocabCache.getCodes("Q_SAMPLE_TYPES"));
+    vocabs.setFractionationTypes(vocabCache.getCodes("Q_MS_FRACTIONATION_PROTOCOLS"));
+    vocabs.setEnrichmentTypes(vocabCache.getCodes("Q_MS_ENRICHMENT_PROTOCOLS"));
+    vocabs.setMsProtocols(vocabCache.getCodes("Q_MS_PROTOCOLS"));
+    vocabs.setLcmsMethods(vocabCache.getCodes("Q_MS_LCMS_METHODS"));
 
     vocabs.setMsDissociationMethods(
-        openbis.getVocabCodesAndLabelsForVocab("Q_MS_DISSOCIATION_METHODS"));
-    vocabs.setCultureMedia(openbis.getVocabCodesAndLabelsForVocab("Q_CULTURE_MEDIA"));
-    vocabs.setHarvestingMethods(openbis.getVocabCodesForVocab("Q_CELL_HARVESTING_METHODS"));
-    vocabs.setLysisTypes(openbis.getVocabCodesForVocab("Q_CELL_LYSIS_TYPES"));
-    vocabs.setLCDeviceMap(openbis.getVocabCodesAndLabelsForVocab("Q_LC_DEVICES"));
-    vocabs.setLCDetectionMethods(openbis.getVocabCodesForVocab("Q_LC_DETECTION_METHODS"));
-    vocabs.setMSIonModes(openbis.getVocabCodesForVocab("Q_IONIZATION_MODES"));
+        vocabCache.getLabelsToCodes("Q_MS_DISSOCIATION_METHODS"));
+    vocabs.setCultureMedia(vocabCache.getLabelsToCodes("Q_CULTURE_MEDIA"));
+    vocabs.setHarvestingMethods(vocabCache.getCodes("Q_CELL_HARVESTING_METHODS"));
+    vocabs.setLysisTypes(vocabCache.getCodes("Q_CELL_LYSIS_TYPES"));
+    vocabs.setLCDeviceMap(vocabCache.getLabelsToCodes("Q_LC_DEVICES"));
+    vocabs.setLCDetectionMethods(vocabCache.getCodes("Q_LC_DETECTION_METHODS"));
+    vocabs.setMSIonModes(vocabCache.getCodes("Q_IONIZATION_MODES"));
   }
 
   private void initView(final DBManager dbm, final Vocabularies vocabularies, final String user) {
     tabs.removeAllComponents();
+    lazyTabs.clear();
 
-    IOpenbisCreationController creationController = new OpenbisCreationController(openbis, user);
+    IOpenbisCreationController creationController =
+        new OpenbisCreationController(openbis, user, v3);
 
     if (v3RegistrationAPI) {
       OpenbisV3CreationController v3c = new OpenbisV3CreationController(openbis, user, v3);
+      v3c.setRegistrationParallelism(registrationThreads);
+      v3c.setCombinedRegistration(combinedRegistration);
+      v3c.setAsyncExecution(asyncRegistration);
       creationController = v3c;
     }
     AttachmentConfig attachConfig =
@@ -220,15 +266,13 @@ public class ProjectWizardUI extends QBiCPortletUI {
 
       @Override
       public void wizardCompleted(WizardCompletedEvent event) {
-        vocabularies.setPeople(dbm.fetchPeople());
-        vocabularies.setSpaces(openbis.getUserSpaces(user));
+        refreshPeopleAndSpaces(dbm, vocabularies, user);
         initView(dbm, vocabularies, user);
       }
 
       @Override
       public void wizardCancelled(WizardCancelledEvent event) {
-        vocabularies.setPeople(dbm.fetchPeople());
-        vocabularies.setSpaces(openbis.getUserSpaces(user));
+        refreshPeopleAndSpaces(dbm, vocabularies, user);
         initView(dbm, vocabularies, user);
       }
 
@@ -240,24 +284,64 @@ public class ProjectWizardUI extends QBiCPortletUI {
 
     tabs.addTab(wLayout, "Create Project").setIcon(FontAwesome.FLASK);
 
-    ExperimentImportController uc = new ExperimentImportController(creationController, omeroAdapter,
-        vocabularies, openbis, dbm, attachConfig);
-    uc.init(user, config.getISAConfigPath());
-    tabs.addTab(uc.getView(), "Import Project").setIcon(FontAwesome.FILE);
+    // the other tabs are only built once they are opened
+    final IOpenbisCreationController registrator = creationController;
+    VerticalLayout importTab = new VerticalLayout();
+    addLazyTab(importTab, "Import Project", FontAwesome.FILE, new Runnable() {
+
+      @Override
+      public void run() {
+        ExperimentImportController uc = new ExperimentImportController(registrator,
+            omeroAdapter, vocabularies, openbis, dbm, attachConfig);
+        uc.init(user, config.getISAConfigPath());
+        importTab.addComponent(uc.getView());
+      }
+    });
+
+    VerticalLayout metadataTab = new VerticalLayout();
+    addLazyTab(metadataTab, "Update Metadata", FontAwesome.PENCIL, new Runnable() {
 
-    boolean overwriteAllowed = isAdmin || canOverwrite();
-    tabs.addTab(new MetadataUploadView(openbis, vocabularies, overwriteAllowed, user),
-        "Update Metadata").setIcon(FontAwesome.PENCIL);;
+      @Override
+      public void run() {
+        boolean overwriteAllowed = isAdmin || canOverwrite();
+        if (overwriteAllowed)
+          logger.info("User can overwrite existing metadata for their project.");
+        metadataTab
+            .addComponent(new MetadataUploadView(openbis, vocabularies, overwriteAllowed, user));
+      }
+    });
     if (isAdmin) {
       logger.info("User is " + user + " and can see admin panel.");
       VerticalLayout adminTab = new VerticalLayout();
       adminTab.setMargin(true);
-      adminTab.addComponent(
-          new AdminView(openbis, vocabularies, mainController, creationController, user));
-      tabs.addTab(adminTab, "Admin Functions").setIcon(FontAwesome.WRENCH);
+      addLazyTab(adminTab, "Admin Functions", FontAwesome.WRENCH, new Runnable() {
+
+        @Override
+        public void run() {
+          adminTab.addComponent(
+              new AdminView(openbis, v3, vocabularies, mainController, registrator, user));
+        }
+      });
     }
-    if (overwriteAllowed)
-      logger.info("User can overwrite existing metadata for their project.");
+  }
+
+  private void addLazyTab(VerticalLayout tab, String caption, FontAwesome icon, Runnable builder) {
+    lazyTabs.put(tab, builder);
+    tabs.addTab(tab, caption).setIcon(icon);
+  }
+
+  private void buildSelectedTab() {
+    Runnable builder = lazyTabs.remove(tabs.getSelectedTab());
+    if (builder != null) {
+      builder.run();
+    }
+  }
+
+  private void refreshPeopleAndSpaces(DBManager dbm, Vocabularies vocabularies, String user) {
+    CompletableFuture<Map<String, Integer>> people =
+        CompletableFuture.supplyAsync(dbm::fetchPeople, bootstrapPool);
+    vocabularies.setSpaces(openbis.getUserSpaces(user));
+    vocabularies.setPeople(people.join());
   }
 
   private boolean canOverwrite() {
@@ -53,10 +53,12 @@ import life.qbic.expdesign.ParserHelpers;
 import life.qbic.expdesign.model.ExperimentalDesignPropertyWrapper;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import life.qbic.projectwizard.control.IRegistrationController;
+import life.qbic.projectwizard.control.ProjectIdentifierState;
 import life.qbic.projectwizard.control.SampleCounter;
 import life.qbic.projectwizard.model.MCCPatient;
 import life.qbic.projectwizard.processes.RegisteredSamplesReadyRunnable;
 import life.qbic.projectwizard.registration.IOpenbisCreationController;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import life.qbic.projectwizard.views.IRegistrationView;
 import life.qbic.portal.Styles;
 import life.qbic.portal.Styles.NotificationType;
@@ -75,6 +77,7 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
   private Logger logger = LogManager.getLogger(MCCView.class);
 
   private IOpenBisClient openbis;
+  private OpenbisV3APIWrapper v3;
   private IOpenbisCreationController creator;
   // private XMLParser p = new XMLParser();
   final private StudyXMLParser xmlParser = new StudyXMLParser();
@@ -105,14 +108,15 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
 
   private String project;
 
-  public MCCView(IOpenBisClient openbis, IOpenbisCreationController creationController,
-      String user) {
+  public MCCView(IOpenBisClient openbis, OpenbisV3APIWrapper v3,
+      IOpenbisCreationController creationController, String user) {
     techTypes = new ArrayList<TechnologyType>();
     techTypes.add(new TechnologyType("Transcriptomics"));
     techTypes.add(new TechnologyType("Proteomics"));
     techTypes.add(new TechnologyType("Metabolomics"));
 
     this.openbis = openbis;
+    this.v3 = v3;
     this.creator = creationController;
 
     this.cases = new HashSet<String>();
@@ -248,9 +252,8 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
       @Override
       public void valueChange(ValueChangeEvent event) {
         if (!newProject.isEmpty())
-          counter = new SampleCounter(newProject.getValue());
-        for (Sample s : openbis.getSamplesOfProject("/" + mccSpace + "/" + newProject.getValue()))
-          counter.increment(s);
+          counter = new SampleCounter(
+              ProjectIdentifierState.get(v3, mccSpace, newProject.getValue()));
         addSamples.setEnabled(allValid());
       }
     });
@@ -521,6 +524,8 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
   // TODO handle errors
   public void registrationDone(boolean sqlDown, String errors) {
     logger.info("Registration complete, reloading patient table.");
+    if (!newProject.isEmpty())
+      ProjectIdentifierState.invalidate(mccSpace, newProject.getValue());
     Styles.notification("Registration complete!", "Registration of patient complete.",
         NotificationType.SUCCESS);
     projectBoxChanged();
@@ -54,10 +54,12 @@ import life.qbic.expdesign.ParserHelpers;
 import life.qbic.expdesign.model.ExperimentalDesignPropertyWrapper;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import life.qbic.projectwizard.control.IRegistrationController;
+import life.qbic.projectwizard.control.ProjectIdentifierState;
 import life.qbic.projectwizard.control.SampleCounter;
 import life.qbic.projectwizard.model.NewMCCPatient;
 import life.qbic.projectwizard.processes.RegisteredSamplesReadyRunnable;
 import life.qbic.projectwizard.registration.IOpenbisCreationController;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import life.qbic.projectwizard.views.IRegistrationView;
 import life.qbic.portal.Styles;
 import life.qbic.portal.Styles.NotificationType;
@@ -77,6 +79,7 @@ public class MCCViewNew extends VerticalLayout
   private Logger logger = LogManager.getLogger(MCCViewNew.class);
 
   private IOpenBisClient openbis;
+  private OpenbisV3APIWrapper v3;
   private IOpenbisCreationController creator;
   // private XMLParser p = new XMLParser();
   private List<OpenbisExperiment> infoExperiments;
@@ -113,8 +116,8 @@ public class MCCViewNew extends VerticalLayout
 
   private ExperimentalDesignPropertyWrapper newDesign;
 
-  public MCCViewNew(IOpenBisClient openbis, IOpenbisCreationController creationController,
-      String user) {
+  public MCCViewNew(IOpenBisClient openbis, OpenbisV3APIWrapper v3,
+      IOpenbisCreationController creationController, String user) {
     techTypes = new ArrayList<TechnologyType>();
     techTypes.add(new TechnologyType("Transcriptomics"));
     techTypes.add(new TechnologyType("Proteomics"));
@@ -122,6 +125,7 @@ public class MCCViewNew extends VerticalLayout
     techTypes.add(new TechnologyType("Imaging"));
 
     this.openbis = openbis;
+    this.v3 = v3;
     this.creator = creationController;
 
     // this.casesWithWeeks = new HashSet<String>();
@@ -251,9 +255,8 @@ public class MCCViewNew extends VerticalLayout
       @Override
       public void valueChange(ValueChangeEvent event) {
         if (!newProject.isEmpty())
-          counter = new SampleCounter(newProject.getValue());
-        for (Sample s : openbis.getSamplesOfProject("/" + mccSpace + "/" + newProject.getValue()))
-          counter.increment(s);
+          counter = new SampleCounter(
+              ProjectIdentifierState.get(v3, mccSpace, newProject.getValue()));
         addSamples.setEnabled(allValid());
       }
     });
@@ -739,6 +742,8 @@ public class MCCViewNew extends VerticalLayout
   // TODO handle errors
   public void registrationDone(boolean sqlDown, String errors) {
     logger.info("Registration complete, reloading patient table.");
+    if (!newProject.isEmpty())
+      ProjectIdentifierState.invalidate(mccSpace, newProject.getValue());
     Styles.notification("Registration complete!", "Registration of patient complete.",
         NotificationType.SUCCESS);
     patient.setValue("");
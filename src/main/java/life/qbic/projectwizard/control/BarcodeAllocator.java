@@ -0,0 +1,92 @@
+package life.qbic.projectwizard.control;
+
+/**
+ * Hands out the barcodes of a project in the order of
+ * {@link life.qbic.datamodel.identifiers.SampleCodeFunctions#incrementSampleCode(String)}. The
+ * counter and class letter of a barcode are kept as a single number (see {@link BarcodeSequence}),
+ * so reserving a range of barcodes is one addition. Code and checksum of a barcode are computed
+ * when it is read, without stepping through the barcodes in between.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class BarcodeAllocator {
+
+  private final String project;
+  // position of the next barcode, counting on after the last barcode of the project
+  private int next;
+
+  /**
+   * Contiguous range of allocated barcodes
+   */
+  public static class Range {
+    private final String project;
+    private final int start;
+    private final int size;
+
+    private Range(String project, int start, int size) {
+      this.project = project;
+      this.start = start;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @param i position in the range, starting at 0
+     * @return barcode including checksum
+     */
+    public String get(int i) {
+      if (i < 0 || i >= size) {
+        throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+      }
+      return BarcodeSequence.codeAt(project, start + i);
+    }
+  }
+
+  /**
+   * @param firstBarcode the first barcode that is handed out
+   */
+  public BarcodeAllocator(String firstBarcode) {
+    this.project = firstBarcode.substring(0, 5);
+    this.next = BarcodeSequence.indexOf(firstBarcode);
+  }
+
+  /**
+   * @param lastBarcode the last barcode in use
+   * @return allocator starting with the barcode after the last one
+   */
+  public static BarcodeAllocator after(String lastBarcode) {
+    return new BarcodeAllocator(BarcodeSequence.codeAfter(lastBarcode, 1));
+  }
+
+  /**
+   * @return the next barcode
+   */
+  public String next() {
+    return BarcodeSequence.codeAt(project, next++);
+  }
+
+  /**
+   * Reserves the next n barcodes
+   */
+  public Range allocate(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("Can not allocate " + n + " barcodes.");
+    }
+    Range res = new Range(project, next, n);
+    next += n;
+    return res;
+  }
+
+  /**
+   * @return true if barcodes were handed out after the last barcode of the project, i.e. the
+   *         sequence started again at 001A. These barcodes may already exist
+   */
+  public boolean isExhausted() {
+    return next - 1 >= BarcodeSequence.SIZE;
+  }
+
+}
@@ -0,0 +1,64 @@
+package life.qbic.projectwizard.control;
+
+import life.qbic.datamodel.identifiers.SampleCodeFunctions;
+
+/**
+ * Position of QBiC barcodes in the sequence created by repeatedly calling
+ * {@link SampleCodeFunctions#incrementSampleCode(String)}. A barcode consists of the project code,
+ * a three digit counter from 001 to 999, a class letter from A to Z and a checksum. After 999 the
+ * counter restarts at 001 with the next letter, after Z999 the sequence starts again at 001A.
+ * Knowing the position, the n-th barcode after another one can be computed directly, so ranges of
+ * barcodes can be reserved and filled independently.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class BarcodeSequence {
+
+  private static final int COUNTER_MAX = 999;
+  private static final int LETTERS = 26;
+  /**
+   * Number of distinct barcodes of a project
+   */
+  public static final int SIZE = COUNTER_MAX * LETTERS;
+
+  /**
+   * @param barcode QBiC barcode
+   * @return position of the barcode in its project's sequence, starting with 0 for 001A
+   */
+  public static int indexOf(String barcode) {
+    int counter = Integer.parseInt(barcode.substring(5, 8));
+    int letter = barcode.charAt(8) - 'A';
+    if (counter < 1 || letter < 0 || letter >= LETTERS) {
+      throw new IllegalArgumentException(barcode + " is not a QBiC barcode.");
+    }
+    return letter * COUNTER_MAX + counter - 1;
+  }
+
+  /**
+   * @param project project code
+   * @param index position in the sequence, wraps around after the last barcode
+   * @return barcode at this position, including the checksum
+   */
+  public static String codeAt(String project, int index) {
+    int i = Math.floorMod(index, SIZE);
+    String base = project + SampleCodeFunctions.createCountString(i % COUNTER_MAX + 1, 3)
+        + (char) ('A' + i / COUNTER_MAX);
+    return base + SampleCodeFunctions.checksum(base);
+  }
+
+  /**
+   * Pure version of n calls of incrementSampleCode
+   *
+   * @param barcode QBiC barcode
+   * @param n number of steps, 0 returns the barcode itself
+   * @return the n-th barcode after the given one
+   */
+  public static String codeAfter(String barcode, int n) {
+    if (n == 0) {
+      return barcode;
+    }
+    return codeAt(barcode.substring(0, 5), indexOf(barcode) + n);
+  }
+
+}
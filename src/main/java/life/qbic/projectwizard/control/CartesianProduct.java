@@ -0,0 +1,89 @@
+package life.qbic.projectwizard.control;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily enumerates all combinations of factor levels as index tuples. The tuple {2, 0} stands for
+ * the third level of the first factor combined with the first level of the second factor. The last
+ * factor changes fastest.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class CartesianProduct implements Iterable<int[]> {
+
+  private final int[] sizes;
+
+  /**
+   * @param sizes number of levels of each factor
+   */
+  public CartesianProduct(int[] sizes) {
+    this.sizes = sizes.clone();
+  }
+
+  /**
+   * @param levels levels of each factor
+   */
+  public static CartesianProduct of(List<? extends List<?>> levels) {
+    int[] sizes = new int[levels.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = levels.get(i).size();
+    }
+    return new CartesianProduct(sizes);
+  }
+
+  /**
+   * Computes the number of combinations without enumerating them
+   *
+   * @return number of combinations, Long.MAX_VALUE if it does not fit into a long
+   */
+  public long size() {
+    long res = 1;
+    for (int size : sizes) {
+      if (size == 0) {
+        return 0;
+      }
+      try {
+        res = Math.multiplyExact(res, size);
+      } catch (ArithmeticException e) {
+        res = Long.MAX_VALUE;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return iterator over all combinations. Each call of next returns a new array
+   */
+  @Override
+  public Iterator<int[]> iterator() {
+    return new Iterator<int[]>() {
+      private final int[] current = new int[sizes.length];
+      private boolean hasNext = size() > 0;
+
+      @Override
+      public boolean hasNext() {
+        return hasNext;
+      }
+
+      @Override
+      public int[] next() {
+        if (!hasNext) {
+          throw new NoSuchElementException();
+        }
+        int[] res = current.clone();
+        // advance like an odometer, starting with the last factor
+        int i = sizes.length - 1;
+        while (i >= 0 && ++current[i] == sizes[i]) {
+          current[i] = 0;
+          i--;
+        }
+        hasNext = i >= 0;
+        return res;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,127 @@
+package life.qbic.projectwizard.control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import life.qbic.projectwizard.model.TestSampleInformation;
+
+/**
+ * Computes how many samples the wizard would create for a design without creating them, so designs
+ * that would not fit into memory can be stopped before they are expanded.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class DesignSizeEstimator {
+
+  /**
+   * Thrown if a design would create more samples than allowed
+   */
+  public static class DesignTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = -2373446587462370187L;
+
+    private final long samples;
+    private final long limit;
+
+    public DesignTooLargeException(String tier, long samples, long limit) {
+      super("The design would create " + samples + " " + tier + ", the limit is " + limit + ".");
+      this.samples = samples;
+      this.limit = limit;
+    }
+
+    public long getSamples() {
+      return samples;
+    }
+
+    public long getLimit() {
+      return limit;
+    }
+  }
+
+  /**
+   * Counts the samples created for condition permutations. Like in the aggregator, the amount set
+   * for a permutation id is also used for the following ids without amount.
+   *
+   * @param permutations number of permutations, ids start at 1
+   * @param amounts amounts by permutation id (Integer), as returned by the preview tables
+   * @param defaultAmount amount used before the first permutation with an amount
+   * @return number of samples
+   */
+  public static long countReplicates(long permutations, Map<Object, Integer> amounts,
+      int defaultAmount) {
+    List<Integer> ids = new ArrayList<Integer>();
+    for (Object id : amounts.keySet()) {
+      if (id instanceof Integer && (Integer) id >= 1 && (Integer) id <= permutations) {
+        ids.add((Integer) id);
+      }
+    }
+    Collections.sort(ids);
+    long res = 0;
+    long previous = 0;
+    int amount = defaultAmount;
+    for (int id : ids) {
+      // permutations between two ids with amounts use the last amount
+      res = add(res, multiply(id - 1 - previous, amount));
+      amount = amounts.get(id);
+      res = add(res, amount);
+      previous = id;
+    }
+    return add(res, multiply(permutations - previous, amount));
+  }
+
+  /**
+   * @param extracts number of extracts (including pools)
+   * @param techs analytes prepared from each extract
+   * @return number of test samples
+   */
+  public static long countTests(long extracts, List<TestSampleInformation> techs) {
+    long res = 0;
+    for (TestSampleInformation tech : techs) {
+      res = add(res, multiply(extracts, tech.getReplicates()));
+    }
+    return res;
+  }
+
+  /**
+   * @param conditionGroups number of distinct conditions (secondary names) of the extracts
+   * @param techs analytes prepared from each extract
+   * @return maximum number of test sample pools, one per condition and pooled technology
+   */
+  public static long countMaxPools(long conditionGroups, List<TestSampleInformation> techs) {
+    long res = 0;
+    for (TestSampleInformation tech : techs) {
+      if (tech.isPooled()) {
+        res = add(res, conditionGroups);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @throws DesignTooLargeException if the number of samples exceeds the limit
+   */
+  public static void check(String tier, long samples, long limit) {
+    if (samples > limit) {
+      throw new DesignTooLargeException(tier, samples, limit);
+    }
+  }
+
+  private static long add(long a, long b) {
+    try {
+      return Math.addExact(a, b);
+    } catch (ArithmeticException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static long multiply(long a, long b) {
+    try {
+      return Math.multiplyExact(a, b);
+    } catch (ArithmeticException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+}
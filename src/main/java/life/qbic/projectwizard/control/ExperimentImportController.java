@@ -17,6 +17,7 @@ package life.qbic.projectwizard.control;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,7 +33,6 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.isatools.isacreator.model.Study;
-import com.google.re2j.Pattern;
 import com.vaadin.data.Property.ValueChangeEvent;
 import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.data.validator.CompositeValidator;
@@ -82,6 +82,7 @@ import life.qbic.isatab.ISAToQBIC;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import life.qbic.projectwizard.io.AttachmentMover;
 import life.qbic.projectwizard.io.DBManager;
+import life.qbic.projectwizard.io.ProjectDBRegistration;
 import life.qbic.projectwizard.model.MHCTyping;
 import life.qbic.projectwizard.model.Vocabularies;
 import life.qbic.projectwizard.processes.RegisteredSamplesReadyRunnable;
@@ -128,6 +129,7 @@ public class ExperimentImportController implements IRegistrationController {
   private int firstFreeEntityID;
   private String firstFreeBarcode;
   private String nextBarcode;
+  private BarcodeAllocator barcodes;
   private Map<String, String> uniqueCodeToBarcode;
   private Map<String, String> uniqueNumericIDToBarcode;
   private Map<String, TSVSampleBean> importCodeToSampleBean;
@@ -452,9 +454,8 @@ public class ExperimentImportController implements IRegistrationController {
             case MHC_Ligands_Finished:
             case Proteomics_MassSpectrometry:
             case Metabolomics_LCMS:
-              String tsvContent = addBarcodesToTSV(tsv, view.getSamples(), getImportType());
-              tsvContent =
-                  replaceChangedMetadata(tsvContent, questionaire.getMetadataReplacements());
+              String tsvContent = addBarcodesToTSV(tsv, view.getSamples(), getImportType(),
+                  questionaire.getMetadataReplacements());
               currentTSVContent = tsvContent;
               logger.warn("tsv with replacements and barcodes:");
               logger.warn(currentTSVContent);
@@ -478,6 +479,8 @@ public class ExperimentImportController implements IRegistrationController {
           if(getImportType().equals(ExperimentalDesignType.Proteomics_MassSpectrometry)) {
             correctFreeTextLCMSMethods(complexExperiments, new HashSet<>(vocabs.getLcmsMethods()));
           }
+          // snapshots taken during the registration would miss some of its samples
+          ProjectIdentifierState.invalidate(space, project);
           openbisCreator.registerProjectWithExperimentsAndSamplesBatchWise(samples, description,
               complexExperiments, view.getProgressBar(), view.getProgressLabel(),
               new RegisteredSamplesReadyRunnable(view, control), entitiesToUpdate,
@@ -564,24 +567,6 @@ public class ExperimentImportController implements IRegistrationController {
     }
   }
 
-  private String replaceChangedMetadata(String tsvContent,
-      Map<String, String> metadataReplacements) {
-    logger.warn("Debug: String replacement");
-    String res = tsvContent;
-    for (String userInput : metadataReplacements.keySet()) {
-      String selectedVocabValue = metadataReplacements.get(userInput);
-
-      // special characters have to be escaped for replaceAll to work
-      String cleanedInput = Pattern.quote(userInput);
-
-      logger.warn("raw: " + userInput + ", cleaned input: " + cleanedInput);
-
-      String in = "(\\t|\\+)" + cleanedInput + "(\\t|\\+)";
-      res = res.replaceAll(in, "$1" + selectedVocabValue + "$2");
-    }
-    return res;
-  }
-
   // TODO this should be done while the samples are read
   protected OpenbisExperiment prepareXMLPropertyForNewExperiment(List<List<ISampleBean>> samples) {
     ExperimentType designExpType = ExperimentType.Q_PROJECT_DETAILS;
@@ -833,6 +818,16 @@ public class ExperimentImportController implements IRegistrationController {
 
   protected String addBarcodesToTSV(List<String> tsv, List<List<ISampleBean>> levels,
       ExperimentalDesignType designType) {
+    return addBarcodesToTSV(tsv, levels, designType, new HashMap<String, String>());
+  }
+
+  /**
+   * Adds the barcodes of the new samples to the front of each line of the TSV and replaces user
+   * input with the selected vocabulary values in the same pass
+   */
+  protected String addBarcodesToTSV(List<String> tsv, List<List<ISampleBean>> levels,
+      ExperimentalDesignType designType, Map<String, String> metadataReplacements) {
+    TSVCellReplacer replacer = new TSVCellReplacer(metadataReplacements);
     Set<String> barcodeColumnNames = new HashSet<>(Arrays.asList("QBiC Code", "QBiC Barcode"));
     logger.info("adding barcodes to tsv");
     String fileNameHeader = null;
@@ -859,13 +854,13 @@ public class ExperimentImportController implements IRegistrationController {
         if (anltIDPos < 0) {
           anltIDPos = Arrays.asList(splt).indexOf("Analyte ID");
           extIDPos = Arrays.asList(splt).indexOf("Extract ID");
-          builder.append("QBiC Code\t" + line + "\n");
+          builder.append(replacer.replace("QBiC Code\t" + line)).append("\n");
         } else {
           String extID = splt[anltIDPos];
           if (extID == null || extID.isEmpty())
             extID = splt[extIDPos];
           String code = uniqueCodeToBarcode.get(extID);
-          builder.append(code + "\t" + line + "\n");
+          builder.append(replacer.replace(code + "\t" + line)).append("\n");
         }
       }
     } else {
@@ -888,17 +883,17 @@ public class ExperimentImportController implements IRegistrationController {
           colExists = barcodeColumnNames.contains(splt[0]);
           filePos = Arrays.asList(splt).indexOf(fileNameHeader);
           if (colExists) {
-            builder.append(line + "\n");
+            builder.append(replacer.replace(line)).append("\n");
           } else {
-            builder.append("QBiC Code\t" + line + "\n");
+            builder.append(replacer.replace("QBiC Code\t" + line)).append("\n");
           }
         } else {
           String file = splt[filePos];
           String code = fileNameToBarcode.get(file);
           if (colExists) {
-            builder.append(code + line + "\n");
+            builder.append(replacer.replace(code + line)).append("\n");
           } else {
-            builder.append(code + "\t" + line + "\n");
+            builder.append(replacer.replace(code + "\t" + line)).append("\n");
           }
         }
       }
@@ -1016,6 +1011,7 @@ public class ExperimentImportController implements IRegistrationController {
 
           int entityNum = firstFreeEntityID;
           nextBarcode = null;
+          barcodes = null;
 
           List<List<ISampleBean>> processed = prep.getProcessed();
           Set<String> msCodes = new HashSet<String>();
@@ -1499,32 +1495,28 @@ public class ExperimentImportController implements IRegistrationController {
   private void countExistingOpenbisEntities(String space, String project)
       throws TooManySamplesException {
     uniqueIDToExistingSample = new HashMap<String, Sample>();
-    firstFreeExperimentID = 1;
-    firstFreeEntityID = 1;
-    firstFreeBarcode = "";
     currentProjectSamples = new ArrayList<Sample>();
     currentDesignExperiment = null;
     if (openbis.projectExists(space, project)) {
       currentProjectSamples.addAll(openbis.getSamplesOfProject("/" + space + "/" + project));
     }
     List<Experiment> experiments = openbis.getExperimentsOfProjectByCode(project);
+    List<String> experimentCodes = new ArrayList<String>();
     for (Experiment e : experiments) {
       String code = e.getCode();
       if (code.equals(project + "_INFO")) {
         currentDesignExperiment = e;
       }
-      String[] split = code.split(project + "E");
-      if (code.startsWith(project + "E") && split.length > 1) {
-        int num = Integer.MAX_VALUE;
-        try {
-          num = Integer.parseInt(split[1]);
-        } catch (Exception e2) {
-        }
-        if (firstFreeExperimentID <= num) {
-          firstFreeExperimentID = num + 1;
-        }
-      }
+      experimentCodes.add(code);
     }
+    // the samples are fetched anyway, so the shared snapshot is refreshed from them
+    ProjectIdentifierState state =
+        ProjectIdentifierState.scan(project, currentProjectSamples, experimentCodes);
+    ProjectIdentifierState.put(space, state);
+    firstFreeExperimentID = state.getFirstFreeExperimentID();
+    firstFreeEntityID = state.getFirstFreeEntityID();
+    firstFreeBarcode = state.getFirstFreeBarcode();
+
     for (Sample s : currentProjectSamples) {
       String code = s.getCode();
       // collect existing samples by their external id, can create import type-specific unique ids
@@ -1540,20 +1532,10 @@ public class ExperimentImportController implements IRegistrationController {
               + " lead to inconsistencies if new samples are to be attached to this external id.");
         }
         uniqueIDToExistingSample.put(uniqueSampleID, s);
-        if (SampleCodeFunctions.isQbicBarcode(code)) {
-          if (SampleCodeFunctions.compareSampleCodes(firstFreeBarcode, code) <= 0) {
-            firstFreeBarcode = SampleCodeFunctions.incrementSampleCode(code);
-            String firstBarcode = project + "001A" + SampleCodeFunctions.checksum(project + "001A");
-            if (firstBarcode.equals(firstFreeBarcode))
-              throw new TooManySamplesException();
-          }
-        } else if (s.getType().getCode().equals(("Q_BIOLOGICAL_ENTITY"))) {
-          int num = Integer.parseInt(s.getCode().split("-")[1]);
-          if (num >= firstFreeEntityID)
-            firstFreeEntityID = num + 1;
-        }
       }
     }
+    if (state.isBarcodeSpaceExhausted())
+      throw new TooManySamplesException();
   }
 
   private String createUniqueIDFromSampleMetadata(ISampleBean b) {
@@ -1590,18 +1572,16 @@ public class ExperimentImportController implements IRegistrationController {
 
 
   private void incrementOrCreateBarcode(String project) throws TooManySamplesException {
-    String firstBarcode = project + "001A" + SampleCodeFunctions.checksum(project + "001A");
-    if (nextBarcode == null) {
+    if (barcodes == null) {
       if (firstFreeBarcode.isEmpty()) {
         String base = project + SampleCodeFunctions.createCountString(1, 3) + "A";
         firstFreeBarcode = base + SampleCodeFunctions.checksum(base);
       }
-      nextBarcode = firstFreeBarcode;
-    } else {
-      nextBarcode = SampleCodeFunctions.incrementSampleCode(nextBarcode);
-      if (nextBarcode.equals(firstBarcode))
-        throw new TooManySamplesException();
+      barcodes = new BarcodeAllocator(firstFreeBarcode);
     }
+    nextBarcode = barcodes.next();
+    if (barcodes.isExhausted())
+      throw new TooManySamplesException();
   }
 
   protected ExperimentalDesignType getImportType() {
@@ -1610,20 +1590,24 @@ public class ExperimentImportController implements IRegistrationController {
 
   @Override
   public void performPostRegistrationTasks(boolean success) {
+    String space = null;
+    String project = null;
+    String projectName = null;
+
+    if (getImportType().equals(ExperimentalDesignType.QBIC)) {
+      projectName = projectInfo.getSecondaryName();
+      ISampleBean s = view.getSamples().get(0).get(0);
+      project = s.getProject();
+      space = s.getSpace();
+    } else {
+      space = questionaire.getSpaceCode();
+      project = questionaire.getProjectCode();
+      projectName = questionaire.getProjectSecondaryName();
+    }
+    // also after failed registrations, some sample batches may have been registered
+    ProjectIdentifierState.invalidate(space, project);
     if (success) {
-      String space = null;
-      String project = null;
-      String projectName = null;
-
-      if (getImportType().equals(ExperimentalDesignType.QBIC)) {
-        projectName = projectInfo.getSecondaryName();
-        ISampleBean s = view.getSamples().get(0).get(0);
-        project = s.getProject();
-        space = s.getSpace();
-      } else {
-        space = questionaire.getSpaceCode();
-        project = questionaire.getProjectCode();
-        projectName = questionaire.getProjectSecondaryName();
+      if (!getImportType().equals(ExperimentalDesignType.QBIC)) {
         String id = "/" + space + "/" + project;
         addPeopleAndProjectToDB(id, projectName);
         if (getImportType().equals(ExperimentalDesignType.ISA)) {
@@ -1669,7 +1653,6 @@ public class ExperimentImportController implements IRegistrationController {
   }
 
   private void addPeopleAndProjectToDB(String projectIdentifier, String projectName) {
-    int projectID = dbm.addProjectToDB(projectIdentifier, projectName);
     int investigatorID = -1;
     int contactID = -1;
     int managerID = -1;
@@ -1680,12 +1663,16 @@ public class ExperimentImportController implements IRegistrationController {
       managerID = people.get(questionaire.getPerson(PersonType.Manager));
     if (!questionaire.getPerson(PersonType.Contact).equals(""))
       contactID = people.get(questionaire.getPerson(PersonType.Contact));
-    if (investigatorID != -1)
-      dbm.addPersonToProject(projectID, investigatorID, "PI");
-    if (contactID != -1)
-      dbm.addPersonToProject(projectID, contactID, "Contact");
-    if (managerID != -1)
-      dbm.addPersonToProject(projectID, managerID, "Manager");
+    ProjectDBRegistration registration =
+        new ProjectDBRegistration(projectIdentifier, projectName);
+    registration.addPersonToProject(investigatorID, "PI");
+    registration.addPersonToProject(contactID, "Contact");
+    registration.addPersonToProject(managerID, "Manager");
+    try {
+      dbm.registerProject(registration);
+    } catch (SQLException e) {
+      logger.error("Project could not be added to the database: " + e.getMessage());
+    }
   }
 
   private void registerHLATypings(String space) {
@@ -0,0 +1,213 @@
+package life.qbic.projectwizard.control;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
+import life.qbic.datamodel.identifiers.SampleCodeFunctions;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
+
+/**
+ * Snapshot of the identifiers used in a project: the highest experiment number, entity number and
+ * barcode. Computed in one pass over the samples and experiments of the project and shared by all
+ * users, so the wizard, the import and the sample counter do not scan the same project again.
+ * Snapshots are invalidated before and after registering into a project, whether it succeeded or
+ * not, and expire after a short time.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class ProjectIdentifierState {
+
+  private static final Logger logger = LogManager.getLogger(ProjectIdentifierState.class);
+
+  // changes made outside of this application are picked up after this time
+  private static final long MAX_AGE_MILLIS = 30 * 1000;
+  // barcodes of previously registered samples in QMSHS that are not counted
+  private static final Set<String> IGNORED_BARCODES =
+      Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("QMSHS001X3", "QMSHS002XB",
+          "QMSHS003XJ", "QMSHS004XR", "QMSHS005X1", "QMSHS006X9")));
+
+  private static final Map<String, ProjectIdentifierState> snapshots =
+      new HashMap<String, ProjectIdentifierState>();
+
+  private final String project;
+  private final int lastExperimentNumber;
+  private final int lastEntityNumber;
+  private final String lastBarcode;
+  private final long created;
+
+  private ProjectIdentifierState(String project, int lastExperimentNumber, int lastEntityNumber,
+      String lastBarcode) {
+    this.project = project;
+    this.lastExperimentNumber = lastExperimentNumber;
+    this.lastEntityNumber = lastEntityNumber;
+    this.lastBarcode = lastBarcode;
+    this.created = System.currentTimeMillis();
+  }
+
+  private static String key(String space, String project) {
+    return "/" + space + "/" + project;
+  }
+
+  /**
+   * Returns the cached snapshot of a project or scans the project if there is none
+   *
+   * @param v3 API used to scan the project, only codes and types of the samples are fetched
+   * @param space space of the project
+   * @param project project code
+   * @return the snapshot, empty if the project does not exist yet
+   */
+  public static ProjectIdentifierState get(OpenbisV3APIWrapper v3, String space,
+      String project) {
+    String key = key(space, project);
+    synchronized (snapshots) {
+      ProjectIdentifierState cached = snapshots.get(key);
+      if (cached != null
+          && System.currentTimeMillis() - cached.created < MAX_AGE_MILLIS) {
+        return cached;
+      }
+    }
+    // openBIS is not called while holding the lock. unknown projects have no samples
+    List<Sample> samples = v3.getSampleCodesAndTypesOfProject(space, project);
+    List<String> experimentCodes = v3.getExperimentCodesOfProject(space, project);
+    ProjectIdentifierState state = scan(project, samples, experimentCodes);
+    put(space, state);
+    return state;
+  }
+
+  /**
+   * Caches a snapshot computed by a caller that fetched the project anyway
+   */
+  public static void put(String space, ProjectIdentifierState state) {
+    synchronized (snapshots) {
+      snapshots.put(key(space, state.project), state);
+    }
+  }
+
+  /**
+   * Removes the snapshot of a project, e.g. after registering new samples
+   */
+  public static void invalidate(String space, String project) {
+    synchronized (snapshots) {
+      snapshots.remove(key(space, project));
+    }
+  }
+
+  /**
+   * Computes the snapshot of a project in one pass over its samples and experiments
+   *
+   * @param project project code
+   * @param samples samples of the project, only code and type are used
+   * @param experimentCodes codes of the experiments of the project
+   */
+  public static ProjectIdentifierState scan(String project, Collection<Sample> samples,
+      Collection<String> experimentCodes) {
+    int lastExperiment = 0;
+    for (String code : experimentCodes) {
+      lastExperiment = Math.max(lastExperiment, experimentNumber(project, code));
+    }
+    int lastEntity = 0;
+    String lastBarcode = "";
+    for (Sample s : samples) {
+      String code = s.getCode();
+      if (SampleCodeFunctions.isQbicBarcode(code)) {
+        String counted = countedBarcode(code);
+        if (counted != null && (lastBarcode.isEmpty()
+            || SampleCodeFunctions.compareSampleCodes(counted, lastBarcode) > 0)) {
+          lastBarcode = counted;
+        }
+      } else if (s.getType().getCode().equals("Q_BIOLOGICAL_ENTITY")) {
+        lastEntity = Math.max(lastEntity, entityNumber(code));
+      }
+    }
+    logger.debug("Scanned " + samples.size() + " samples and " + experimentCodes.size()
+        + " experiments of " + project);
+    return new ProjectIdentifierState(project, lastExperiment, lastEntity, lastBarcode);
+  }
+
+  /**
+   * @return number of an experiment code like QABCDE12, 0 if the code does not follow this pattern
+   */
+  static int experimentNumber(String project, String code) {
+    String prefix = project + "E";
+    if (code != null && code.startsWith(prefix) && code.length() > prefix.length()) {
+      try {
+        return Integer.parseInt(code.substring(prefix.length()));
+      } catch (NumberFormatException e) {
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return number of an entity code like QABCDENTITY-12, 0 if the code does not follow this
+   *         pattern
+   */
+  static int entityNumber(String code) {
+    String[] split = code.split("-");
+    if (split.length > 1) {
+      try {
+        return Integer.parseInt(split[1]);
+      } catch (NumberFormatException e) {
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the barcode that counts as used for an existing barcode, null if it is not counted
+   */
+  static String countedBarcode(String code) {
+    if (IGNORED_BARCODES.contains(code)) {
+      return null;
+    }
+    // the ignored barcodes were registered after this one
+    if (code.startsWith("QMSHS999W")) {
+      return "QMSHS006X9";
+    }
+    return code;
+  }
+
+  public String getProject() {
+    return project;
+  }
+
+  public int getFirstFreeExperimentID() {
+    return lastExperimentNumber + 1;
+  }
+
+  public int getFirstFreeEntityID() {
+    return lastEntityNumber + 1;
+  }
+
+  /**
+   * @return the highest barcode in use, empty if there is none
+   */
+  public String getLastBarcode() {
+    return lastBarcode;
+  }
+
+  /**
+   * @return the barcode after the highest one in use, empty if there is none
+   */
+  public String getFirstFreeBarcode() {
+    return lastBarcode.isEmpty() ? "" : BarcodeSequence.codeAfter(lastBarcode, 1);
+  }
+
+  /**
+   * @return true if the highest barcode in use is the last barcode of the project
+   */
+  public boolean isBarcodeSpaceExhausted() {
+    return !lastBarcode.isEmpty()
+        && BarcodeSequence.indexOf(lastBarcode) == BarcodeSequence.SIZE - 1;
+  }
+
+}
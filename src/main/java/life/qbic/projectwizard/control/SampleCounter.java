@@ -15,8 +15,6 @@
  *******************************************************************************/
 package life.qbic.projectwizard.control;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -31,6 +29,8 @@ public class SampleCounter {
   // private int barcodeID;
   private int expID;
   private String barcode;
+  // created on the first new barcode, reset when a higher existing barcode is found
+  private BarcodeAllocator barcodes;
   private String project;
   Logger logger = LogManager.getLogger(SampleCounter.class);
   private Set<String> knownAtypical = new HashSet<>();
@@ -41,6 +41,16 @@ public class SampleCounter {
       increment(s);
   }
 
+  /**
+   * Starts counting after the identifiers of a project snapshot
+   */
+  public SampleCounter(ProjectIdentifierState state) {
+    this(state.getProject());
+    expID = state.getFirstFreeExperimentID() - 1;
+    entityID = state.getFirstFreeEntityID() - 1;
+    barcode = state.getLastBarcode();
+  }
+
   public SampleCounter(String project) {
     entityID = 0;
     expID = 0;
@@ -72,19 +82,14 @@ public class SampleCounter {
       }
     }
     if (SampleCodeFunctions.isQbicBarcode(code)) {
-      // previously registered samples...
-      List<String> specialCases = new ArrayList<String>(Arrays.asList("QMSHS001X3", "QMSHS002XB",
-          "QMSHS003XJ", "QMSHS004XR", "QMSHS005X1", "QMSHS006X9"));
-      if (code.startsWith("QMSHS999W"))
-        barcode = "QMSHS006X9";
-      if (!specialCases.contains(code)) {
-        if (SampleCodeFunctions.compareSampleCodes(code, barcode) > 0)
-          barcode = code;
+      String counted = ProjectIdentifierState.countedBarcode(code);
+      if (counted != null
+          && (barcode.isEmpty() || SampleCodeFunctions.compareSampleCodes(counted, barcode) > 0)) {
+        barcode = counted;
+        barcodes = null;
       }
     } else if (sample.getType().getCode().equals(("Q_BIOLOGICAL_ENTITY"))) {
-      int num = Integer.parseInt(sample.getCode().split("-")[1]);
-      if (num >= entityID)
-        entityID = num;
+      entityID = Math.max(entityID, ProjectIdentifierState.entityNumber(code));
     }
   }
 
@@ -99,11 +104,14 @@ public class SampleCounter {
   }
 
   public String getNewBarcode() {
-    if (barcode == null || barcode.isEmpty()) {
-      barcode = project + "001A";
-      barcode = barcode + SampleCodeFunctions.checksum(barcode);
+    if (barcodes == null) {
+      if (barcode == null || barcode.isEmpty()) {
+        barcode = project + "001A";
+        barcode = barcode + SampleCodeFunctions.checksum(barcode);
+      }
+      barcodes = BarcodeAllocator.after(barcode);
     }
-    barcode = SampleCodeFunctions.incrementSampleCode(barcode);
+    barcode = barcodes.next();
     return barcode;
   }
 
@@ -0,0 +1,323 @@
+package life.qbic.projectwizard.control;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import life.qbic.datamodel.samples.AOpenbisSample;
+import life.qbic.datamodel.samples.OpenbisBiologicalEntity;
+import life.qbic.datamodel.samples.OpenbisBiologicalSample;
+import life.qbic.datamodel.samples.OpenbisTestSample;
+import life.qbic.datamodel.samples.SampleType;
+import life.qbic.xml.properties.Property;
+
+/**
+ * Column store for the samples of one tier of a wizard design (entities, extracts or test
+ * samples). Instead of one sample object per row, every column is an array. Repeated strings like
+ * experiments, secondary names and parent codes are stored once and referenced by index, each
+ * distinct combination of conditions is stored once as a factor tuple. Barcodes of the project,
+ * also those of parents, are stored as their position in the barcode sequence. Sample objects are
+ * created whenever a row is read and are not kept, samples changed by later steps (e.g.
+ * fractionation) are set back into their rows.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class SampleTable {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final SampleType type;
+
+  private final List<String> strings = new ArrayList<String>();
+  private final Map<String, Integer> stringIDs = new HashMap<String, Integer>();
+  private final List<List<Property>> tuples = new ArrayList<List<Property>>();
+  private final Map<List<Property>, Integer> tupleIDs = new HashMap<List<Property>, Integer>();
+
+  // project of the barcodes stored as position, set by the first barcode
+  private String barcodeProject;
+
+  private int size = 0;
+  // null if the code is a barcode stored as position
+  private String[] codes = new String[INITIAL_CAPACITY];
+  // position of the barcode, -1 if the code is stored as string
+  private int[] barcodes = new int[INITIAL_CAPACITY];
+  private int[] spaces = new int[INITIAL_CAPACITY];
+  private int[] experiments = new int[INITIAL_CAPACITY];
+  private int[] secondaryNames = new int[INITIAL_CAPACITY];
+  private int[] notes = new int[INITIAL_CAPACITY];
+  private int[] factors = new int[INITIAL_CAPACITY];
+  // organism (entities), primary tissue (extracts) or analyte type (test samples)
+  private int[] types = new int[INITIAL_CAPACITY];
+  // organism details (entities) or detailed tissue (extracts)
+  private int[] details = new int[INITIAL_CAPACITY];
+  // parent barcodes are stored like codes, see internCode
+  private int[] parents = new int[INITIAL_CAPACITY];
+  private int[] externalIDs = new int[INITIAL_CAPACITY];
+
+  // samples that were changed after they were read, by row
+  private final Map<Integer, AOpenbisSample> changed = new HashMap<Integer, AOpenbisSample>();
+  private final List<AOpenbisSample> view = new SampleList();
+
+  /**
+   * @param type Q_BIOLOGICAL_ENTITY, Q_BIOLOGICAL_SAMPLE or Q_TEST_SAMPLE
+   */
+  public SampleTable(SampleType type) {
+    switch (type) {
+      case Q_BIOLOGICAL_ENTITY:
+      case Q_BIOLOGICAL_SAMPLE:
+      case Q_TEST_SAMPLE:
+        this.type = type;
+        break;
+      default:
+        throw new IllegalArgumentException("Sample type " + type + " is not supported.");
+    }
+  }
+
+  /**
+   * List view of the rows. Every get creates a new sample unless one was set for the row. Changes
+   * to a sample are only kept if it is set back into its row.
+   */
+  private class SampleList extends AbstractList<AOpenbisSample> implements RandomAccess {
+
+    @Override
+    public AOpenbisSample get(int row) {
+      AOpenbisSample sample = changed.get(row);
+      return sample != null ? sample : SampleTable.this.get(row);
+    }
+
+    @Override
+    public AOpenbisSample set(int row, AOpenbisSample sample) {
+      AOpenbisSample old = get(row);
+      changed.put(row, sample);
+      return old;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Adds a sample
+   *
+   * @param code sample code
+   * @param space space of the project
+   * @param experiment code of the experiment
+   * @param secondaryName secondary name of the sample
+   * @param additionalInfo notes about the sample
+   * @param factors conditions of the sample, copied into a shared tuple
+   * @param type organism id, primary tissue or analyte type, depending on the sample type
+   * @param detail detailed organism or tissue, empty for test samples
+   * @param parent code of the parent sample, empty for entities
+   * @param externalID external database id
+   * @return the number of the new row
+   */
+  public int add(String code, String space, String experiment, String secondaryName,
+      String additionalInfo, List<Property> factors, String type, String detail, String parent,
+      String externalID) {
+    if (size == codes.length) {
+      grow();
+    }
+    int barcode = barcodeIndex(code);
+    codes[size] = barcode < 0 ? code : null;
+    barcodes[size] = barcode;
+    spaces[size] = intern(space);
+    experiments[size] = intern(experiment);
+    secondaryNames[size] = intern(secondaryName);
+    notes[size] = intern(additionalInfo);
+    this.factors[size] = internFactors(factors);
+    types[size] = intern(type);
+    details[size] = intern(detail);
+    parents[size] = internCode(parent);
+    externalIDs[size] = intern(externalID);
+    return size++;
+  }
+
+  private void grow() {
+    int capacity = codes.length + (codes.length >> 1);
+    codes = Arrays.copyOf(codes, capacity);
+    barcodes = Arrays.copyOf(barcodes, capacity);
+    spaces = Arrays.copyOf(spaces, capacity);
+    experiments = Arrays.copyOf(experiments, capacity);
+    secondaryNames = Arrays.copyOf(secondaryNames, capacity);
+    notes = Arrays.copyOf(notes, capacity);
+    factors = Arrays.copyOf(factors, capacity);
+    types = Arrays.copyOf(types, capacity);
+    details = Arrays.copyOf(details, capacity);
+    parents = Arrays.copyOf(parents, capacity);
+    externalIDs = Arrays.copyOf(externalIDs, capacity);
+  }
+
+  /**
+   * @return position of a barcode of the table's project that is rebuilt unchanged from its
+   *         position, -1 for other codes
+   */
+  private int barcodeIndex(String code) {
+    if (code == null || code.length() != 10) {
+      return -1;
+    }
+    for (int i = 5; i < 8; i++) {
+      if (!Character.isDigit(code.charAt(i))) {
+        return -1;
+      }
+    }
+    char letter = code.charAt(8);
+    if (letter < 'A' || letter > 'Z' || code.startsWith("000", 5)) {
+      return -1;
+    }
+    if (barcodeProject == null) {
+      barcodeProject = code.substring(0, 5);
+    } else if (!code.startsWith(barcodeProject)) {
+      return -1;
+    }
+    int index = BarcodeSequence.indexOf(code);
+    return code.equals(BarcodeSequence.codeAt(barcodeProject, index)) ? index : -1;
+  }
+
+  /**
+   * @return -2 - position for barcodes of the table's project, like {@link #intern(String)} for
+   *         other codes
+   */
+  private int internCode(String code) {
+    int barcode = barcodeIndex(code);
+    return barcode < 0 ? intern(code) : -2 - barcode;
+  }
+
+  private String codeOrString(int id) {
+    return id < -1 ? BarcodeSequence.codeAt(barcodeProject, -2 - id) : string(id);
+  }
+
+  private int intern(String value) {
+    if (value == null) {
+      return -1;
+    }
+    Integer id = stringIDs.get(value);
+    if (id == null) {
+      id = strings.size();
+      strings.add(value);
+      stringIDs.put(value, id);
+    }
+    return id;
+  }
+
+  private int internFactors(List<Property> factors) {
+    Integer id = tupleIDs.get(factors);
+    if (id == null) {
+      List<Property> tuple = Collections.unmodifiableList(new ArrayList<Property>(factors));
+      id = tuples.size();
+      tuples.add(tuple);
+      tupleIDs.put(tuple, id);
+    }
+    return id;
+  }
+
+  private String string(int id) {
+    return id < 0 ? null : strings.get(id);
+  }
+
+  public SampleType getType() {
+    return type;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return number of distinct condition combinations in the table
+   */
+  public int getFactorTupleCount() {
+    return tuples.size();
+  }
+
+  public String getCode(int row) {
+    checkRow(row);
+    return code(row);
+  }
+
+  private String code(int row) {
+    return barcodes[row] < 0 ? codes[row] : BarcodeSequence.codeAt(barcodeProject, barcodes[row]);
+  }
+
+  public String getExperiment(int row) {
+    checkRow(row);
+    return string(experiments[row]);
+  }
+
+  public String getSecondaryName(int row) {
+    checkRow(row);
+    return string(secondaryNames[row]);
+  }
+
+  public String getParent(int row) {
+    checkRow(row);
+    return codeOrString(parents[row]);
+  }
+
+  public String getExternalID(int row) {
+    checkRow(row);
+    return string(externalIDs[row]);
+  }
+
+  /**
+   * @return unmodifiable list of conditions, shared by all rows with the same conditions
+   */
+  public List<Property> getFactors(int row) {
+    checkRow(row);
+    return tuples.get(factors[row]);
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= size) {
+      throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+    }
+  }
+
+  /**
+   * Creates the sample object of a row from the columns, ignoring samples set into the list view.
+   * Every call returns a new object that shares the unmodifiable list of conditions of its row.
+   */
+  public AOpenbisSample get(int row) {
+    checkRow(row);
+    String code = code(row);
+    String space = string(spaces[row]);
+    String exp = string(experiments[row]);
+    String secondaryName = string(secondaryNames[row]);
+    String info = string(notes[row]);
+    List<Property> factorList = tuples.get(factors[row]);
+    String extID = string(externalIDs[row]);
+    switch (type) {
+      case Q_BIOLOGICAL_ENTITY:
+        return new OpenbisBiologicalEntity(code, space, exp, secondaryName, info, factorList,
+            string(types[row]), string(details[row]), extID);
+      case Q_BIOLOGICAL_SAMPLE:
+        return new OpenbisBiologicalSample(code, space, exp, secondaryName, info, factorList,
+            string(types[row]), string(details[row]), codeOrString(parents[row]), extID);
+      default:
+        return new OpenbisTestSample(code, space, exp, secondaryName, info, factorList,
+            string(types[row]), codeOrString(parents[row]), extID);
+    }
+  }
+
+  /**
+   * @return list view of all rows. Samples are created when they are read, changed samples have
+   *         to be set back into their rows to be kept
+   */
+  public List<AOpenbisSample> asList() {
+    return view;
+  }
+
+  /**
+   * @return list view of the rows from (inclusive) to (exclusive)
+   */
+  public List<AOpenbisSample> rows(int from, int to) {
+    return view.subList(from, to);
+  }
+
+}
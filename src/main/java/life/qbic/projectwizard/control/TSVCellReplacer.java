@@ -0,0 +1,91 @@
+package life.qbic.projectwizard.control;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Replaces user input in the lines of a TSV with the selected vocabulary values. A value is
+ * replaced if it is enclosed by tabs or '+' on both sides, i.e. it is a cell that is not the first
+ * or last of its line or one part of a '+'-joined cell. Each line is scanned once and every cell
+ * is looked up in a map of all replacements.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class TSVCellReplacer {
+
+  private static final Logger logger = LogManager.getLogger(TSVCellReplacer.class);
+
+  private final Map<String, String> replacements = new HashMap<String, String>();
+  // highest number of '+'-separated parts of an input
+  private int maxParts = 1;
+
+  /**
+   * @param replacements user input mapped to the vocabulary value that replaces it
+   */
+  public TSVCellReplacer(Map<String, String> replacements) {
+    for (Map.Entry<String, String> entry : replacements.entrySet()) {
+      String input = entry.getKey();
+      // inputs spanning more than one cell can not be found
+      if (input.contains("\t") || input.contains("\n")) {
+        logger.warn("ignoring replacement of multi-cell input " + input);
+        continue;
+      }
+      this.replacements.put(input, entry.getValue());
+      maxParts = Math.max(maxParts, input.split("\\+", -1).length);
+    }
+  }
+
+  public boolean isEmpty() {
+    return replacements.isEmpty();
+  }
+
+  /**
+   * @param line line of the TSV, without line break
+   * @return the line with all replacements applied
+   */
+  public String replace(String line) {
+    if (replacements.isEmpty()) {
+      return line;
+    }
+    int[] delimiters = new int[line.length()];
+    int n = 0;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '\t' || c == '+') {
+        delimiters[n++] = i;
+      }
+    }
+    if (n < 2) {
+      return line;
+    }
+    StringBuilder res = new StringBuilder(line.length());
+    res.append(line, 0, delimiters[0] + 1);
+    int d = 0;
+    while (d < n - 1) {
+      int start = delimiters[d] + 1;
+      String value = null;
+      int parts = Math.min(maxParts, n - 1 - d);
+      // the longest input starting at this cell is replaced
+      for (; parts > 0; parts--) {
+        value = replacements.get(line.substring(start, delimiters[d + parts]));
+        if (value != null) {
+          break;
+        }
+      }
+      if (value != null) {
+        res.append(value);
+        d += parts;
+      } else {
+        res.append(line, start, delimiters[d + 1]);
+        d++;
+      }
+      res.append(line.charAt(delimiters[d]));
+    }
+    res.append(line, delimiters[n - 1] + 1, line.length());
+    return res.toString();
+  }
+
+}
@@ -16,6 +16,8 @@
 package life.qbic.projectwizard.control;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +46,7 @@ import com.vaadin.server.StreamResource;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.OptionGroup;
 import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
 import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.themes.ValoTheme;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.experiment.Experiment;
@@ -66,6 +69,7 @@ import life.qbic.expdesign.model.ExperimentalDesignPropertyWrapper;
 import life.qbic.expdesign.model.SampleSummaryBean;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import life.qbic.projectwizard.io.DBManager;
+import life.qbic.projectwizard.io.ProjectDBRegistration;
 import life.qbic.projectwizard.model.MSExperimentModel;
 import life.qbic.projectwizard.model.TestSampleInformation;
 import life.qbic.projectwizard.model.Vocabularies;
@@ -78,6 +82,7 @@ import life.qbic.projectwizard.steps.*;
 import life.qbic.projectwizard.uicomponents.ProjectInformationComponent;
 import life.qbic.portal.Styles;
 import life.qbic.portal.Styles.NotificationType;
+import life.qbic.portal.portlet.ProjectWizardUI;
 import life.qbic.xml.notes.Note;
 import life.qbic.xml.properties.Property;
 import life.qbic.xml.study.TechnologyType;
@@ -296,12 +301,14 @@ public class WizardController implements IRegistrationController {
         vocabularies.getCellLinesMap(), vocabularies.getPeople().keySet(), vocabularies.getLabelingMethods());
     final ConditionInstanceStep extrCondInstStep = new ConditionInstanceStep(
         vocabularies.getTissueMap().keySet(), "Tissues", "Extr. Variables");
+    entCondInstStep.setSampleLimit(ProjectWizardUI.maxDesignSamples);
+    extrCondInstStep.setSampleLimit(ProjectWizardUI.maxDesignSamples);
     final TailoringStep tailoringStep2 = new TailoringStep("Sample Extracts", true);
     final AnalyteStep techStep = new AnalyteStep(w, vocabularies);
     final SummaryRegisterStep regStep = new SummaryRegisterStep();
     final PoolingStep poolStep1 = new PoolingStep(Steps.Extract_Pooling);
     final PoolingStep poolStep2 = new PoolingStep(Steps.Test_Sample_Pooling);
-    final FinishStep finishStep = new FinishStep(w, attachmentConfig, openbisCreator);
+    final FinishStep finishStep = new FinishStep(w, attachmentConfig, openbisCreator, v3API);
 
     final MSAnalyteStep protFracStep = new MSAnalyteStep(vocabularies, "PROTEINS");
     final MSAnalyteStep pepFracStep = new MSAnalyteStep(vocabularies, "PEPTIDES");
@@ -322,8 +329,8 @@ public class WizardController implements IRegistrationController {
     steps.put(Steps.Registration, regStep);
     steps.put(Steps.Finish, finishStep);
 
-    this.dataAggregator = new WizardDataAggregator(steps, openbis, vocabularies.getTaxMap(),
-        vocabularies.getTissueMap(), vocabularies.getPeople());
+    this.dataAggregator = new WizardDataAggregator(steps, openbis, v3API,
+        vocabularies.getTaxMap(), vocabularies.getTissueMap(), vocabularies.getPeople());
     // w.addStep(finishStep);
     w.addStep(contextStep);
 
@@ -484,6 +491,8 @@ public class WizardController implements IRegistrationController {
             informativeExperiments.add(
                 new OpenbisExperiment(project + "_INFO", ExperimentType.Q_PROJECT_DETAILS, props));
           }
+          // snapshots taken during the registration would miss some of its samples
+          ProjectIdentifierState.invalidate(space, project);
           openbisCreator.registerProjectWithExperimentsAndSamplesBatchWise(samples, desc,
               informativeExperiments, regStep.getProgressBar(), regStep.getProgressLabel(),
               new RegisteredSamplesReadyRunnable(regStep, control), entitiesToUpdate, pilot);
@@ -539,9 +548,15 @@ public class WizardController implements IRegistrationController {
         String space = contextStep.getSpaceCode();
         if (space != null) {
           List<String> projects = new ArrayList<String>();
+          List<String> codes = new ArrayList<String>();
+          List<String> identifiers = new ArrayList<String>();
           for (Project p : openbis.getProjectsOfSpace(space)) {
-            String code = p.getCode();
-            String name = dbm.getProjectName("/" + space + "/" + code);
+            codes.add(p.getCode());
+            identifiers.add("/" + space + "/" + p.getCode());
+          }
+          Map<String, String> names = dbm.getProjectNames(identifiers);
+          for (String code : codes) {
+            String name = names.get("/" + space + "/" + code);
             if (name != null && name.length() > 0) {
               if (name.length() >= 80)
                 name = name.substring(0, 80) + "...";
@@ -847,11 +862,21 @@ public class WizardController implements IRegistrationController {
       @Override
       public void stepSetChanged(WizardStepSetChangedEvent event) {}
 
+      @Override
+      public void activeStepChanged(WizardStepActivationEvent event) {
+        try {
+          onStepActivated(event);
+        } catch (DesignSizeEstimator.DesignTooLargeException e) {
+          logger.warn(e.getMessage() + " User was " + user);
+          Styles.notification("Too many samples", e.getMessage(), NotificationType.ERROR);
+          w.back();
+        }
+      }
+
       /**
        * Reactions to step changes in the wizard
        */
-      @Override
-      public void activeStepChanged(WizardStepActivationEvent event) {
+      private void onStepActivated(WizardStepActivationEvent event) {
         // Context Step
         if (event.getActivatedStep().equals(contextStep)) {
           // contextStep.allowNext(false);
@@ -995,12 +1020,9 @@ public class WizardController implements IRegistrationController {
               dataAggregator.prepareTestSamples();
             if (techStep.hasMHCLigands())
               dataAggregator.prepareMHCExtractSamplesAndExperiments();
-            List<AOpenbisSample> all = new ArrayList<AOpenbisSample>();
             if (!afterMS) {
-              all.addAll(dataAggregator.getTests());
-              // all.addAll(
+              // pools are kept separately, the generated tests are not copied
               dataAggregator.createPoolingSamples(poolStep2.getPools());
-              dataAggregator.setTests(all);
             }
             if (containsFractionation()) {
               dataAggregator
@@ -1078,39 +1100,43 @@ public class WizardController implements IRegistrationController {
           ProjectContextStep context = (ProjectContextStep) steps.get(Steps.Project_Context);
           String space = context.getSpaceCode();
           String proj = context.getProjectCode();
-          int timeout = 20;
-          while (!openbis.projectExists(space, proj) && timeout > 0) {
-            logger.error(
-                "Project " + proj + " (" + space + ") " + "could not be found after registration.");
-            logger.debug("timeout in " + timeout);
-            timeout--;
-            try {
-              Thread.sleep(500);
-            } catch (InterruptedException e) {
-              e.printStackTrace();
-            }
-          }
-          Project project = openbis.getProjectByIdentifier("/" + space + "/" + proj);
-          Map<String, List<Sample>> samplesByExperiment = new HashMap<String, List<Sample>>();
-          for (Sample sample : openbis
-              .getSamplesOfProject(project.getIdentifier().getIdentifier())) {
-            if (sample.getExperiment() != null) {
-              String expCode = sample.getExperiment().getCode();
-              if (samplesByExperiment.containsKey(expCode)) {
-                List<Sample> samples = samplesByExperiment.get(expCode);
-                samples.add(sample);
-                samplesByExperiment.put(expCode, samples);
-              } else {
-                List<Sample> samples = new ArrayList<Sample>(Arrays.asList(sample));
-                samplesByExperiment.put(expCode, samples);
-              }
-            } else {
-              logger.warn("No experiment found for sample " + sample.getCode());
-            }
-          }
-          String designExpID = ExperimentCodeFunctions.getInfoExperimentID(space, proj);
-          finishStep.setExperimentInfos(space, proj, designExpID, project.getDescription(),
-              samplesByExperiment, openbis);
+          // the finish step is filled once the project can be found
+          final UI ui = UI.getCurrent();
+          ui.setPollInterval(500);
+          v3API.getStateWatcher().awaitProject(space, proj, 10000)
+              .thenAccept(found -> ui.access(new Runnable() {
+
+                @Override
+                public void run() {
+                  ui.setPollInterval(-1);
+                  if (!found) {
+                    logger.error("Project " + proj + " (" + space + ") "
+                        + "could not be found after registration.");
+                  }
+                  Project project = openbis.getProjectByIdentifier("/" + space + "/" + proj);
+                  Map<String, List<Sample>> samplesByExperiment =
+                      new HashMap<String, List<Sample>>();
+                  for (Sample sample : openbis
+                      .getSamplesOfProject(project.getIdentifier().getIdentifier())) {
+                    if (sample.getExperiment() != null) {
+                      String expCode = sample.getExperiment().getCode();
+                      if (samplesByExperiment.containsKey(expCode)) {
+                        List<Sample> samples = samplesByExperiment.get(expCode);
+                        samples.add(sample);
+                        samplesByExperiment.put(expCode, samples);
+                      } else {
+                        List<Sample> samples = new ArrayList<Sample>(Arrays.asList(sample));
+                        samplesByExperiment.put(expCode, samples);
+                      }
+                    } else {
+                      logger.warn("No experiment found for sample " + sample.getCode());
+                    }
+                  }
+                  String designExpID = ExperimentCodeFunctions.getInfoExperimentID(space, proj);
+                  finishStep.setExperimentInfos(space, proj, designExpID, project.getDescription(),
+                      samplesByExperiment, openbis);
+                }
+              }));
         }
       }
 
@@ -1188,10 +1214,20 @@ public class WizardController implements IRegistrationController {
   protected void reloadConditionsPreviewTable(ConditionInstanceStep step, String amount,
       List<AOpenbisSample> previousLevel) {
     if (step.validInput()) {
+      boolean infectionStudy = false;
+      long combinations;
       if (previousLevel.isEmpty()) {
         EntityStep entStep = (EntityStep) steps.get(Steps.Entities);
-        step.buildTable(preparePreviewPermutations(step.getFactors(), entStep.isInfectionStudy()),
-            amount);
+        infectionStudy = entStep.isInfectionStudy();
+        combinations = countPreviewPermutations(step.getFactors(), infectionStudy);
+      } else {
+        combinations = countPreviewPermutations(step.getFactors(), previousLevel);
+      }
+      // every combination creates at least one sample by default
+      if (combinations > ProjectWizardUI.maxDesignSamples) {
+        step.showTooManyCombinations(combinations);
+      } else if (previousLevel.isEmpty()) {
+        step.buildTable(preparePreviewPermutations(step.getFactors(), infectionStudy), amount);
       } else {
         step.buildTable(preparePreviewPermutations(step.getFactors(), previousLevel), amount);
       }
@@ -1301,27 +1337,28 @@ public class WizardController implements IRegistrationController {
       List<AOpenbisSample> previousTier) {
     List<String> permutations = new ArrayList<String>();
     for (AOpenbisSample e : previousTier) {
-      List<List<String>> res = new ArrayList<List<String>>();
-      String secName = e.getQ_SECONDARY_NAME();
-      if (secName == null)
-        secName = "";
-      String condKey = "(" + e.getCode().split("-")[1] + ") " + secName;
-      res.add(new ArrayList<String>(Arrays.asList(condKey)));
-      for (List<Property> instances : factorLists) {
-        List<String> factorValues = new ArrayList<String>();
-        for (Property f : instances) {
-          String name = f.getValue();
-          if (f.hasUnit())
-            name = name + " " + f.getUnit().getValue();
-          factorValues.add(name);
-        }
-        res.add(factorValues);
-      }
-      permutations.addAll(dataAggregator.generatePermutations(res, false));
+      permutations
+          .addAll(dataAggregator.generatePermutations(getPreviewLevels(factorLists, e), false));
     }
     return permutations;
   }
 
+  /**
+   * Counts the condition permutations of the preview without generating them
+   * 
+   * @param factorLists
+   * @param previousTier Samples of the previous tier
+   * @return
+   */
+  public long countPreviewPermutations(List<List<Property>> factorLists,
+      List<AOpenbisSample> previousTier) {
+    long res = 0;
+    for (AOpenbisSample e : previousTier) {
+      res += WizardDataAggregator.countPermutations(getPreviewLevels(factorLists, e), false);
+    }
+    return res;
+  }
+
   /**
    * Prepare all condition permutations for the user to set the amounts
    * 
@@ -1330,7 +1367,35 @@ public class WizardController implements IRegistrationController {
    */
   public List<String> preparePreviewPermutations(List<List<Property>> factorLists,
       boolean infectionStudy) {
+    return dataAggregator.generatePermutations(getPreviewLevels(factorLists, null),
+        infectionStudy);
+  }
+
+  /**
+   * Counts the condition permutations of the preview without generating them
+   * 
+   * @param factorLists
+   * @return
+   */
+  public long countPreviewPermutations(List<List<Property>> factorLists, boolean infectionStudy) {
+    return WizardDataAggregator.countPermutations(getPreviewLevels(factorLists, null),
+        infectionStudy);
+  }
+
+  /**
+   * Translates factor instances to the names of their levels. If a sample of the previous tier is
+   * given, its condition is the first level.
+   */
+  private List<List<String>> getPreviewLevels(List<List<Property>> factorLists,
+      AOpenbisSample previous) {
     List<List<String>> res = new ArrayList<List<String>>();
+    if (previous != null) {
+      String secName = previous.getQ_SECONDARY_NAME();
+      if (secName == null)
+        secName = "";
+      String condKey = "(" + previous.getCode().split("-")[1] + ") " + secName;
+      res.add(new ArrayList<String>(Arrays.asList(condKey)));
+    }
     for (List<Property> instances : factorLists) {
       List<String> factorValues = new ArrayList<String>();
       for (Property f : instances) {
@@ -1341,13 +1406,12 @@ public class WizardController implements IRegistrationController {
       }
       res.add(factorValues);
     }
-    List<String> permutations = dataAggregator.generatePermutations(res, infectionStudy);
-    return permutations;
+    return res;
   }
 
   protected void armDownloadButtons(Button tsv) {
     StreamResource tsvStream =
-        getTSVStream(dataAggregator.getTSVContent(), dataAggregator.getTSVName());
+        getTSVStream(dataAggregator.getTSV(), dataAggregator.getTSVName());
     if (tsvDL == null) {
       tsvDL = new FileDownloader(tsvStream);
       tsvDL.extend(tsv);
@@ -1417,13 +1481,13 @@ public class WizardController implements IRegistrationController {
     return openbisCreator.getErrors();
   }
 
-  public StreamResource getTSVStream(final String content, String name) {
+  public StreamResource getTSVStream(final File file, String name) {
     StreamResource resource = new StreamResource(new StreamResource.StreamSource() {
       @Override
       public InputStream getStream() {
         try {
-          InputStream is = new ByteArrayInputStream(content.getBytes());
-          return is;
+          // streamed from the file written when the TSV was created
+          return new FileInputStream(file);
         } catch (Exception e) {
           e.printStackTrace();
           return null;
@@ -1444,8 +1508,10 @@ public class WizardController implements IRegistrationController {
 
   @Override
   public void performPostRegistrationTasks(boolean success) throws SQLException {
+    ProjectContextStep contextStep = (ProjectContextStep) steps.get(Steps.Project_Context);
+    // also after failed registrations, some sample batches may have been registered
+    ProjectIdentifierState.invalidate(contextStep.getSpaceCode(), contextStep.getProjectCode());
     if (success) {
-      ProjectContextStep contextStep = (ProjectContextStep) steps.get(Steps.Project_Context);
       String projectIdentifier =
           "/" + contextStep.getSpaceCode() + "/" + contextStep.getProjectCode();
       String projectName = contextStep.getExpSecondaryName();
@@ -1472,21 +1538,16 @@ public class WizardController implements IRegistrationController {
           }
         }
       }
-      int projectID = dbm.addProjectToDB(projectIdentifier, projectName);
-      if (investigatorID != -1)
-        dbm.addPersonToProject(projectID, investigatorID, "PI");
-      if (contactID != -1)
-        dbm.addPersonToProject(projectID, contactID, "Contact");
-      if (managerID != -1)
-        dbm.addPersonToProject(projectID, managerID, "Manager");
+      ProjectDBRegistration registration =
+          new ProjectDBRegistration(projectIdentifier, projectName);
+      registration.addPersonToProject(investigatorID, "PI");
+      registration.addPersonToProject(contactID, "Contact");
+      registration.addPersonToProject(managerID, "Manager");
       for (OpenbisExperiment e : exps) {
         String identifier = projectIdentifier + "/" + e.getExperimentCode();
-        int expID = dbm.addExperimentToDB(identifier);
-        if (e.getPersonID() > -1) {
-          int person = e.getPersonID();
-          dbm.addPersonToExperiment(expID, person, "Contact");
-        }
+        registration.addExperiment(identifier, e.getPersonID());
       }
+      dbm.registerProject(registration);
     } else {
       // nothing for now
     }
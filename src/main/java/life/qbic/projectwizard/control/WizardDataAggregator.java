@@ -15,17 +15,29 @@
  *******************************************************************************/
 package life.qbic.projectwizard.control;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import org.apache.commons.lang3.StringUtils;
@@ -44,6 +56,7 @@ import life.qbic.datamodel.samples.OpenbisBiologicalEntity;
 import life.qbic.datamodel.samples.OpenbisBiologicalSample;
 import life.qbic.datamodel.samples.OpenbisMHCExtractSample;
 import life.qbic.datamodel.samples.OpenbisTestSample;
+import life.qbic.datamodel.samples.SampleType;
 import life.qbic.expdesign.ParserHelpers;
 import life.qbic.expdesign.model.ExperimentalDesignPropertyWrapper;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
@@ -54,6 +67,7 @@ import life.qbic.projectwizard.model.MSExperimentModel;
 import life.qbic.projectwizard.model.RegisteredAnalyteInformation;
 import life.qbic.projectwizard.model.TestSampleInformation;
 import life.qbic.projectwizard.model.TissueInfo;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.experiment.Experiment;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
 import life.qbic.projectwizard.steps.ConditionInstanceStep;
@@ -81,9 +95,8 @@ public class WizardDataAggregator {
   private ConditionInstanceStep s6;
   private AnalyteStep s8;
 
-  private String tsvContent;
-
   private IOpenBisClient openbis;
+  private OpenbisV3APIWrapper v3;
   // private XMLParser xmlParser = new XMLParser();
   private Map<String, String> taxMap;
   private Map<String, String> tissueMap;
@@ -91,9 +104,9 @@ public class WizardDataAggregator {
   private Map<String, Integer> personMap;
   private int firstFreeExperimentID;
   private int firstFreeEntityID;
-  private Map<String, Sample> existingSamples;
   private Map<String, String> oldCodesToNewCodes;
   private String nextBarcode;
+  private BarcodeAllocator barcodes;
   private String firstFreeBarcode;
   private char classChar = 'X';
 
@@ -126,7 +139,16 @@ public class WizardDataAggregator {
   private List<AOpenbisSample> mhcExtracts;
   private Map<String, Character> classChars;
   private static final Logger logger = LogManager.getLogger(WizardDataAggregator.class);
-  private ArrayList<Sample> samples;
+  // smaller designs are not split into parallel tasks
+  private static final int MIN_SAMPLES_PER_TASK = 1000;
+  // builds the samples of large designs for all wizards. daemon threads, as the pool is never shut
+  // down
+  private static final ExecutorService buildPool =
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread t = new Thread(r, "design-builder");
+        t.setDaemon(true);
+        return t;
+      });
 
   private Map<String, Map<String, Object>> mhcExperimentProtocols;
   private MSExperimentModel fractionationProperties;
@@ -142,17 +164,22 @@ public class WizardDataAggregator {
   private Set<String> infectantSpecies;
   private OpenbisExperiment infectantExperiment;
   private List<AOpenbisSample> backgroundEntities;
+  // analytes of the copied project, fetched once per project
+  private String analyteProject;
+  private RegisteredAnalyteInformation analyteInformation;
 
   /**
    * Creates a new WizardDataAggregator
    * 
    * @param steps the steps of the Wizard to extract the data from
    * @param openbis openBIS client connection to query for existing context
+   * @param v3 V3 API used to scan existing projects
    * @param taxMap mapping between taxonomy IDs and species names
    * @param tissueMap mapping of tissue names and labels
    */
   public WizardDataAggregator(Map<Steps, WizardStep> steps, IOpenBisClient openbis,
-      Map<String, String> taxMap, Map<String, String> tissueMap, Map<String, Integer> personMap) {
+      OpenbisV3APIWrapper v3, Map<String, String> taxMap, Map<String, String> tissueMap,
+      Map<String, Integer> personMap) {
     s1 = (ProjectContextStep) steps.get(Steps.Project_Context);
     s2 = (EntityStep) steps.get(Steps.Entities);
     s3 = (ConditionInstanceStep) steps.get(Steps.Entity_Conditions);
@@ -161,6 +188,7 @@ public class WizardDataAggregator {
     s8 = (AnalyteStep) steps.get(Steps.Test_Samples);
 
     this.openbis = openbis;
+    this.v3 = v3;
     this.taxMap = taxMap;
     this.personMap = personMap;
     this.tissueMap = tissueMap;
@@ -178,44 +206,26 @@ public class WizardDataAggregator {
     firstFreeExperimentID = 1;
     firstFreeEntityID = 1;
     firstFreeBarcode = "";// TODO cleanup where not needed
-    existingSamples = new HashMap<String, Sample>();
     spaceCode = s1.getSpaceCode();
     projectCode = s1.getProjectCode().toUpperCase();
 
-    samples = new ArrayList<Sample>();
-    if (openbis.projectExists(spaceCode, projectCode)) {
-      samples.addAll(openbis.getSamplesOfProject("/" + spaceCode + "/" + projectCode));
-    }
-
     if (!s1.fetchTSVModeSet()) {
-      for (Experiment e : openbis.getExperimentsOfProjectByCode(projectCode)) {
-        String code = e.getCode();
-        String[] split = code.split(projectCode + "E");
-        if (code.startsWith(projectCode + "E") && split.length > 1) {
-          int num = 0;
-          try {
-            num = Integer.parseInt(split[1]);
-          } catch (Exception e2) {
-          }
-          if (firstFreeExperimentID <= num)
-            firstFreeExperimentID = num + 1;
-        }
-      }
+      ProjectIdentifierState state = ProjectIdentifierState.get(v3, spaceCode, projectCode);
+      firstFreeExperimentID = state.getFirstFreeExperimentID();
+      firstFreeEntityID = state.getFirstFreeEntityID();
+      firstFreeBarcode = state.getFirstFreeBarcode();
+    }
+  }
 
-      for (Sample s : samples) {
-        String code = s.getCode();
-        existingSamples.put(code, s);
-        if (SampleCodeFunctions.isQbicBarcode(code)) {
-          if (SampleCodeFunctions.compareSampleCodes(firstFreeBarcode, code) <= 0) {
-            firstFreeBarcode = SampleCodeFunctions.incrementSampleCode(code);
-          }
-        } else if (s.getType().getCode().equals(("Q_BIOLOGICAL_ENTITY"))) {
-          int num = Integer.parseInt(s.getCode().split("-")[1]);
-          if (num >= firstFreeEntityID)
-            firstFreeEntityID = num + 1;
-        }
-      }
+  /**
+   * Fetches an existing sample including its children
+   */
+  private Sample getExistingSample(String code) {
+    for (Sample s : openbis.getSamplesWithParentsAndChildren(code)) {
+      if (s.getCode().equals(code))
+        return s;
     }
+    return null;
   }
 
   /**
@@ -255,6 +265,10 @@ public class WizardDataAggregator {
       List<List<Property>> valueLists = s3.getFactors();
       bioFactors = createFactorInfo(valueLists);
 
+      long permutations = countPermutations(bioFactors, infectionStudy);
+      DesignSizeEstimator.check("biological entities",
+          DesignSizeEstimator.countReplicates(permutations, map, bioReps),
+          ProjectWizardUI.maxDesignSamples);
       entities = buildEntities(map, infectionStudy);
     }
     return entities;
@@ -278,7 +292,7 @@ public class WizardDataAggregator {
       List<Sample> samples = new ArrayList<>();
       if (copyMode) {
         // child experiment of entities
-        expID = existingSamples.get(openbisEntities.get(0).getCode()).getChildren().get(0)
+        expID = getExistingSample(openbisEntities.get(0).getCode()).getChildren().get(0)
             .getExperiment().getIdentifier().getIdentifier();
         samples = openbis.getSamplesofExperiment(expID);
       } else {
@@ -346,9 +360,14 @@ public class WizardDataAggregator {
           ExperimentType.Q_SAMPLE_EXTRACTION, personID, props));
       List<List<Property>> valueLists = s6.getFactors();
       extractFactors = createFactorInfo(valueLists);
+      long permutations = (long) entities.size() * CartesianProduct.of(extractFactors).size();
+      DesignSizeEstimator.check("sample extracts",
+          DesignSizeEstimator.countReplicates(permutations, map, extractReps),
+          ProjectWizardUI.maxDesignSamples);
       // keep track of id letters for different conditions
       classChars = new HashMap<String, Character>();
-      extracts = buildExtracts(entities, classChars, map);
+      extracts = buildExtracts(entities, classChars, map, s5.isTissueFactor(),
+          s6.getSpecialTissueMap());
     }
     return extracts;
   }
@@ -361,6 +380,14 @@ public class WizardDataAggregator {
    */
   public List<List<AOpenbisSample>> prepareTestSamples() {
     techTypeInfo = s8.getAnalyteInformation();
+    Set<String> conditions = new HashSet<String>();
+    for (AOpenbisSample e : extracts) {
+      conditions.add(e.getQ_SECONDARY_NAME());
+    }
+    DesignSizeEstimator.check("test samples",
+        DesignSizeEstimator.countTests(extracts.size(), techTypeInfo)
+            + DesignSizeEstimator.countMaxPools(conditions.size(), techTypeInfo),
+        ProjectWizardUI.maxDesignSamples);
     if (inheritExtracts) {
       prepareBasics();
       classChars = new HashMap<String, Character>();
@@ -376,9 +403,7 @@ public class WizardDataAggregator {
       experiments.add(exp);
     }
     List<List<AOpenbisSample>> techSortedTests = buildTestSamples(extracts, classChars);
-    tests = new ArrayList<AOpenbisSample>();
-    for (List<AOpenbisSample> group : techSortedTests)
-      tests.addAll(group);
+    tests = new ConcatenatedList(techSortedTests);
     for (int i = techSortedTests.size() - 1; i > -1; i--) {
       if (!techTypeInfo.get(i).isPooled() && !s8.hasComplexProteinPoolBeforeFractionation())
         techSortedTests.remove(i);
@@ -513,6 +538,13 @@ public class WizardDataAggregator {
     return projectCode + "E" + (firstFreeExperimentID - 1);
   }
 
+  /**
+   * @return species found in the skipped infectant permutations of the last infection study
+   */
+  Set<String> getInfectantSpecies() {
+    return infectantSpecies;
+  }
+
   /**
    * Generates all permutations of a list of experiment conditions
    * 
@@ -521,49 +553,90 @@ public class WizardDataAggregator {
    * @return List of all possible permutations of the input conditions
    */
   public List<String> generatePermutations(List<List<String>> lists, boolean infectionStudy) {
-    infectantSpecies = new HashSet<>();
     List<String> res = new ArrayList<>();
-    generatePermutationsHelper(lists, res, 0, "");
+    for (List<String> permutation : permutations(lists, infectionStudy)) {
+      res.add(String.join("###", permutation));
+    }
+    return res;
+  }
 
+  /**
+   * Counts the permutations of a list of experiment conditions without generating them
+   * 
+   * @param lists Instance lists of different conditions
+   * @param infectionStudy
+   * @return number of permutations generatePermutations would return
+   */
+  public static long countPermutations(List<List<String>> lists, boolean infectionStudy) {
+    long size = CartesianProduct.of(lists).size();
+    // every second permutation of infection studies is an infectant
     if (infectionStudy) {
-      List<String> newRes = new ArrayList<>();
-      int n = 0;
-      for (String concat : res) {
-        String[] conditionSplit = concat.split("###");
+      size = size / 2 + size % 2;
+    }
+    return size;
+  }
 
+  /**
+   * Lazily enumerates all permutations of a list of experiment conditions. For infection studies
+   * every second permutation is skipped and its species are collected as infectant species while
+   * iterating.
+   * 
+   * @param lists Instance lists of different conditions
+   * @param infectionStudy
+   */
+  private Iterable<List<String>> permutations(List<List<String>> lists, boolean infectionStudy) {
+    infectantSpecies = new HashSet<>();
+    CartesianProduct product = CartesianProduct.of(lists);
+    return () -> new Iterator<List<String>>() {
+      private final Iterator<int[]> tuples = product.iterator();
+      private int n = 0;
+
+      @Override
+      public boolean hasNext() {
         // handle infection studies. every second entry is a potential infecting species
-        n++;
-        if ((n % 2) == 0) {
-          for (String condition : conditionSplit) {
+        while (infectionStudy && (n + 1) % 2 == 0 && tuples.hasNext()) {
+          n++;
+          for (String condition : toConditionList(lists, tuples.next())) {
             if (taxMap.containsKey(condition)) {
               infectantSpecies.add(condition);
             }
           }
-        } else {
-          newRes.add(concat);
         }
+        return tuples.hasNext();
       }
-      res = newRes;
-    }
-    return res;
+
+      @Override
+      public List<String> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        n++;
+        return toConditionList(lists, tuples.next());
+      }
+    };
   }
 
   /**
-   * recursive helper
+   * Translates an index tuple to condition names. Leading and trailing empty names are left out
+   * and no names at all result in one empty name.
    */
-  private void generatePermutationsHelper(List<List<String>> lists, List<String> result, int depth,
-      String current) {
-    String separator = "###";
-    if (depth == lists.size()) {
-      result.add(current);
-      return;
-    }
-    for (int i = 0; i < lists.get(depth).size(); ++i) {
-      if (current.equals(""))
-        separator = "";
-      generatePermutationsHelper(lists, result, depth + 1,
-          current + separator + lists.get(depth).get(i));
+  private static List<String> toConditionList(List<List<String>> lists, int[] tuple) {
+    int first = 0;
+    while (first < tuple.length && lists.get(first).get(tuple[first]).isEmpty()) {
+      first++;
+    }
+    int last = tuple.length - 1;
+    while (last >= first && lists.get(last).get(tuple[last]).isEmpty()) {
+      last--;
     }
+    List<String> res = new ArrayList<String>(Math.max(1, last - first + 1));
+    for (int i = first; i <= last; i++) {
+      res.add(lists.get(i).get(tuple[i]));
+    }
+    if (res.isEmpty()) {
+      res.add("");
+    }
+    return res;
   }
 
   /**
@@ -575,16 +648,10 @@ public class WizardDataAggregator {
    * @return List of AOpenbisSamples containing entity samples
    */
   private List<AOpenbisSample> buildEntities(Map<Object, Integer> map, boolean infectionStudy) {
-    List<AOpenbisSample> entities = new ArrayList<AOpenbisSample>();
+    SampleTable entities = new SampleTable(SampleType.Q_BIOLOGICAL_ENTITY);
     List<List<String>> factorLists = new ArrayList<List<String>>();
     factorLists.addAll(bioFactors);
-    List<String> permutations = generatePermutations(factorLists, infectionStudy);
-
-    List<List<String>> permLists = new ArrayList<List<String>>();
-    for (String concat : permutations) {
-      String[] conditionSplit = concat.split("###");
-      permLists.add(new ArrayList<String>(Arrays.asList(conditionSplit)));
-    }
+    Iterable<List<String>> permLists = permutations(factorLists, infectionStudy);
 
     int entityNum = firstFreeEntityID;
     int defBioReps = bioReps;
@@ -595,12 +662,13 @@ public class WizardDataAggregator {
       String secondaryName = nameListToSecondaryName(secondaryNameList);
       if (map.containsKey(permID))
         defBioReps = map.get(permID);
+      // replicates share the conditions of their permutation
+      List<Property> factors = new ArrayList<Property>();
+      for (String name : secondaryNameList) {
+        if (factorMap.containsKey(name))
+          factors.add(factorMap.get(name));
+      }
       for (int i = defBioReps; i > 0; i--) {
-        List<Property> factors = new ArrayList<Property>();
-        for (String name : secondaryNameList) {
-          if (factorMap.containsKey(name))
-            factors.add(factorMap.get(name));
-        }
         if (s2.speciesIsFactor()) {
           for (String factor : secondaryNameList) {
             if (taxMap.containsKey(factor))
@@ -609,8 +677,9 @@ public class WizardDataAggregator {
         }
         String taxID = taxMap.get(species);
 
-        entities.add(new OpenbisBiologicalEntity(projectCode + "ENTITY-" + entityNum, spaceCode,
-            experiments.get(0).getExperimentCode(), secondaryName, "", factors, taxID, "", ""));
+        entities.add(projectCode + "ENTITY-" + entityNum, spaceCode,
+            experiments.get(0).getExperimentCode(), secondaryName, "", factors, taxID, "", null,
+            "");
         entityNum++;
       }
     }
@@ -634,7 +703,7 @@ public class WizardDataAggregator {
         entityNum++;
       }
     }
-    return entities;
+    return entities.asList();
   }
 
   /**
@@ -646,14 +715,19 @@ public class WizardDataAggregator {
    * @param classChars Empty map of different class letters used for the identifiers, to keep track
    *        of for test samples
    * @param map
+   * @param tissueIsFactor true if the tissue is one of the extract conditions
+   * @param specialTissueInfos tissues of the tissue conditions
    * @return List of AOpenbisSamples containing extract samples
    */
-  private List<AOpenbisSample> buildExtracts(List<AOpenbisSample> entities,
-      Map<String, Character> classChars, Map<Object, Integer> map) {
+  List<AOpenbisSample> buildExtracts(List<AOpenbisSample> entities,
+      Map<String, Character> classChars, Map<Object, Integer> map, boolean tissueIsFactor,
+      Map<String, TissueInfo> specialTissueInfos) {
     int expNum = experiments.size() - techTypeInfo.size() - 1;
-    List<AOpenbisSample> extracts = new ArrayList<AOpenbisSample>();
     int permID = 0;
-    Map<String, TissueInfo> specialTissueInfos = s6.getSpecialTissueMap();
+    // the order dependent parts (tissues, class letters, barcodes) are computed once per
+    // permutation, the samples are created afterwards
+    List<ExtractGroup> groups = new ArrayList<ExtractGroup>();
+    int total = 0;
     for (AOpenbisSample e : entities) {
       List<List<String>> factorLists = new ArrayList<List<String>>();
       String secName = e.getQ_SECONDARY_NAME();
@@ -662,12 +736,7 @@ public class WizardDataAggregator {
       factorLists.add(new ArrayList<String>(Arrays.asList(secName)));
 
       factorLists.addAll(extractFactors);
-      List<String> permutations = generatePermutations(factorLists, false);
-      List<List<String>> permLists = new ArrayList<List<String>>();
-      for (String concat : permutations) {
-        permLists.add(new ArrayList<String>(Arrays.asList(concat.split("###"))));
-      }
-      for (List<String> secondaryNameList : permLists) {
+      for (List<String> secondaryNameList : permutations(factorLists, false)) {
         permID++;
         List<Property> factors = new ArrayList<Property>();
         factors.addAll(e.getFactors());
@@ -683,9 +752,8 @@ public class WizardDataAggregator {
         int defExtrReps = extractReps;
         if (map.containsKey(permID))
           defExtrReps = map.get(permID);
-        for (int i = defExtrReps; i > 0; i--) {
-          String tissueCode = "";
-          if (s5.isTissueFactor()) {
+        if (defExtrReps > 0) {
+          if (tissueIsFactor) {
             for (String factorInstance : secondaryNameList) {
               if (specialTissueInfos.containsKey(factorInstance)) {
                 TissueInfo info = specialTissueInfos.get(factorInstance);
@@ -694,41 +762,124 @@ public class WizardDataAggregator {
               }
             }
           }
-          tissueCode = tissueMap.get(tissue);
-          if (classChars.containsKey(secondaryName)) { // TODO does this seem right to you?
-            classChar = classChars.get(secondaryName);
-          } else {
-            classChar = SampleCodeFunctions.incrementUppercase(classChar);
-            classChars.put(secondaryName, classChar);
+          String tissueCode = tissueMap.get(tissue);
+          updateClassChar(secondaryName, classChars); // TODO does this seem right to you?
+          if (total == 0) {
+            initBarcodes();
+            // creating the first barcode of a project resets the letter, the next replicate
+            // sets it again
+            if (defExtrReps > 1)
+              updateClassChar(secondaryName, classChars);
           }
-          List<Property> curFactors = new ArrayList<Property>(factors);
-          incrementOrCreateBarcode();
-          extracts.add(new OpenbisBiologicalSample(nextBarcode, spaceCode,
-              experiments.get(expNum).getExperimentCode(), secondaryName, "", curFactors,
-              tissueCode, specialTissue, e.getCode(), e.getQ_EXTERNALDB_ID())); // TODO
-          // ext
-          // db
-          // id
+          groups.add(new ExtractGroup(e.getCode(), e.getQ_EXTERNALDB_ID(), secondaryName,
+              factors, tissueCode, specialTissue, total, defExtrReps));
+          total += defExtrReps;
         }
       }
     }
-    return extracts;
+    if (total == 0)
+      return new ArrayList<AOpenbisSample>();
+    final BarcodeAllocator.Range range = barcodes.allocate(total);
+    nextBarcode = range.get(total - 1);
+
+    final String exp = experiments.get(expNum).getExperimentCode();
+    List<CompletableFuture<List<AOpenbisSample>>> tasks = new ArrayList<>();
+    int from = 0;
+    int rows = 0;
+    for (int g = 0; g < groups.size(); g++) {
+      rows += groups.get(g).replicates;
+      if (rows >= MIN_SAMPLES_PER_TASK || g == groups.size() - 1) {
+        final List<ExtractGroup> part = groups.subList(from, g + 1);
+        tasks.add(CompletableFuture
+            .supplyAsync(() -> buildExtractTable(part, range, exp).asList(), buildPool));
+        from = g + 1;
+        rows = 0;
+      }
+    }
+    return new ConcatenatedList(join(tasks));
+  }
+
+  /**
+   * Extracts created for one permutation of conditions of an entity
+   */
+  private static class ExtractGroup {
+    private final String parent;
+    private final String externalID;
+    private final String secondaryName;
+    private final List<Property> factors;
+    private final String tissueCode;
+    private final String specialTissue;
+    // position of the first extract among all extracts
+    private final int offset;
+    private final int replicates;
+
+    private ExtractGroup(String parent, String externalID, String secondaryName,
+        List<Property> factors, String tissueCode, String specialTissue, int offset,
+        int replicates) {
+      this.parent = parent;
+      this.externalID = externalID;
+      this.secondaryName = secondaryName;
+      this.factors = factors;
+      this.tissueCode = tissueCode;
+      this.specialTissue = specialTissue;
+      this.offset = offset;
+      this.replicates = replicates;
+    }
+  }
 
+  private SampleTable buildExtractTable(List<ExtractGroup> groups, BarcodeAllocator.Range range,
+      String exp) {
+    SampleTable table = new SampleTable(SampleType.Q_BIOLOGICAL_SAMPLE);
+    for (ExtractGroup g : groups) {
+      for (int i = 0; i < g.replicates; i++) {
+        table.add(range.get(g.offset + i), spaceCode, exp,
+            g.secondaryName, "", g.factors, g.tissueCode, g.specialTissue, g.parent,
+            g.externalID); // TODO ext db id
+      }
+    }
+    return table;
   }
 
-  private void incrementOrCreateBarcode() {
-    if (nextBarcode == null) {
+  /**
+   * Sets the class letter of a secondary name, new secondary names get the next letter
+   */
+  private void updateClassChar(String secondaryName, Map<String, Character> classChars) {
+    if (classChars.containsKey(secondaryName)) {
+      classChar = classChars.get(secondaryName);
+    } else {
+      classChar = SampleCodeFunctions.incrementUppercase(classChar);
+      classChars.put(secondaryName, classChar);
+    }
+  }
+
+  private static <T> List<T> join(List<CompletableFuture<T>> tasks) {
+    List<T> res = new ArrayList<T>();
+    for (CompletableFuture<T> task : tasks) {
+      res.add(task.join());
+    }
+    return res;
+  }
+
+  /**
+   * Creates the barcode allocator when the first barcode is needed, starting with the first free
+   * barcode of the project
+   */
+  private void initBarcodes() {
+    if (barcodes == null) {
       if (firstFreeBarcode.isEmpty()) {
         classChar = 'A';
         String base = projectCode + SampleCodeFunctions.createCountString(1, 3) + classChar;
         firstFreeBarcode = base + SampleCodeFunctions.checksum(base);
       }
-      nextBarcode = firstFreeBarcode;
-    } else {
-      nextBarcode = SampleCodeFunctions.incrementSampleCode(nextBarcode);
+      barcodes = new BarcodeAllocator(firstFreeBarcode);
     }
   }
 
+  private void incrementOrCreateBarcode() {
+    initBarcodes();
+    nextBarcode = barcodes.next();
+  }
+
   public List<AOpenbisSample> getTestPools() {
     return testPools;
   }
@@ -774,37 +925,64 @@ public class WizardDataAggregator {
    * @param extracts Existing (or prepared) sample extracts these test samples will be attached to
    * @param classChars Filled map of different class letters used for the extracts
    * @return List of lists of AOpenbisSamples containing test samples, sorted by different
-   *         technology types
+   *         technology types. Technologies are built in parallel
    */
-  private List<List<AOpenbisSample>> buildTestSamples(List<AOpenbisSample> extracts,
+  List<List<AOpenbisSample>> buildTestSamples(List<AOpenbisSample> extracts,
       Map<String, Character> classChars) {
-    List<List<AOpenbisSample>> tests = new ArrayList<>();
-    for (int j = 0; j < techTypeInfo.size(); j++) {// different technologies
-      List<AOpenbisSample> techTests = new ArrayList<>();
-      int techReps = techTypeInfo.get(j).getReplicates();
-      String sampleType = techTypeInfo.get(j).getTechnology();
-      int expNum = experiments.size() - techTypeInfo.size() + j;
+    int total = 0;
+    for (TestSampleInformation tech : techTypeInfo) {
+      total += extracts.size() * tech.getReplicates();
+    }
+    BarcodeAllocator.Range range = null;
+    if (total > 0) {
+      // class letters are assigned in the order of the first technology's samples, later
+      // technologies only find existing letters
+      int reps = 0;
+      for (TestSampleInformation tech : techTypeInfo) {
+        if (reps == 0)
+          reps = tech.getReplicates();
+      }
+      boolean first = true;
       for (AOpenbisSample s : extracts) {
-        for (int i = techReps; i > 0; i--) {
-          String secondaryName = s.getQ_SECONDARY_NAME();
-          if (classChars.containsKey(secondaryName)) { // TODO see above
-            classChar = classChars.get(secondaryName);
-          } else {
-            classChar = SampleCodeFunctions.incrementUppercase(classChar);
-            classChars.put(secondaryName, classChar);
+        for (int i = reps; i > 0; i--) {
+          updateClassChar(s.getQ_SECONDARY_NAME(), classChars); // TODO see above
+          if (first) {
+            initBarcodes();
+            first = false;
           }
-          incrementOrCreateBarcode();
-          techTests.add(new OpenbisTestSample(nextBarcode, spaceCode,
-              experiments.get(expNum).getExperimentCode(), secondaryName, "", s.getFactors(),
-              sampleType, s.getCode(), s.getQ_EXTERNALDB_ID()));// TODO
-          // ext
-          // db
-          // id
         }
       }
-      tests.add(techTests);
+      range = barcodes.allocate(total);
+      nextBarcode = range.get(total - 1);
     }
-    return tests;
+    final BarcodeAllocator.Range testRange = range;
+    List<CompletableFuture<List<AOpenbisSample>>> tasks = new ArrayList<>();
+    int offset = 0;
+    for (int j = 0; j < techTypeInfo.size(); j++) {// different technologies
+      final int techReps = techTypeInfo.get(j).getReplicates();
+      final String sampleType = techTypeInfo.get(j).getTechnology();
+      final String exp =
+          experiments.get(experiments.size() - techTypeInfo.size() + j).getExperimentCode();
+      final int techOffset = offset;
+      tasks.add(CompletableFuture.supplyAsync(() -> buildTestTable(extracts, testRange,
+          techOffset, techReps, sampleType, exp).asList(), buildPool));
+      offset += extracts.size() * techReps;
+    }
+    return join(tasks);
+  }
+
+  private SampleTable buildTestTable(List<AOpenbisSample> extracts, BarcodeAllocator.Range range,
+      int offset, int techReps, String sampleType, String exp) {
+    SampleTable table = new SampleTable(SampleType.Q_TEST_SAMPLE);
+    int n = offset;
+    for (AOpenbisSample s : extracts) {
+      for (int i = techReps; i > 0; i--) {
+        table.add(range.get(n++), spaceCode, exp,
+            s.getQ_SECONDARY_NAME(), "", s.getFactors(), sampleType, null, s.getCode(),
+            s.getQ_EXTERNALDB_ID());// TODO ext db id
+      }
+    }
+    return table;
   }
 
   /**
@@ -1020,6 +1198,102 @@ public class WizardDataAggregator {
     return null;
   }
 
+  /**
+   * Layout of the project TSV: the metadata lines, the columns and the samples that are written.
+   * Computed once per created TSV, rows are written from it when needed.
+   */
+  private static class TSVLayout {
+    private final List<String> metadataLines = new ArrayList<String>();
+    private final List<String> header;
+    private final String headerLine;
+    private final int factorRowSize;
+    private final List<List<AOpenbisSample>> tiers;
+    // samples that can not be registered by the wizard
+    private final Set<String> ignoredCodes;
+
+    private TSVLayout(List<String> header, String headerLine, int factorRowSize,
+        List<List<AOpenbisSample>> tiers, Set<String> ignoredCodes) {
+      this.header = header;
+      this.headerLine = headerLine;
+      this.factorRowSize = factorRowSize;
+      this.tiers = tiers;
+      this.ignoredCodes = ignoredCodes;
+    }
+  }
+
+  /**
+   * Read-only view of several sample lists as one list, e.g. of tables built in parallel
+   */
+  private static class ConcatenatedList extends AbstractList<AOpenbisSample>
+      implements RandomAccess {
+    private final List<List<AOpenbisSample>> parts;
+    private final int size;
+
+    private ConcatenatedList(List<List<AOpenbisSample>> parts) {
+      this.parts = new ArrayList<List<AOpenbisSample>>(parts);
+      int size = 0;
+      for (List<AOpenbisSample> part : parts) {
+        size += part.size();
+      }
+      this.size = size;
+    }
+
+    @Override
+    public AOpenbisSample get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      int i = index;
+      for (List<AOpenbisSample> part : parts) {
+        if (i < part.size()) {
+          return part.get(i);
+        }
+        i -= part.size();
+      }
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    @Override
+    public AOpenbisSample set(int index, AOpenbisSample sample) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      int i = index;
+      for (List<AOpenbisSample> part : parts) {
+        if (i < part.size()) {
+          return part.set(i, sample);
+        }
+        i -= part.size();
+      }
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * @return the row of every sample with one of the codes, codes that are not found are left out
+   */
+  static Map<String, Integer> rowsOf(List<AOpenbisSample> samples, Set<String> codes) {
+    Map<String, Integer> res = new HashMap<String, Integer>();
+    if (codes.isEmpty()) {
+      return res;
+    }
+    for (int i = 0; i < samples.size(); i++) {
+      String code = samples.get(i).getCode();
+      if (codes.contains(code)) {
+        res.put(code, i);
+      }
+    }
+    return res;
+  }
+
+  private TSVLayout tsvLayout;
+  private File tsvFile;
+
   /**
    * Creates a tab separated values file of the context created by the wizard, given that samples
    * have been prepared in the aggregator class
@@ -1028,21 +1302,21 @@ public class WizardDataAggregator {
    * @throws FileNotFoundException
    * @throws UnsupportedEncodingException
    */
-  public String createTSV() throws FileNotFoundException, UnsupportedEncodingException {
-    List<AOpenbisSample> samples = new ArrayList<AOpenbisSample>();
-    samples.addAll(entities);
+  public File createTSV() throws FileNotFoundException, UnsupportedEncodingException {
+    // tiers are not copied into one list, generated tiers create their samples when read
+    List<List<AOpenbisSample>> tiers = new ArrayList<List<AOpenbisSample>>();
+    tiers.add(entities);
     if (backgroundEntities != null) {
-      samples.addAll(backgroundEntities);
+      tiers.add(backgroundEntities);
     }
-    samples.addAll(extracts);
-    samples.addAll(tests);
+    tiers.add(extracts);
+    tiers.add(tests);
     if (testPools != null)
-      samples.addAll(testPools);
+      tiers.add(testPools);
     if (msSamples != null)
-      samples.addAll(msSamples);// TODO test
+      tiers.add(msSamples);// TODO test
     if (mhcExtracts != null)
-      samples.addAll(mhcExtracts);
-    List<String> rows = new ArrayList<String>();
+      tiers.add(mhcExtracts);
 
     List<String> header = new ArrayList<String>(Arrays.asList("SAMPLE TYPE", "SPACE", "EXPERIMENT",
         "Q_SECONDARY_NAME", "PARENT", "Q_PRIMARY_TISSUE", "Q_TISSUE_DETAILED", "Q_ADDITIONAL_INFO",
@@ -1050,11 +1324,21 @@ public class WizardDataAggregator {
     // TODO current assumption: tests should have more or an equal number of xml entries than
     // ancestors, because they inherit their entries
     int factorRowSize = 0;
-    AOpenbisSample a = samples.get(0);
-    for (AOpenbisSample b : samples) {
-      if (factorRowSize < b.getFactors().size()) {
-        factorRowSize = b.getFactors().size();
-        a = b;
+    AOpenbisSample a = null;
+    Set<String> ignoredCodes = new HashSet<String>();
+    for (List<AOpenbisSample> tier : tiers) {
+      for (AOpenbisSample b : tier) {
+        if (a == null || factorRowSize < b.getFactors().size()) {
+          factorRowSize = b.getFactors().size();
+          a = b;
+        }
+        String code = b.getCode();
+        if (!(isEntity(code) || SampleCodeFunctions.isQbicBarcode(code) || SampleCodeFunctions
+            .isMeasurementOfBarcode(code, b.getValueMap().get("SAMPLE TYPE")))) {
+          logger.warn(code
+              + " will be ignored, it is not a valid QBiC barcode registerable by the wizard.");
+          ignoredCodes.add(code);
+        }
       }
     }
     String description = s1.getDescription();
@@ -1063,16 +1347,16 @@ public class WizardDataAggregator {
     String contact = s1.getPerson(PersonType.Contact);
     String manager = s1.getPerson(PersonType.Manager);
 
-    String result = "";
+    List<String> metadataLines = new ArrayList<String>();
     description = description.replace("\n", "\n#");
     secondaryName = secondaryName.replace("\n", " - ");
-    result += "#PROJECT_DESCRIPTION=" + description + "\n";
-    result += "#ALTERNATIVE_NAME=" + secondaryName + "\n";
+    metadataLines.add("#PROJECT_DESCRIPTION=" + description);
+    metadataLines.add("#ALTERNATIVE_NAME=" + secondaryName);
     if (s1.isPilot())
-      result += "#PILOT PROJECT\n";
-    result += "#INVESTIGATOR=" + investigator + "\n";
-    result += "#CONTACT=" + contact + "\n";
-    result += "#MANAGER=" + manager + "\n";
+      metadataLines.add("#PILOT PROJECT");
+    metadataLines.add("#INVESTIGATOR=" + investigator);
+    metadataLines.add("#CONTACT=" + contact);
+    metadataLines.add("#MANAGER=" + manager);
 
     List<OpenbisExperiment> allExperiments = new ArrayList<>();
     if (experiments != null) {
@@ -1084,7 +1368,7 @@ public class WizardDataAggregator {
     // TODO reuse this in the refactored version, it's not stupid
     for (OpenbisExperiment e : allExperiments) {
       if (informativeExpTypes.contains(e.getType()) || e.containsProperties()) {
-        result += e.getPropertiesString() + "\n";
+        metadataLines.add(e.getPropertiesString());
       }
     }
     // Map<String, Object> msProps = s8.getProteinMSExperimentProperties(); TODO might need this for
@@ -1096,55 +1380,81 @@ public class WizardDataAggregator {
       header.add("Q_MHC_CLASS");
     }
 
-    String headerLine = "Identifier";
+    StringBuilder headerLine = new StringBuilder("Identifier");
     for (String col : header)
-      headerLine += "\t" + col;
+      headerLine.append("\t").append(col);
 
-    for (Property f : a.getFactors()) {
+    List<Property> headerFactors = a == null ? new ArrayList<Property>() : a.getFactors();
+    for (Property f : headerFactors) {
       String label = f.getLabel();
       switch (f.getType()) {
         case Factor:
-          headerLine += "\tCondition: " + label;
+          headerLine.append("\tCondition: ").append(label);
           break;
         case Property:
-          headerLine += "\tProperty: " + label;
+          headerLine.append("\tProperty: ").append(label);
           break;
         default:
           break;
       }
     }
-    for (AOpenbisSample s : samples) {
-      String code = s.getCode();
-      if (isEntity(code) || SampleCodeFunctions.isQbicBarcode(code)
-          || SampleCodeFunctions.isMeasurementOfBarcode(code, s.getValueMap().get("SAMPLE TYPE"))) {
-        Map<String, String> data = s.getValueMap();
-        String row = s.getCode();
-        List<String> factors = s.getFactorStringsWithoutLabel();
-        for (String col : header) {
-          String val = "";
-          if (data.containsKey(col))
-            val = data.get(col);
-          if (val == null)
-            val = "";
-          row += "\t" + val;
-        }
-        for (int i = 0; i < factors.size(); i++)
-          row += "\t" + factors.get(i);
-        for (int i = factors.size(); i < factorRowSize; i++) {
-          row += "\t";
-        }
-        rows.add(row);
-      } else {
-        logger.warn(
-            code + " will be ignored, it is not a valid QBiC barcode registerable by the wizard.");
+    TSVLayout layout =
+        new TSVLayout(header, headerLine.toString(), factorRowSize, tiers, ignoredCodes);
+    layout.metadataLines.addAll(metadataLines);
+    this.tsvLayout = layout;
+
+    String file = ProjectWizardUI.tmpFolder + "tmp_" + getTSVName() + ".tsv";
+    try (Writer writer =
+        new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+      writeTSV(writer);
+    } catch (FileNotFoundException | UnsupportedEncodingException e) {
+      throw e;
+    } catch (IOException e) {
+      logger.error("Could not write TSV file " + file + ": " + e.getMessage());
+    }
+    this.tsvFile = new File(file);
+    return tsvFile;
+  }
+
+  /**
+   * Writes the TSV prepared by {@link #createTSV()} row by row
+   */
+  public void writeTSV(Writer writer) throws IOException {
+    TSVLayout layout = tsvLayout;
+    for (String line : layout.metadataLines) {
+      writer.write(line);
+      writer.write("\n");
+    }
+    writer.write(layout.headerLine);
+    writer.write("\n");
+    for (List<AOpenbisSample> tier : layout.tiers) {
+      for (AOpenbisSample s : tier) {
+        if (!layout.ignoredCodes.isEmpty() && layout.ignoredCodes.contains(s.getCode()))
+          continue;
+        writeTSVRow(writer, layout, s);
       }
     }
-    result += headerLine + "\n";
-    for (String line : rows) {
-      result += line + "\n";
+  }
+
+  private void writeTSVRow(Writer writer, TSVLayout layout, AOpenbisSample s)
+      throws IOException {
+    Map<String, String> data = s.getValueMap();
+    writer.write(s.getCode());
+    List<String> factors = s.getFactorStringsWithoutLabel();
+    for (String col : layout.header) {
+      String val = data.get(col);
+      writer.write("\t");
+      if (val != null)
+        writer.write(val);
+    }
+    for (int i = 0; i < factors.size(); i++) {
+      writer.write("\t");
+      writer.write(factors.get(i));
+    }
+    for (int i = factors.size(); i < layout.factorRowSize; i++) {
+      writer.write("\t");
     }
-    this.tsvContent = result;
-    return result;
+    writer.write("\n");
   }
 
   // TODO should be parsed from the tsv?
@@ -1171,22 +1481,33 @@ public class WizardDataAggregator {
     return code.matches(pattern);
   }
 
-  public File getTSV() throws FileNotFoundException, UnsupportedEncodingException {
-    String file = ProjectWizardUI.tmpFolder + "tmp_" + getTSVName() + ".tsv";
-    PrintWriter writer = new PrintWriter(file, "UTF-8");
-    for (String line : tsvContent.split("\n")) {
-      writer.println(line);
-    }
-    writer.close();
-    return new File(file);
+  /**
+   * @return the file written by {@link #createTSV()}
+   */
+  public File getTSV() {
+    return tsvFile;
   }
 
   public String getTSVName() {
     return spaceCode + "_" + projectCode;
   }
 
+  /**
+   * @return the content of the TSV prepared by {@link #createTSV()}. Prefer
+   *         {@link #writeTSV(Writer)} or {@link #getTSV()} for large projects
+   */
   public String getTSVContent() {
-    return tsvContent;
+    if (tsvLayout == null) {
+      return null;
+    }
+    StringWriter writer = new StringWriter();
+    try {
+      writeTSV(writer);
+    } catch (IOException e) {
+      // not thrown by StringWriter
+      logger.error(e.getMessage());
+    }
+    return writer.toString();
   }
 
   public List<AOpenbisSample> getEntities() {
@@ -1257,7 +1578,15 @@ public class WizardDataAggregator {
     String eName = buildExperimentName();
     experiments.add(
         new OpenbisExperiment(eName, ExperimentType.Q_SAMPLE_PREPARATION, exp.getProperties()));
+    // generated test samples are created anew when read, so changed ones are set back
+    Set<String> codes = new HashSet<String>();
+    for (AOpenbisSample s : exp.getSamples()) {
+      if (s.getCode() != null)
+        codes.add(s.getCode());
+    }
+    Map<String, Integer> testRows = rowsOf(tests, codes);
     for (AOpenbisSample s : exp.getSamples()) {
+      Integer row = s.getCode() == null ? null : testRows.get(s.getCode());
       s.setExperiment(eName);
       s.setSpace(spaceCode);
       s.setSampleType("Q_TEST_SAMPLE");
@@ -1277,8 +1606,10 @@ public class WizardDataAggregator {
         s.setCode(nextBarcode);
       }
       this.testPools = new ArrayList<AOpenbisSample>();
-      if (!tests.contains(s))
+      if (row == null)
         this.testPools.add(s);
+      else
+        tests.set(row, s);
     }
 
     for (List<ExperimentModel> fe : fractionationProperties.getAnalytes()) {
@@ -1360,38 +1691,38 @@ public class WizardDataAggregator {
   }
 
   public RegisteredAnalyteInformation getBaseAnalyteInformation() {
+    // the step is activated again when navigating back, the copied project does not change
+    String project = "/" + spaceCode + "/" + projectCode;
+    if (!project.equals(analyteProject)) {
+      analyteInformation = fetchBaseAnalyteInformation();
+      analyteProject = project;
+    }
+    return analyteInformation;
+  }
+
+  private RegisteredAnalyteInformation fetchBaseAnalyteInformation() {
     // TODO replicates?
     Map<String, List<Sample>> infos = new HashMap<String, List<Sample>>();
-    for (Sample s : existingSamples.values()) {
-      String type = s.getType().getCode();
-      if (type.equals("Q_TEST_SAMPLE")) {
-        Map<String, String> props = s.getProperties();
-        String analyte = props.get("Q_SAMPLE_TYPE");
-        if (infos.containsKey(analyte)) {
-          infos.get(analyte).add(s);
-        } else {
-          infos.put(analyte, new ArrayList<Sample>(Arrays.asList(s)));
-        }
+    // only test samples are fetched, with the properties and parents needed here
+    for (Sample s : v3.getTestSamplesOfProject(spaceCode, projectCode)) {
+      String analyte = s.getProperties().get("Q_SAMPLE_TYPE");
+      if (infos.containsKey(analyte)) {
+        infos.get(analyte).add(s);
+      } else {
+        infos.put(analyte, new ArrayList<Sample>(Arrays.asList(s)));
       }
     }
     boolean measurePeptides = false;
     boolean shortGel = false;
     String purificationMethod = "";
     if (infos.containsKey("PROTEINS")) {
-      Sample first = infos.get("PROTEINS").get(0);
-      String expID = null;
-      if (first.getExperiment() != null) {
-        expID = first.getExperiment().getIdentifier().getIdentifier();
-      }
-      for (Experiment e : openbis.getExperimentsOfProjectByCode(first.getCode().substring(0, 5))) {
-        if (e.getIdentifier().equals(expID)) {
-          Map<String, String> props = e.getProperties();
-          if (props.containsKey("Q_MS_PURIFICATION_METHOD"))
-            purificationMethod = props.get("Q_MS_PURIFICATION_METHOD");
-          if (props.containsKey("Q_ADDITIONAL_INFORMATION"))
-            shortGel = props.get("Q_ADDITIONAL_INFORMATION").contains("Short Gel");
-          break;
-        }
+      Experiment e = infos.get("PROTEINS").get(0).getExperiment();
+      if (e != null) {
+        Map<String, String> props = e.getProperties();
+        if (props.containsKey("Q_MS_PURIFICATION_METHOD"))
+          purificationMethod = props.get("Q_MS_PURIFICATION_METHOD");
+        if (props.containsKey("Q_ADDITIONAL_INFORMATION"))
+          shortGel = props.get("Q_ADDITIONAL_INFORMATION").contains("Short Gel");
       }
       if (infos.containsKey("PEPTIDES")) {
         for (Sample s : infos.get("PEPTIDES")) {
@@ -16,98 +16,254 @@
 package life.qbic.projectwizard.io;
 
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.mariadb.jdbc.MariaDbPoolDataSource;
 
 public class DBManager {
   private DBConfig config;
 
   Logger logger = LogManager.getLogger(DBManager.class);
 
-  public DBManager(DBConfig config) {
-    this.config = config;
+  private static final int MIN_POOL_SIZE = 2;
+  private static final int MAX_POOL_SIZE = 10;
+  // idle connections above the minimum pool size are closed after this time
+  private static final int MAX_IDLE_SECONDS = 300;
+  // borrowed connections that were idle for longer than this are validated first
+  private static final int VALIDATE_AFTER_IDLE_MILLIS = 1000;
+
+  // pools are shared by all managers (one per portlet UI) using the same database and user
+  private static final Map<String, DataSource> pools = new HashMap<String, DataSource>();
+
+  // maximum number of identifiers in one IN (...) clause
+  private static final int MAX_IN_CLAUSE_SIZE = 500;
+  private static final long PROJECT_NAME_CACHE_MILLIS = 60 * 1000;
+  private static final int MAX_CACHED_ONTOLOGY_CLOSURES = 32;
+  private static final int ONTOLOGY_FETCH_SIZE = 1000;
+  public static final int DEFAULT_INSERT_BATCH_SIZE = 1000;
+
+  // all descendants of ontology terms by database and root term, least recently used are dropped
+  private static final Map<String, Set<OntologyEntry>> ontologyClosures =
+      new LinkedHashMap<String, Set<OntologyEntry>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 4061373658613826358L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<OntologyEntry>> eldest) {
+          return size() > MAX_CACHED_ONTOLOGY_CLOSURES;
+        }
+      };
+  // set once the database has rejected a recursive query, e.g. MariaDB before 10.2
+  private static volatile boolean recursiveQueriesUnsupported = false;
+
+  private static final long ONTOLOGY_REFRESH_MINUTES = 60;
+  // in-memory copies of the ontology tables by database, replaced as a whole on refresh
+  private static final Map<String, OntologyIndex> ontologyIndexes =
+      new HashMap<String, OntologyIndex>();
+  private static ScheduledExecutorService ontologyRefresher;
+
+  // project names by identifier, cached per space
+  private final Map<String, ProjectNames> projectNameCache = new HashMap<String, ProjectNames>();
+
+  private static class ProjectNames {
+    private final long loaded = System.currentTimeMillis();
+    // contains an empty name for projects not found in the database
+    private final Map<String, String> names = new HashMap<String, String>();
   }
 
-  private void logout(Connection conn) {
-    try {
-      if (conn != null)
-        conn.close();
-    } catch (SQLException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
+  public DBManager(DBConfig config) {
+    this.config = config;
   }
 
-  private Connection login() {
-    String DB_URL = "jdbc:mariadb://" + config.getHostname() + ":" + config.getPort() + "/"
+  private static String getURL(DBConfig config) {
+    return "jdbc:mariadb://" + config.getHostname() + ":" + config.getPort() + "/"
         + config.getSql_database();
+  }
 
-    Connection conn = null;
-
-    try {
-      Class.forName("org.mariadb.jdbc.Driver");
-      conn = DriverManager.getConnection(DB_URL, config.getUsername(), config.getPassword());
-    } catch (Exception e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+  private static synchronized DataSource getDataSource(DBConfig config, boolean bulk)
+      throws SQLException {
+    String url = getURL(config);
+    String key = config.getUsername() + "@" + url + (bulk ? "#bulk" : "");
+    DataSource pool = pools.get(key);
+    if (pool == null) {
+      // connections for bulk loads are only kept while they are used
+      String options = "?minPoolSize=" + (bulk ? 0 : MIN_POOL_SIZE) + "&maxPoolSize="
+          + MAX_POOL_SIZE + "&maxIdleTime=" + MAX_IDLE_SECONDS + "&poolValidMinDelay="
+          + VALIDATE_AFTER_IDLE_MILLIS;
+      if (bulk) {
+        // sends a batch as multi-row statements instead of one statement per row
+        options += "&rewriteBatchedStatements=true";
+      }
+      MariaDbPoolDataSource mariaPool = new MariaDbPoolDataSource(url + options);
+      mariaPool.setUser(config.getUsername());
+      mariaPool.setPassword(config.getPassword());
+      pool = mariaPool;
+      pools.put(key, pool);
     }
-    return conn;
+    return pool;
+  }
+
+  /**
+   * Borrows a connection from the pool. Closing it returns it to the pool.
+   */
+  private Connection login() throws SQLException {
+    return getDataSource(config, false).getConnection();
   }
 
   public String getProjectName(String projectIdentifier) {
     String sql = "SELECT short_title from projects WHERE openbis_project_identifier = ?";
     String res = "";
-    Connection conn = login();
-    try {
-      PreparedStatement statement = conn.prepareStatement(sql);
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setString(1, projectIdentifier);
-      ResultSet rs = statement.executeQuery();
-      if (rs.next()) {
-        res = rs.getString(1);
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          res = rs.getString(1);
+        }
+      }
+    } catch (SQLException e) {
+      logger.error("SQL operation unsuccessful: " + e.getMessage());
+      logger.error("Could not reach SQL database, resuming without project names.");
+    }
+    return res;
+  }
+
+  /**
+   * Fetches the short titles of multiple projects with as few queries as possible. Results are
+   * cached per space for a short time.
+   * 
+   * @param identifiers project identifiers of the form /SPACE/PROJECT
+   * @return short titles by project identifier. Projects without title are mapped to an empty
+   *         string
+   */
+  public synchronized Map<String, String> getProjectNames(Collection<String> identifiers) {
+    Map<String, String> res = new HashMap<String, String>();
+    Map<String, List<String>> missingBySpace = new HashMap<String, List<String>>();
+    long now = System.currentTimeMillis();
+    for (String identifier : identifiers) {
+      String space = getSpaceOfIdentifier(identifier);
+      ProjectNames cached = projectNameCache.get(space);
+      if (cached != null && now - cached.loaded > PROJECT_NAME_CACHE_MILLIS) {
+        projectNameCache.remove(space);
+        cached = null;
+      }
+      if (cached != null && cached.names.containsKey(identifier)) {
+        res.put(identifier, cached.names.get(identifier));
+      } else {
+        if (!missingBySpace.containsKey(space)) {
+          missingBySpace.put(space, new ArrayList<String>());
+        }
+        missingBySpace.get(space).add(identifier);
+      }
+    }
+    if (missingBySpace.isEmpty()) {
+      return res;
+    }
+    List<String> missing = new ArrayList<String>();
+    for (List<String> ids : missingBySpace.values()) {
+      missing.addAll(ids);
+    }
+    Map<String, String> found = new HashMap<String, String>();
+    try (Connection conn = login()) {
+      for (int from = 0; from < missing.size(); from += MAX_IN_CLAUSE_SIZE) {
+        List<String> chunk =
+            missing.subList(from, Math.min(from + MAX_IN_CLAUSE_SIZE, missing.size()));
+        String[] ar = new String[chunk.size()];
+        for (int i = 0; i < ar.length; i++) {
+          ar[i] = "?";
+        }
+        String sql = "SELECT openbis_project_identifier, short_title from projects "
+            + "WHERE openbis_project_identifier IN (" + String.join(", ", ar) + ")";
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+          int i = 0;
+          for (String identifier : chunk) {
+            i++;
+            statement.setString(i, identifier);
+          }
+          try (ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+              String name = rs.getString(2);
+              found.put(rs.getString(1), name == null ? "" : name);
+            }
+          }
+        }
       }
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
-      e.printStackTrace();
-    } catch (NullPointerException n) {
       logger.error("Could not reach SQL database, resuming without project names.");
+      for (String identifier : missing) {
+        res.put(identifier, "");
+      }
+      // nothing is cached, so the names are fetched again once the database is reachable
+      return res;
+    }
+    for (String space : missingBySpace.keySet()) {
+      ProjectNames cached = projectNameCache.get(space);
+      if (cached == null) {
+        cached = new ProjectNames();
+        projectNameCache.put(space, cached);
+      }
+      for (String identifier : missingBySpace.get(space)) {
+        String name = found.containsKey(identifier) ? found.get(identifier) : "";
+        cached.names.put(identifier, name);
+        res.put(identifier, name);
+      }
     }
-    logout(conn);
     return res;
   }
 
+  private String getSpaceOfIdentifier(String projectIdentifier) {
+    String[] split = projectIdentifier.split("/");
+    return split.length > 1 ? split[1] : "";
+  }
+
+  private synchronized void invalidateProjectNames(String projectIdentifier) {
+    projectNameCache.remove(getSpaceOfIdentifier(projectIdentifier));
+  }
+
   public int isProjectInDB(String projectIdentifier) {
     logger.info("Looking for project " + projectIdentifier + " in the DB");
     String sql = "SELECT * from projects WHERE openbis_project_identifier = ?";
     int res = -1;
-    Connection conn = login();
-    try {
-      PreparedStatement statement = conn.prepareStatement(sql);
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setString(1, projectIdentifier);
-      ResultSet rs = statement.executeQuery();
-      if (rs.next()) {
-        res = rs.getInt("id");
-        logger.info("project found!");
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          res = rs.getInt("id");
+          logger.info("project found!");
+        }
       }
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
       e.printStackTrace();
     }
-    logout(conn);
     return res;
   }
 
@@ -116,23 +272,23 @@ public class DBManager {
     if (exists < 0) {
       logger.info("Trying to add project " + projectIdentifier + " to the person DB");
       String sql = "INSERT INTO projects (openbis_project_identifier, short_title) VALUES(?, ?)";
-      Connection conn = login();
-      try (PreparedStatement statement =
-          conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+      try (Connection conn = login();
+          PreparedStatement statement =
+              conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
         statement.setString(1, projectIdentifier);
         statement.setString(2, projectName);
         statement.execute();
-        ResultSet rs = statement.getGeneratedKeys();
-        if (rs.next()) {
-          logout(conn);
-          logger.info("Successful.");
-          return rs.getInt(1);
+        invalidateProjectNames(projectIdentifier);
+        try (ResultSet rs = statement.getGeneratedKeys()) {
+          if (rs.next()) {
+            logger.info("Successful.");
+            return rs.getInt(1);
+          }
         }
       } catch (SQLException e) {
         logger.error("SQL operation unsuccessful: " + e.getMessage());
         e.printStackTrace();
       }
-      logout(conn);
       return -1;
     }
     return exists;
@@ -143,22 +299,21 @@ public class DBManager {
     String sql =
         "SELECT * from projects_persons WHERE person_id = ? AND project_id = ? and project_role = ?";
     boolean res = false;
-    Connection conn = login();
-    try {
-      PreparedStatement statement = conn.prepareStatement(sql);
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setInt(1, personID);
       statement.setInt(2, projectID);
       statement.setString(3, role);
-      ResultSet rs = statement.executeQuery();
-      if (rs.next()) {
-        res = true;
-        logger.info("person already has this role!");
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          res = true;
+          logger.info("person already has this role!");
+        }
       }
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
       e.printStackTrace();
     }
-    logout(conn);
     return res;
   }
 
@@ -167,9 +322,9 @@ public class DBManager {
       logger.info("Trying to add person with role " + role + " to a project.");
       String sql =
           "INSERT INTO projects_persons (project_id, person_id, project_role) VALUES(?, ?, ?)";
-      Connection conn = login();
-      try (PreparedStatement statement =
-          conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+      try (Connection conn = login();
+          PreparedStatement statement =
+              conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
         statement.setInt(1, projectID);
         statement.setInt(2, personID);
         statement.setString(3, role);
@@ -179,36 +334,38 @@ public class DBManager {
         logger.error("SQL operation unsuccessful: " + e.getMessage());
         e.printStackTrace();
       }
-      logout(conn);
     }
   }
 
   /**
-   * returns a map of principal investigator first+last names along with the pi_id. only returns
-   * active investigators
+   * returns a map of person ids along with their first+last names. only returns active persons
    * 
+   * @param afterID only persons with a larger id are returned, -1 for all persons
    * @return
+   * @throws SQLException if the database can not be reached
    */
-  private Map<String, Integer> getPersonsWithIDs() {
-    String sql = "SELECT id, first_name, last_name FROM person WHERE active = 1";
-    Map<String, Integer> res = new HashMap<String, Integer>();
-    Connection conn = login();
-    try (PreparedStatement statement = conn.prepareStatement(sql)) {
-      ResultSet rs = statement.executeQuery();
-      while (rs.next()) {
-        int pi_id = rs.getInt("id");
-        String first = rs.getString("first_name");
-        String last = rs.getString("last_name");
-        res.put(first + " " + last, pi_id);
+  Map<Integer, String> getActivePersons(int afterID) throws SQLException {
+    String sql = "SELECT id, first_name, last_name FROM person WHERE active = 1 AND id > ?";
+    Map<Integer, String> res = new HashMap<Integer, String>();
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
+      statement.setInt(1, afterID);
+      try (ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          int pi_id = rs.getInt("id");
+          String first = rs.getString("first_name");
+          String last = rs.getString("last_name");
+          res.put(pi_id, first + " " + last);
+        }
       }
-      statement.close();
-    } catch (SQLException e) {
-      e.printStackTrace();
     }
-    logout(conn);
     return res;
   }
 
+  private PeopleDirectory getPeopleDirectory() {
+    return PeopleDirectory.getInstance(config.getUsername() + "@" + getURL(config), this);
+  }
+
   public boolean genericInsertIntoTable(String table, Map<String, Object> values) {
     List<String> keys = new ArrayList<String>(values.keySet());
     String key_string = String.join(", ", keys);
@@ -219,8 +376,7 @@ public class DBManager {
     String val_string = String.join(", ", ar);
     String sql = "INSERT INTO " + table + " (" + key_string + ") VALUES(" + val_string + ")";
     // return false;
-    Connection conn = login();
-    try (
+    try (Connection conn = login();
         PreparedStatement statement = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
       int i = 0;
       for (String key : keys) {
@@ -231,35 +387,141 @@ public class DBManager {
         if (val instanceof Integer)
           statement.setInt(i, (int) val);
       }
-      boolean res = statement.execute();
-      logout(conn);
-      return res;
+      return statement.execute();
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
     }
-    logout(conn);
     return false;
   }
 
+  /**
+   * Inserts multiple rows into a table in one transaction, reusing one prepared statement for all
+   * rows. Columns missing in a row are inserted as null. As with single inserts, rows the database
+   * rejects are logged and skipped: if a batch fails, its rows are inserted one by one.
+   * 
+   * @param table name of the table
+   * @param rows column names mapped to String or Integer values
+   * @param batchSize number of rows sent to the database at once
+   * @param rewriteBatchedStatements true to send each batch as multi-row statements
+   * @return number of inserted rows
+   * @throws IllegalArgumentException if a value is neither String, Integer nor null
+   * @throws SQLException if the database can not be reached or the transaction was rolled back
+   */
+  public int genericInsertIntoTable(String table, List<Map<String, Object>> rows, int batchSize,
+      boolean rewriteBatchedStatements) throws SQLException {
+    Set<String> columns = new LinkedHashSet<String>();
+    for (Map<String, Object> row : rows) {
+      for (Map.Entry<String, Object> entry : row.entrySet()) {
+        Object val = entry.getValue();
+        if (val != null && !(val instanceof String) && !(val instanceof Integer)) {
+          throw new IllegalArgumentException("Value of column " + entry.getKey() + " in table "
+              + table + " is neither String nor Integer: " + val.getClass().getName());
+        }
+      }
+      columns.addAll(row.keySet());
+    }
+    if (rows.isEmpty() || columns.isEmpty()) {
+      return 0;
+    }
+    String key_string = String.join(", ", columns);
+    String[] ar = new String[columns.size()];
+    for (int i = 0; i < ar.length; i++) {
+      ar[i] = "?";
+    }
+    String val_string = String.join(", ", ar);
+    String sql = "INSERT INTO " + table + " (" + key_string + ") VALUES(" + val_string + ")";
+    long start = System.currentTimeMillis();
+    int inserted = 0;
+    try (Connection conn = getDataSource(config, rewriteBatchedStatements).getConnection()) {
+      conn.setAutoCommit(false);
+      boolean committed = false;
+      try (PreparedStatement statement = conn.prepareStatement(sql)) {
+        for (int from = 0; from < rows.size(); from += batchSize) {
+          List<Map<String, Object>> batch =
+              rows.subList(from, Math.min(rows.size(), from + batchSize));
+          Savepoint beforeBatch = conn.setSavepoint();
+          try {
+            for (Map<String, Object> row : batch) {
+              setRowValues(statement, columns, row);
+              statement.addBatch();
+            }
+            statement.executeBatch();
+            inserted += batch.size();
+          } catch (BatchUpdateException e) {
+            statement.clearBatch();
+            conn.rollback(beforeBatch);
+            inserted += insertRowsSeparately(conn, statement, table, columns, batch);
+          }
+        }
+        conn.commit();
+        committed = true;
+      } finally {
+        if (!committed) {
+          logger.error("Could not insert rows into " + table + ", rolling back.");
+          conn.rollback();
+        }
+        conn.setAutoCommit(true);
+      }
+    }
+    long millis = Math.max(1, System.currentTimeMillis() - start);
+    logger.info("Inserted " + inserted + " of " + rows.size() + " rows into " + table + " in "
+        + millis + " ms (" + (inserted * 1000 / millis) + " rows/s)");
+    return inserted;
+  }
+
+  private void setRowValues(PreparedStatement statement, Set<String> columns,
+      Map<String, Object> row) throws SQLException {
+    int i = 0;
+    for (String column : columns) {
+      i++;
+      Object val = row.get(column);
+      if (val instanceof String)
+        statement.setString(i, (String) val);
+      else if (val instanceof Integer)
+        statement.setInt(i, (int) val);
+      else
+        statement.setNull(i, Types.VARCHAR);
+    }
+  }
+
+  /**
+   * Inserts the rows of a failed batch one by one, skipping those the database rejects
+   */
+  private int insertRowsSeparately(Connection conn, PreparedStatement statement, String table,
+      Set<String> columns, List<Map<String, Object>> rows) throws SQLException {
+    int inserted = 0;
+    for (Map<String, Object> row : rows) {
+      Savepoint beforeRow = conn.setSavepoint();
+      try {
+        setRowValues(statement, columns, row);
+        statement.executeUpdate();
+        inserted++;
+      } catch (SQLException e) {
+        conn.rollback(beforeRow);
+        logger.error("Skipping row " + row + " of " + table + ": " + e.getMessage());
+      }
+    }
+    return inserted;
+  }
+
   public int addExperimentToDB(String id) {
     int exists = isExpInDB(id);
     if (exists < 0) {
       String sql = "INSERT INTO experiments (openbis_experiment_identifier) VALUES(?)";
-      Connection conn = login();
-      try (PreparedStatement statement =
-          conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+      try (Connection conn = login();
+          PreparedStatement statement =
+              conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
         statement.setString(1, id);
         statement.execute();
-        ResultSet rs = statement.getGeneratedKeys();
-        if (rs.next()) {
-          logout(conn);
-          return rs.getInt(1);
+        try (ResultSet rs = statement.getGeneratedKeys()) {
+          if (rs.next()) {
+            return rs.getInt(1);
+          }
         }
       } catch (SQLException e) {
         logger.error("Was trying to add experiment " + id + " to the person DB");
         logger.error("SQL operation unsuccessful: " + e.getMessage());
       }
-      logout(conn);
       return -1;
     }
     logger.info("added experiment do mysql db");
@@ -270,20 +532,19 @@ public class DBManager {
     logger.info("Looking for experiment " + id + " in the DB");
     String sql = "SELECT * from experiments WHERE openbis_experiment_identifier = ?";
     int res = -1;
-    Connection conn = login();
-    try {
-      PreparedStatement statement = conn.prepareStatement(sql);
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setString(1, id);
-      ResultSet rs = statement.executeQuery();
-      if (rs.next()) {
-        logger.info("experiment found!");
-        res = rs.getInt("id");
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          logger.info("experiment found!");
+          res = rs.getInt("id");
+        }
       }
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
       e.printStackTrace();
     }
-    logout(conn);
     return res;
   }
 
@@ -295,9 +556,9 @@ public class DBManager {
       logger.info("Trying to add person with role " + role + " to an experiment.");
       String sql =
           "INSERT INTO experiments_persons (experiment_id, person_id, experiment_role) VALUES(?, ?, ?)";
-      Connection conn = login();
-      try (PreparedStatement statement =
-          conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+      try (Connection conn = login();
+          PreparedStatement statement =
+              conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
         statement.setInt(1, expID);
         statement.setInt(2, personID);
         statement.setString(3, role);
@@ -307,7 +568,6 @@ public class DBManager {
         logger.error("SQL operation unsuccessful: " + e.getMessage());
         e.printStackTrace();
       }
-      logout(conn);
     }
   }
 
@@ -316,96 +576,290 @@ public class DBManager {
     String sql =
         "SELECT * from experiments_persons WHERE person_id = ? AND experiment_id = ? and experiment_role = ?";
     boolean res = false;
-    Connection conn = login();
-    try {
-      PreparedStatement statement = conn.prepareStatement(sql);
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setInt(1, personID);
       statement.setInt(2, expID);
       statement.setString(3, role);
-      ResultSet rs = statement.executeQuery();
-      if (rs.next()) {
-        res = true;
-        logger.info("person already has this role!");
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          res = true;
+          logger.info("person already has this role!");
+        }
       }
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
       e.printStackTrace();
     }
-    logout(conn);
     return res;
   }
 
-  private void endQuery(Connection c, PreparedStatement p) {
-    if (p != null)
+  /**
+   * Writes a project, the roles of its people and its experiments in one transaction. Rows that
+   * already exist are kept, so registering the same project again only adds what is missing.
+   * 
+   * @return id of the project in the database
+   * @throws SQLException if the database can not be reached or the transaction was rolled back
+   */
+  public int registerProject(ProjectDBRegistration registration) throws SQLException {
+    String projectIdentifier = registration.getProjectIdentifier();
+    logger.info("Adding project " + projectIdentifier + ", its people and experiments to the DB");
+    // conditional inserts, since the tables have no unique keys for these columns
+    String insertProject = "INSERT INTO projects (openbis_project_identifier, short_title) "
+        + "SELECT ?, ? FROM DUAL WHERE NOT EXISTS "
+        + "(SELECT 1 FROM projects WHERE openbis_project_identifier = ?)";
+    String insertProjectPerson =
+        "INSERT INTO projects_persons (project_id, person_id, project_role) "
+            + "SELECT ?, ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM projects_persons "
+            + "WHERE project_id = ? AND person_id = ? AND project_role = ?)";
+    String insertExperiment = "INSERT INTO experiments (openbis_experiment_identifier) "
+        + "SELECT ? FROM DUAL WHERE NOT EXISTS "
+        + "(SELECT 1 FROM experiments WHERE openbis_experiment_identifier = ?)";
+    String insertExperimentPerson =
+        "INSERT INTO experiments_persons (experiment_id, person_id, experiment_role) "
+            + "SELECT ?, ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM experiments_persons "
+            + "WHERE experiment_id = ? AND person_id = ? AND experiment_role = ?)";
+    try (Connection conn = login()) {
+      conn.setAutoCommit(false);
+      boolean committed = false;
       try {
-        p.close();
-      } catch (Exception e) {
-        logger.error("PreparedStatement close problem");
+        try (PreparedStatement statement = conn.prepareStatement(insertProject)) {
+          statement.setString(1, projectIdentifier);
+          statement.setString(2, registration.getProjectName());
+          statement.setString(3, projectIdentifier);
+          statement.execute();
+        }
+        Integer projectID = getIDsByIdentifier(conn, "projects", "openbis_project_identifier",
+            Arrays.asList(projectIdentifier)).get(projectIdentifier);
+        if (projectID == null) {
+          throw new SQLException("Project " + projectIdentifier + " was not inserted.");
+        }
+
+        try (PreparedStatement statement = conn.prepareStatement(insertProjectPerson)) {
+          for (ProjectDBRegistration.PersonRole person : registration.getProjectPersons()) {
+            statement.setInt(1, projectID);
+            statement.setInt(2, person.getPersonID());
+            statement.setString(3, person.getRole());
+            statement.setInt(4, projectID);
+            statement.setInt(5, person.getPersonID());
+            statement.setString(6, person.getRole());
+            statement.addBatch();
+          }
+          statement.executeBatch();
+        }
+
+        Map<String, Integer> experiments = registration.getExperiments();
+        if (!experiments.isEmpty()) {
+          try (PreparedStatement statement = conn.prepareStatement(insertExperiment)) {
+            for (String identifier : experiments.keySet()) {
+              statement.setString(1, identifier);
+              statement.setString(2, identifier);
+              statement.addBatch();
+            }
+            statement.executeBatch();
+          }
+          Map<String, Integer> expIDs = getIDsByIdentifier(conn, "experiments",
+              "openbis_experiment_identifier", experiments.keySet());
+          try (PreparedStatement statement = conn.prepareStatement(insertExperimentPerson)) {
+            for (String identifier : experiments.keySet()) {
+              int personID = experiments.get(identifier);
+              if (personID > 0) {
+                Integer expID = expIDs.get(identifier);
+                if (expID == null) {
+                  throw new SQLException("Experiment " + identifier + " was not inserted.");
+                }
+                statement.setInt(1, expID);
+                statement.setInt(2, personID);
+                statement.setString(3, "Contact");
+                statement.setInt(4, expID);
+                statement.setInt(5, personID);
+                statement.setString(6, "Contact");
+                statement.addBatch();
+              }
+            }
+            statement.executeBatch();
+          }
+        }
+        conn.commit();
+        committed = true;
+        invalidateProjectNames(projectIdentifier);
+        logger.info("Successful.");
+        return projectID;
+      } finally {
+        if (!committed) {
+          logger.error("Could not add project " + projectIdentifier + " to the DB, rolling back.");
+          conn.rollback();
+        }
+        // the connection is returned to the pool
+        conn.setAutoCommit(true);
       }
-    if (c != null)
-      try {
-        logout(c);
-      } catch (Exception e) {
-        logger.error("Database Connection close problem");
+    }
+  }
+
+  private Map<String, Integer> getIDsByIdentifier(Connection conn, String table,
+      String identifierColumn, Collection<String> identifiers) throws SQLException {
+    Map<String, Integer> res = new HashMap<String, Integer>();
+    List<String> ids = new ArrayList<String>(identifiers);
+    for (int from = 0; from < ids.size(); from += MAX_IN_CLAUSE_SIZE) {
+      List<String> chunk = ids.subList(from, Math.min(from + MAX_IN_CLAUSE_SIZE, ids.size()));
+      String[] ar = new String[chunk.size()];
+      for (int i = 0; i < ar.length; i++) {
+        ar[i] = "?";
       }
+      String sql = "SELECT id, " + identifierColumn + " FROM " + table + " WHERE "
+          + identifierColumn + " IN (" + String.join(", ", ar) + ")";
+      try (PreparedStatement statement = conn.prepareStatement(sql)) {
+        int i = 0;
+        for (String identifier : chunk) {
+          i++;
+          statement.setString(i, identifier);
+        }
+        try (ResultSet rs = statement.executeQuery()) {
+          while (rs.next()) {
+            res.put(rs.getString(2), rs.getInt(1));
+          }
+        }
+      }
+    }
+    return res;
   }
 
+  /**
+   * Returns the active people from the shared people directory, which is refreshed first
+   * 
+   * @return unmodifiable map of full names to person ids
+   */
   public Map<String, Integer> fetchPeople() {
     Map<String, Integer> map = new HashMap<String, Integer>();
     try {
-      map = getPersonsWithIDs();
-    } catch (NullPointerException e) {
+      map = getPeopleDirectory().refresh();
+    } catch (SQLException e) {
+      logger.error("SQL operation unsuccessful: " + e.getMessage());
       map.put("No Connection", -1);
     }
     return map;
   }
 
+  /**
+   * Returns the in-memory index of the ontology tables, loading it on first use. The index is
+   * refreshed in the background.
+   * 
+   * @return the index or null, if it could not be loaded
+   */
+  public OntologyIndex getOntologyIndex() {
+    String key = getURL(config);
+    synchronized (ontologyIndexes) {
+      OntologyIndex index = ontologyIndexes.get(key);
+      if (index == null) {
+        try {
+          index = loadOntologyIndex();
+        } catch (SQLException e) {
+          logger.error("Could not load ontology: " + e.getMessage());
+          return null;
+        }
+        ontologyIndexes.put(key, index);
+        scheduleOntologyRefresh(key);
+      }
+      return index;
+    }
+  }
+
+  private void scheduleOntologyRefresh(String key) {
+    if (ontologyRefresher == null) {
+      ontologyRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ontology-index-refresh");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    ontologyRefresher.scheduleWithFixedDelay(() -> {
+      try {
+        OntologyIndex index = loadOntologyIndex();
+        synchronized (ontologyIndexes) {
+          ontologyIndexes.put(key, index);
+        }
+      } catch (SQLException | RuntimeException e) {
+        // keep the index of the last successful load
+        logger.error("Could not refresh ontology: " + e.getMessage());
+      }
+    }, ONTOLOGY_REFRESH_MINUTES, ONTOLOGY_REFRESH_MINUTES, TimeUnit.MINUTES);
+  }
+
+  private OntologyIndex loadOntologyIndex() throws SQLException {
+    long start = System.currentTimeMillis();
+    List<OntologyEntry> entries = new ArrayList<OntologyEntry>();
+    List<OntologyRelation> relations = new ArrayList<OntologyRelation>();
+    try (Connection conn = login()) {
+      try (PreparedStatement statement =
+          conn.prepareStatement("SELECT id, name, description FROM ontology_entry")) {
+        statement.setFetchSize(ONTOLOGY_FETCH_SIZE);
+        try (ResultSet rs = statement.executeQuery()) {
+          while (rs.next()) {
+            entries.add(new OntologyEntry(rs.getString(1), rs.getString(2), rs.getString(3)));
+          }
+        }
+      }
+      try (PreparedStatement statement = conn.prepareStatement(
+          "SELECT child_entry, parent_entry, relation_type FROM ontology_relation")) {
+        statement.setFetchSize(ONTOLOGY_FETCH_SIZE);
+        try (ResultSet rs = statement.executeQuery()) {
+          while (rs.next()) {
+            relations.add(new OntologyRelation(rs.getString(1), rs.getString(2), rs.getString(3)));
+          }
+        }
+      }
+    }
+    List<String> roots = new ArrayList<String>();
+    for (TissueClass c : TissueClass.values()) {
+      roots.add(c.toString());
+    }
+    OntologyIndex index = new OntologyIndex(entries, relations, roots);
+    logger.info("Loaded " + index.size() + " ontology terms in "
+        + (System.currentTimeMillis() - start) + " ms");
+    return index;
+  }
+
   public Set<String> getFullTissueSet() {
+    OntologyIndex index = getOntologyIndex();
+    if (index != null) {
+      return new HashSet<String>(index.getNames());
+    }
     Set<String> res = new HashSet<String>();
     String sql = "SELECT name FROM ontology_entry;";
-    Connection conn = login();
-    try (PreparedStatement statement = conn.prepareStatement(sql)) {
-      ResultSet rs = statement.executeQuery();
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql);
+        ResultSet rs = statement.executeQuery()) {
       while (rs.next()) {
         res.add(rs.getString(1));
       }
-      // statement.close();
     } catch (SQLException e) {
       e.printStackTrace();
     }
-    logout(conn);
-    System.out.println(res.size());
     return res;
   }
 
-  private boolean saveOldDescription(String projectIdentifier) {
+  private boolean saveOldDescription(Connection conn, String projectIdentifier)
+      throws SQLException {
     String sql = "SELECT * from projects WHERE openbis_project_identifier = ?";
     int id = -1;
     String oldDescription = "";
     String oldTitle = "";
-    Connection conn = login();
-    PreparedStatement statement = null;
-    try {
-      statement = conn.prepareStatement(sql);
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setString(1, projectIdentifier);
-      ResultSet rs = statement.executeQuery();
-      if (rs.next()) {
-        id = rs.getInt("id");
-        oldDescription = rs.getString("long_description");
-        oldTitle = rs.getString("short_title");
+      try (ResultSet rs = statement.executeQuery()) {
+        if (rs.next()) {
+          id = rs.getInt("id");
+          oldDescription = rs.getString("long_description");
+          oldTitle = rs.getString("short_title");
+        }
       }
-    } catch (SQLException e) {
-      logger.error("SQL operation unsuccessful: " + e.getMessage());
-      e.printStackTrace();
     }
     Date date = new Date();
     Timestamp timestamp = new Timestamp(date.getTime());
     sql =
         "INSERT INTO projects_history (project_id, timestamp, long_description, short_title) VALUES(?, ?, ?, ?)";
-    statement = null;
     int res = -1;
-    try {
-      statement = conn.prepareStatement(sql);
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setInt(1, id);
       statement.setTimestamp(2, timestamp);
       statement.setString(3, oldDescription);
@@ -413,94 +867,163 @@ public class DBManager {
       statement.execute();
       res = statement.getUpdateCount();
       logger.info("Successful.");
-    } catch (SQLException e) {
-      logger.error("SQL operation unsuccessful: " + e.getMessage());
-      e.printStackTrace();
-    } finally {
-      endQuery(conn, statement);
     }
     return res != -1;
   }
 
   public boolean changeLongProjectDescription(String projectIdentifier, String description) {
     logger.info("Adding long description of project " + projectIdentifier);
-    boolean saved = saveOldDescription(projectIdentifier);
-    if (!saved)
-      logger.warn("Could not save old project description to database!");
     String sql = "UPDATE projects SET long_description = ? WHERE openbis_project_identifier = ?";
-    Connection conn = login();
-    PreparedStatement statement = null;
     int res = -1;
-    try {
-      statement = conn.prepareStatement(sql);
-      statement.setString(1, description);
-      statement.setString(2, projectIdentifier);
-      statement.execute();
-      res = statement.getUpdateCount();
-      logger.info("Successful.");
+    try (Connection conn = login()) {
+      boolean saved = false;
+      try {
+        saved = saveOldDescription(conn, projectIdentifier);
+      } catch (SQLException e) {
+        logger.error("SQL operation unsuccessful: " + e.getMessage());
+      }
+      if (!saved)
+        logger.warn("Could not save old project description to database!");
+      try (PreparedStatement statement = conn.prepareStatement(sql)) {
+        statement.setString(1, description);
+        statement.setString(2, projectIdentifier);
+        statement.execute();
+        res = statement.getUpdateCount();
+        logger.info("Successful.");
+      }
     } catch (SQLException e) {
       logger.error("SQL operation unsuccessful: " + e.getMessage());
       e.printStackTrace();
-    } finally {
-      endQuery(conn, statement);
     }
     return res != -1;
   }
 
   public boolean findTissueInOntology(String tissue) {
+    OntologyIndex index = getOntologyIndex();
+    if (index != null) {
+      return index.containsName(tissue);
+    }
     String sql = "SELECT * FROM ontology_entry WHERE name = ?;";
-    Connection conn = login();
-    try (PreparedStatement statement = conn.prepareStatement(sql)) {
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
       statement.setString(1, tissue);
-      ResultSet rs = statement.executeQuery();
-      while (rs.next()) {
-        return true;
+      try (ResultSet rs = statement.executeQuery()) {
+        return rs.next();
       }
-      // statement.close();
     } catch (SQLException e) {
       e.printStackTrace();
     }
-    logout(conn);
     return false;
   }
 
+  /**
+   * Returns all direct and indirect descendants of an ontology term. They are taken from the
+   * ontology index or, if it can not be loaded, fetched with one recursive query (or level by
+   * level, if the database does not support it) and cached.
+   * 
+   * @param term id of the root term
+   * @return unmodifiable set of descendants, empty if the database can not be reached
+   */
+  public Set<OntologyEntry> getAllDescendantsOfOntologyTerm(String term) {
+    OntologyIndex index = getOntologyIndex();
+    if (index != null) {
+      return Collections.unmodifiableSet(index.getDescendants(term));
+    }
+    String key = getURL(config) + "#" + term;
+    synchronized (ontologyClosures) {
+      Set<OntologyEntry> cached = ontologyClosures.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    Set<OntologyEntry> res = null;
+    if (!recursiveQueriesUnsupported) {
+      try {
+        res = getDescendantsRecursively(term);
+      } catch (SQLException e) {
+        logger.warn("Recursive ontology query failed, falling back to one query per level: "
+            + e.getMessage());
+        // syntax error: the server does not know WITH RECURSIVE
+        if ("42000".equals(e.getSQLState())) {
+          recursiveQueriesUnsupported = true;
+        }
+      }
+    }
+    if (res == null) {
+      res = getDescendantsOfOntologyTerm(new ArrayList<String>(Arrays.asList(term)), true);
+    }
+    res = Collections.unmodifiableSet(res);
+    // empty results might be caused by connection problems and are not cached
+    if (!res.isEmpty()) {
+      synchronized (ontologyClosures) {
+        ontologyClosures.put(key, res);
+      }
+    }
+    return res;
+  }
+
+  private Set<OntologyEntry> getDescendantsRecursively(String term) throws SQLException {
+    // UNION removes duplicates, which also stops the recursion on cycles
+    String sql = "WITH RECURSIVE descendants (id) AS ("
+        + "SELECT child_entry FROM ontology_relation WHERE parent_entry = ? "
+        + "UNION SELECT ontology_relation.child_entry FROM ontology_relation, descendants "
+        + "WHERE ontology_relation.parent_entry = descendants.id) "
+        + "SELECT ontology_entry.id, ontology_entry.name, ontology_entry.description "
+        + "FROM ontology_entry, descendants WHERE ontology_entry.id = descendants.id";
+    Set<OntologyEntry> res = new HashSet<OntologyEntry>();
+    try (Connection conn = login();
+        PreparedStatement statement = conn.prepareStatement(sql)) {
+      statement.setString(1, term);
+      // stream the rows instead of loading the whole result at once
+      statement.setFetchSize(ONTOLOGY_FETCH_SIZE);
+      try (ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          res.add(new OntologyEntry(rs.getString(1), rs.getString(2), rs.getString(3)));
+        }
+      }
+    }
+    return res;
+  }
+
   public Set<OntologyEntry> getDescendantsOfOntologyTerm(List<String> terms, boolean all) {
     List<String> parentsToSearch = new ArrayList<String>();
     parentsToSearch.addAll(terms);
     Set<OntologyEntry> res = new HashSet<OntologyEntry>();
-    String[] ar = new String[parentsToSearch.size()];
-    for (int i = 0; i < ar.length; i++) {
-      ar[i] = "?";
-    }
-    String val_string = String.join(", ", ar);
-    String sql =
-        "SELECT ontology_entry.*, ontology_relation.* FROM ontology_entry, ontology_relation "
-            + "WHERE ontology_relation.parent_entry IN (" + val_string + ") "
-            + "AND ontology_relation.child_entry = ontology_entry.id;";
-    Connection conn = login();
-    try (PreparedStatement statement = conn.prepareStatement(sql)) {
-      int i = 0;
-      for (String term : parentsToSearch) {
-        i++;
-        statement.setString(i, term);
+    Set<String> visited = new HashSet<String>(terms);
+    // one level of the ontology per query, all on the same connection
+    try (Connection conn = login()) {
+      while (!parentsToSearch.isEmpty()) {
+        String[] ar = new String[parentsToSearch.size()];
+        for (int i = 0; i < ar.length; i++) {
+          ar[i] = "?";
+        }
+        String val_string = String.join(", ", ar);
+        String sql =
+            "SELECT ontology_entry.*, ontology_relation.* FROM ontology_entry, ontology_relation "
+                + "WHERE ontology_relation.parent_entry IN (" + val_string + ") "
+                + "AND ontology_relation.child_entry = ontology_entry.id;";
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+          int i = 0;
+          for (String term : parentsToSearch) {
+            i++;
+            statement.setString(i, term);
+          }
+          parentsToSearch.clear();
+          try (ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+              String term = rs.getString("ontology_entry.id");
+              String label = rs.getString("ontology_entry.name");
+              String desc = rs.getString("ontology_entry.description");
+              if (all && visited.add(term))
+                parentsToSearch.add(term);
+              res.add(new OntologyEntry(term, label, desc));
+            }
+          }
+        }
       }
-      parentsToSearch.clear();
-      ResultSet rs = statement.executeQuery();
-      while (rs.next()) {
-        String term = rs.getString("ontology_entry.id");
-        String label = rs.getString("ontology_entry.name");
-        String desc = rs.getString("ontology_entry.description");
-        if (all)
-          parentsToSearch.add(term);
-        res.add(new OntologyEntry(term, label, desc));
-      }
-      // statement.close();
     } catch (SQLException e) {
       e.printStackTrace();
     }
-    logout(conn);
-    if (!parentsToSearch.isEmpty())
-      res.addAll(getDescendantsOfOntologyTerm(parentsToSearch, all));
     return res;
   }
 
@@ -0,0 +1,145 @@
+package life.qbic.projectwizard.io;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable in-memory copy of the ontology tables. Terms are numbered, relations are stored as
+ * arrays of child numbers and the descendants of frequently used roots are precomputed, so name
+ * lookups and subtree queries do not need the database.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class OntologyIndex {
+
+  private final String[] ids;
+  private final String[] names;
+  private final String[] descriptions;
+  private final Map<String, Integer> idToIndex;
+  private final Map<String, Integer> nameToIndex;
+  private final int[][] children;
+  // descendants of the precomputed roots by root index
+  private final Map<Integer, BitSet> closures;
+  private final Set<String> nameSet;
+
+  /**
+   * @param entries all terms of the ontology
+   * @param relations relations between terms. Relations to unknown terms are ignored
+   * @param roots ids of the terms whose descendants are precomputed
+   */
+  public OntologyIndex(List<OntologyEntry> entries, List<OntologyRelation> relations,
+      Collection<String> roots) {
+    int size = entries.size();
+    ids = new String[size];
+    names = new String[size];
+    descriptions = new String[size];
+    idToIndex = new HashMap<String, Integer>(size * 2);
+    nameToIndex = new HashMap<String, Integer>(size * 2);
+    for (int i = 0; i < size; i++) {
+      OntologyEntry e = entries.get(i);
+      ids[i] = e.getId();
+      names[i] = e.getLabel();
+      descriptions[i] = e.getDescription();
+      idToIndex.put(e.getId(), i);
+      if (e.getLabel() != null) {
+        nameToIndex.put(e.getLabel(), i);
+      }
+    }
+    nameSet = Collections.unmodifiableSet(new HashSet<String>(nameToIndex.keySet()));
+
+    int[] childCounts = new int[size];
+    List<int[]> edges = new ArrayList<int[]>(relations.size());
+    for (OntologyRelation r : relations) {
+      Integer child = idToIndex.get(r.getFrom());
+      Integer parent = idToIndex.get(r.getTo());
+      if (child != null && parent != null) {
+        edges.add(new int[] {parent, child});
+        childCounts[parent]++;
+      }
+    }
+    children = new int[size][];
+    for (int i = 0; i < size; i++) {
+      children[i] = new int[childCounts[i]];
+    }
+    int[] childPos = new int[size];
+    for (int[] edge : edges) {
+      children[edge[0]][childPos[edge[0]]++] = edge[1];
+    }
+
+    closures = new HashMap<Integer, BitSet>();
+    for (String root : roots) {
+      Integer index = idToIndex.get(root);
+      if (index != null) {
+        closures.put(index, computeDescendants(index));
+      }
+    }
+  }
+
+  private BitSet computeDescendants(int root) {
+    BitSet res = new BitSet(ids.length);
+    int[] stack = new int[ids.length + 1];
+    int top = 0;
+    stack[top++] = root;
+    while (top > 0) {
+      int current = stack[--top];
+      for (int child : children[current]) {
+        // visited terms are skipped, which also stops on cycles
+        if (!res.get(child)) {
+          res.set(child);
+          stack[top++] = child;
+        }
+      }
+    }
+    return res;
+  }
+
+  private BitSet getDescendantBits(int root) {
+    BitSet res = closures.get(root);
+    if (res == null) {
+      res = computeDescendants(root);
+    }
+    return res;
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * @return true if a term with exactly this name exists
+   */
+  public boolean containsName(String name) {
+    return nameToIndex.containsKey(name);
+  }
+
+  /**
+   * @return unmodifiable set of all term names
+   */
+  public Set<String> getNames() {
+    return nameSet;
+  }
+
+  /**
+   * @return all direct and indirect descendants of a term, empty if the term is unknown
+   */
+  public Set<OntologyEntry> getDescendants(String rootId) {
+    Set<OntologyEntry> res = new HashSet<OntologyEntry>();
+    Integer root = idToIndex.get(rootId);
+    if (root != null) {
+      BitSet bits = getDescendantBits(root);
+      for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+        res.add(new OntologyEntry(ids[i], names[i], descriptions[i]));
+      }
+    }
+    return res;
+  }
+
+}
@@ -3,8 +3,8 @@ package life.qbic.projectwizard.io;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -206,26 +206,37 @@ public class OntologyParser {
   }
 
   private void loadOntologyToDB(File file)
-      throws XPathExpressionException, ParserConfigurationException, SAXException, IOException {
+      throws XPathExpressionException, ParserConfigurationException, SAXException, IOException,
+      SQLException {
+    loadOntologyToDB(file, DBManager.DEFAULT_INSERT_BATCH_SIZE);
+  }
+
+  private void loadOntologyToDB(File file, int batchSize)
+      throws XPathExpressionException, ParserConfigurationException, SAXException, IOException,
+      SQLException {
     // File file3 = new File("/Users/frieda/Downloads/bto.owl");
     List<OntologyEntry> entries = new ArrayList<OntologyEntry>();
     List<OntologyRelation> relations = new ArrayList<OntologyRelation>();
     createInserts(file, entries, relations);
+    List<Map<String, Object>> entryInserts = new ArrayList<Map<String, Object>>();
     for (OntologyEntry e : entries) {
-      Map<String, Object> entryInserts = new HashMap<String, Object>();
-      entryInserts.put("id", e.getId());
-      entryInserts.put("name", e.getLabel());
+      Map<String, Object> entryInsert = new HashMap<String, Object>();
+      entryInsert.put("id", e.getId());
+      entryInsert.put("name", e.getLabel());
       if (e.getDescription() != null && !e.getDescription().isEmpty())
-        entryInserts.put("description", e.getDescription());
-      dbm.genericInsertIntoTable("ontology_entry", entryInserts);
+        entryInsert.put("description", e.getDescription());
+      entryInserts.add(entryInsert);
     }
+    dbm.genericInsertIntoTable("ontology_entry", entryInserts, batchSize, true);
+    List<Map<String, Object>> relationInserts = new ArrayList<Map<String, Object>>();
     for (OntologyRelation r : relations) {
-      Map<String, Object> relationInserts = new HashMap<String, Object>();
-      relationInserts.put("child_entry", r.getFrom());
-      relationInserts.put("parent_entry", r.getTo());
-      relationInserts.put("relation_type", r.getRelationType());
-      dbm.genericInsertIntoTable("ontology_relation", relationInserts);
+      Map<String, Object> relationInsert = new HashMap<String, Object>();
+      relationInsert.put("child_entry", r.getFrom());
+      relationInsert.put("parent_entry", r.getTo());
+      relationInsert.put("relation_type", r.getRelationType());
+      relationInserts.add(relationInsert);
     }
+    dbm.genericInsertIntoTable("ontology_relation", relationInserts, batchSize, true);
   }
 
   public static void main(String[] args)
@@ -280,8 +291,7 @@ public class OntologyParser {
   // }
   //
   public Set<String> getTissuesFor(String category) {
-    Set<OntologyEntry> terms =
-        dbm.getDescendantsOfOntologyTerm(new ArrayList<String>(Arrays.asList(category)), true);
+    Set<OntologyEntry> terms = dbm.getAllDescendantsOfOntologyTerm(category);
 
     Set<String> tissues = new HashSet<String>();
     for (OntologyEntry t : terms)
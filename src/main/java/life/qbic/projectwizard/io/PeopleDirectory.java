@@ -0,0 +1,96 @@
+package life.qbic.projectwizard.io;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Application-wide cache of the active people in the person table, shared by all UIs using the
+ * same database. Refreshes only fetch people added since the last refresh, the whole table is
+ * read again from time to time to pick up changed or deactivated people.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class PeopleDirectory {
+
+  private static final Logger logger = LogManager.getLogger(PeopleDirectory.class);
+
+  // refreshes requested more often are answered from the cache
+  private static final long MIN_REFRESH_MILLIS = 10 * 1000;
+  private static final long FULL_RELOAD_MILLIS = 30 * 60 * 1000;
+
+  private static final Map<String, PeopleDirectory> directories =
+      new HashMap<String, PeopleDirectory>();
+
+  private final DBManager dbm;
+  // replaced as a whole on refresh
+  private volatile Map<String, Integer> namesToIDs = Collections.emptyMap();
+  private int maxID = -1;
+  private long lastRefresh = 0;
+  private long lastFullLoad = 0;
+
+  private PeopleDirectory(DBManager dbm) {
+    this.dbm = dbm;
+  }
+
+  /**
+   * @param key identifies the database, e.g. its URL
+   * @param dbm manager used to read the person table
+   * @return the directory shared by all users of this database
+   */
+  static synchronized PeopleDirectory getInstance(String key, DBManager dbm) {
+    if (!directories.containsKey(key)) {
+      directories.put(key, new PeopleDirectory(dbm));
+    }
+    return directories.get(key);
+  }
+
+  /**
+   * Fetches people added since the last refresh, or all people if the last full load is too old
+   *
+   * @return unmodifiable map of full names to person ids
+   * @throws SQLException if the database can not be reached and nothing was loaded before
+   */
+  public synchronized Map<String, Integer> refresh() throws SQLException {
+    long now = System.currentTimeMillis();
+    if (now - lastRefresh < MIN_REFRESH_MILLIS) {
+      return namesToIDs;
+    }
+    boolean full = now - lastFullLoad > FULL_RELOAD_MILLIS;
+    Map<Integer, String> loaded;
+    try {
+      loaded = dbm.getActivePersons(full ? -1 : maxID);
+    } catch (SQLException e) {
+      if (lastFullLoad == 0) {
+        throw e;
+      }
+      logger.warn("Could not refresh people, using cached list: " + e.getMessage());
+      return namesToIDs;
+    }
+    Map<String, Integer> names = full ? new HashMap<String, Integer>()
+        : new HashMap<String, Integer>(namesToIDs);
+    for (Integer id : loaded.keySet()) {
+      names.put(loaded.get(id), id);
+      maxID = Math.max(maxID, id);
+    }
+    namesToIDs = Collections.unmodifiableMap(names);
+    lastRefresh = now;
+    if (full) {
+      lastFullLoad = now;
+    }
+    logger.debug("Loaded " + loaded.size() + " people (full reload: " + full + ")");
+    return namesToIDs;
+  }
+
+  /**
+   * @return unmodifiable map of full names to person ids, as of the last refresh
+   */
+  public Map<String, Integer> getNamesToIDs() {
+    return namesToIDs;
+  }
+
+}
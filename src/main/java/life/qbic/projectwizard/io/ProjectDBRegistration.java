@@ -0,0 +1,86 @@
+package life.qbic.projectwizard.io;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything that is written to the people/projects database after a project was registered: the
+ * project, the roles of people in the project and the experiments with their contact persons.
+ * Written in one transaction by {@link DBManager#registerProject(ProjectDBRegistration)}.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class ProjectDBRegistration {
+
+  private String projectIdentifier;
+  private String projectName;
+  private List<PersonRole> projectPersons = new ArrayList<PersonRole>();
+  // experiment identifiers and the ids of their contact persons (-1 if there is none)
+  private Map<String, Integer> experiments = new LinkedHashMap<String, Integer>();
+
+  public static class PersonRole {
+    private int personID;
+    private String role;
+
+    public PersonRole(int personID, String role) {
+      this.personID = personID;
+      this.role = role;
+    }
+
+    public int getPersonID() {
+      return personID;
+    }
+
+    public String getRole() {
+      return role;
+    }
+  }
+
+  /**
+   * @param projectIdentifier identifier of the form /SPACE/PROJECT
+   * @param projectName short title of the project
+   */
+  public ProjectDBRegistration(String projectIdentifier, String projectName) {
+    this.projectIdentifier = projectIdentifier;
+    this.projectName = projectName;
+  }
+
+  /**
+   * Adds a person with a role (e.g. PI, Contact or Manager) to the project. Ids below 0 are
+   * ignored.
+   */
+  public void addPersonToProject(int personID, String role) {
+    if (personID > -1)
+      projectPersons.add(new PersonRole(personID, role));
+  }
+
+  /**
+   * Adds an experiment of the project
+   *
+   * @param experimentIdentifier identifier of the form /SPACE/PROJECT/EXPERIMENT
+   * @param contactID id of the contact person of the experiment or -1
+   */
+  public void addExperiment(String experimentIdentifier, int contactID) {
+    experiments.put(experimentIdentifier, contactID);
+  }
+
+  public String getProjectIdentifier() {
+    return projectIdentifier;
+  }
+
+  public String getProjectName() {
+    return projectName;
+  }
+
+  public List<PersonRole> getProjectPersons() {
+    return projectPersons;
+  }
+
+  public Map<String, Integer> getExperiments() {
+    return experiments;
+  }
+
+}
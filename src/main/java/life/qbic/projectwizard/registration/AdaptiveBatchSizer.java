@@ -0,0 +1,102 @@
+package life.qbic.projectwizard.registration;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Chooses the size of the next sample batch based on how long previous batches took to register.
+ * Fast batches let the size grow, slow batches shrink it towards the target latency and failed
+ * batches halve it. Sizes always stay between the configured minimum and maximum.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class AdaptiveBatchSizer {
+
+  private static final Logger logger = LogManager.getLogger(AdaptiveBatchSizer.class);
+
+  private static final double GROWTH_FACTOR = 1.5;
+  // weight of the newest batch in the smoothed failure rate
+  private static final double FAILURE_RATE_WEIGHT = 0.3;
+  private static final double MAX_FAILURE_RATE_TO_GROW = 0.1;
+
+  private final int minSize;
+  private final int maxSize;
+  private final long targetMillis;
+  private int currentSize;
+  private double failureRate = 0;
+  private BatchMetricsListener metricsListener;
+
+  /**
+   * Is notified after each measured batch, e.g. to log or collect registration timings
+   */
+  public interface BatchMetricsListener {
+    public void batchMeasured(int batchSize, long millis, boolean success, int nextBatchSize);
+  }
+
+  /**
+   * @param initialSize size of the first batch
+   * @param minSize lower bound for batch sizes
+   * @param maxSize upper bound for batch sizes
+   * @param targetMillis registration time per batch that should not be exceeded
+   */
+  public AdaptiveBatchSizer(int initialSize, int minSize, int maxSize, long targetMillis) {
+    this.minSize = Math.max(1, minSize);
+    this.maxSize = Math.max(this.minSize, maxSize);
+    this.targetMillis = Math.max(1, targetMillis);
+    this.currentSize = clamp(initialSize);
+  }
+
+  /**
+   * Creates a sizer that always returns the same batch size
+   */
+  public static AdaptiveBatchSizer fixed(int size) {
+    return new AdaptiveBatchSizer(size, size, size, Long.MAX_VALUE);
+  }
+
+  public void setMetricsListener(BatchMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  public synchronized int getBatchSize() {
+    return currentSize;
+  }
+
+  /**
+   * Reports the outcome of a batch and adapts the size of the following batches
+   *
+   * @param batchSize number of samples in the batch
+   * @param millis time it took to register the batch
+   * @param success true if the batch was registered
+   */
+  public void report(int batchSize, long millis, boolean success) {
+    int next;
+    synchronized (this) {
+      failureRate =
+          (1 - FAILURE_RATE_WEIGHT) * failureRate + FAILURE_RATE_WEIGHT * (success ? 0 : 1);
+      if (!success) {
+        next = currentSize / 2;
+      } else if (millis > targetMillis) {
+        next = (int) (batchSize * ((double) targetMillis / millis));
+      } else if (millis < targetMillis / 2 && batchSize >= currentSize
+          && failureRate < MAX_FAILURE_RATE_TO_GROW) {
+        // only full batches are a hint that larger batches will be fast as well
+        next = (int) Math.ceil(currentSize * GROWTH_FACTOR);
+      } else {
+        next = currentSize;
+      }
+      currentSize = clamp(next);
+      next = currentSize;
+    }
+    logger.debug("Batch of " + batchSize + " samples took " + millis + " ms (success: " + success
+        + "), next batch size: " + next);
+    if (metricsListener != null) {
+      metricsListener.batchMeasured(batchSize, millis, success, next);
+    }
+  }
+
+  private int clamp(int size) {
+    return Math.max(minSize, Math.min(maxSize, size));
+  }
+
+}
@@ -0,0 +1,235 @@
+package life.qbic.projectwizard.registration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Waits for openBIS entities to reach a state, e.g. to exist after an asynchronous registration.
+ * Checks run on a background thread. All pending checks of the same kind are answered by one
+ * search per tick and every waiter satisfied by a tick is completed at the same time. The interval
+ * between ticks doubles while nothing happens and is reset once a new waiter is added.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class EntityStateWatcher {
+
+  private static final Logger logger = LogManager.getLogger(EntityStateWatcher.class);
+
+  private static final long MIN_POLL_MILLIS = 100;
+  private static final long MAX_POLL_MILLIS = 2000;
+
+  private enum Kind {
+    SPACE, PROJECT, EXPERIMENT, SAMPLE, EXPERIMENT_MODIFIED, PROJECT_SAMPLE_COUNT
+  }
+
+  private static class Waiter {
+    private final Kind kind;
+    private final Collection<String> keys;
+    private final long deadline;
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+    private Date modifiedAfter;
+    private int minCount;
+
+    private Waiter(Kind kind, Collection<String> keys, long timeoutMillis) {
+      this.kind = kind;
+      this.keys = keys;
+      this.deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+  }
+
+  private final OpenbisV3APIWrapper api;
+  private final List<Waiter> waiters = new ArrayList<>();
+  private ScheduledExecutorService scheduler;
+  private long delay = MIN_POLL_MILLIS;
+
+  public EntityStateWatcher(OpenbisV3APIWrapper api) {
+    this.api = api;
+  }
+
+  /**
+   * @return completed with true once the space exists or with false after the timeout
+   */
+  public CompletableFuture<Boolean> awaitSpace(String space, long timeoutMillis) {
+    return add(new Waiter(Kind.SPACE, Collections.singletonList(space), timeoutMillis));
+  }
+
+  /**
+   * @return completed with true once the project exists or with false after the timeout
+   */
+  public CompletableFuture<Boolean> awaitProject(String space, String project,
+      long timeoutMillis) {
+    String identifier = "/" + space + "/" + project;
+    return add(new Waiter(Kind.PROJECT, Collections.singletonList(identifier), timeoutMillis));
+  }
+
+  /**
+   * @param identifiers experiment identifiers of the form /SPACE/PROJECT/EXPERIMENT
+   * @return completed with true once all experiments exist or with false after the timeout
+   */
+  public CompletableFuture<Boolean> awaitExperiments(Collection<String> identifiers,
+      long timeoutMillis) {
+    return add(new Waiter(Kind.EXPERIMENT, new HashSet<>(identifiers), timeoutMillis));
+  }
+
+  /**
+   * @return completed with true once all samples exist or with false after the timeout
+   */
+  public CompletableFuture<Boolean> awaitSamples(Collection<String> codes, long timeoutMillis) {
+    return add(new Waiter(Kind.SAMPLE, new HashSet<>(codes), timeoutMillis));
+  }
+
+  /**
+   * @param identifier experiment identifier of the form /SPACE/PROJECT/EXPERIMENT
+   * @param modifiedAfter modification date before the expected change
+   * @return completed with true once the experiment was modified after the given date or with
+   *         false after the timeout
+   */
+  public CompletableFuture<Boolean> awaitExperimentModified(String identifier, Date modifiedAfter,
+      long timeoutMillis) {
+    Waiter w =
+        new Waiter(Kind.EXPERIMENT_MODIFIED, Collections.singletonList(identifier), timeoutMillis);
+    w.modifiedAfter = modifiedAfter;
+    return add(w);
+  }
+
+  /**
+   * @return completed with true once the project contains at least the given number of samples or
+   *         with false after the timeout
+   */
+  public CompletableFuture<Boolean> awaitSampleCount(String space, String project, int count,
+      long timeoutMillis) {
+    Waiter w = new Waiter(Kind.PROJECT_SAMPLE_COUNT,
+        Collections.singletonList("/" + space + "/" + project), timeoutMillis);
+    w.minCount = count;
+    return add(w);
+  }
+
+  private synchronized CompletableFuture<Boolean> add(Waiter waiter) {
+    waiters.add(waiter);
+    delay = MIN_POLL_MILLIS;
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor();
+      scheduler.schedule(this::tick, 0, TimeUnit.MILLISECONDS);
+    }
+    return waiter.future;
+  }
+
+  private void tick() {
+    List<Waiter> current = new ArrayList<>();
+    synchronized (this) {
+      for (Waiter w : waiters) {
+        // cancelled waits are not checked anymore
+        if (!w.future.isDone()) {
+          current.add(w);
+        }
+      }
+      waiters.retainAll(current);
+    }
+    Map<Kind, Set<String>> keysByKind = new HashMap<>();
+    for (Waiter w : current) {
+      if (!keysByKind.containsKey(w.kind)) {
+        keysByKind.put(w.kind, new HashSet<>());
+      }
+      keysByKind.get(w.kind).addAll(w.keys);
+    }
+    Set<String> found = new HashSet<>();
+    Map<String, Date> modificationDates = new HashMap<>();
+    Map<String, Integer> sampleCounts = new HashMap<>();
+    for (Kind kind : keysByKind.keySet()) {
+      Set<String> keys = keysByKind.get(kind);
+      try {
+        switch (kind) {
+          case SPACE:
+            found.addAll(api.getExistingSpaces(keys));
+            break;
+          case PROJECT:
+            found.addAll(api.getExistingProjects(keys));
+            break;
+          case SAMPLE:
+            found.addAll(api.getExistingSampleCodes(keys));
+            break;
+          case EXPERIMENT:
+          case EXPERIMENT_MODIFIED:
+            modificationDates.putAll(api.getExperimentModificationDates(keys));
+            break;
+          case PROJECT_SAMPLE_COUNT:
+            for (String identifier : keys) {
+              String[] split = identifier.split("/");
+              sampleCounts.put(identifier, api.countSamplesOfProject(split[1], split[2]));
+            }
+            break;
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Could not check state of openBIS entities (" + kind + "): " + e.getMessage());
+      }
+    }
+    long now = System.currentTimeMillis();
+    List<Waiter> done = new ArrayList<>();
+    for (Waiter w : current) {
+      if (isSatisfied(w, found, modificationDates, sampleCounts)) {
+        w.future.complete(true);
+        done.add(w);
+      } else if (now > w.deadline) {
+        logger.warn("Timed out waiting for " + w.kind + " " + w.keys);
+        w.future.complete(false);
+        done.add(w);
+      }
+    }
+    synchronized (this) {
+      waiters.removeAll(done);
+      if (waiters.isEmpty()) {
+        scheduler.shutdown();
+        scheduler = null;
+      } else {
+        scheduler.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+        delay = Math.min(delay * 2, MAX_POLL_MILLIS);
+      }
+    }
+  }
+
+  private boolean isSatisfied(Waiter w, Set<String> found, Map<String, Date> modificationDates,
+      Map<String, Integer> sampleCounts) {
+    for (String key : w.keys) {
+      switch (w.kind) {
+        case EXPERIMENT:
+          if (!modificationDates.containsKey(key)) {
+            return false;
+          }
+          break;
+        case EXPERIMENT_MODIFIED:
+          Date modified = modificationDates.get(key);
+          if (modified == null
+              || (w.modifiedAfter != null && !modified.after(w.modifiedAfter))) {
+            return false;
+          }
+          break;
+        case PROJECT_SAMPLE_COUNT:
+          Integer count = sampleCounts.get(key);
+          if (count == null || count < w.minCount) {
+            return false;
+          }
+          break;
+        default:
+          if (!found.contains(key)) {
+            return false;
+          }
+      }
+    }
+    return true;
+  }
+
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import javax.xml.bind.JAXBException;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.ProgressBar;
@@ -36,6 +37,14 @@ public interface IOpenbisCreationController {
 
   public boolean registerSampleBatch(List<ISampleBean> samples);
 
+  /**
+   * Registers a batch of samples. Controllers that can wait for openBIS without blocking the
+   * calling thread override this, the default registers the batch synchronously.
+   */
+  public default CompletableFuture<Boolean> registerSampleBatchAsync(List<ISampleBean> samples) {
+    return CompletableFuture.completedFuture(registerSampleBatch(samples));
+  }
+
   public String getErrors();
 
   public boolean setupEmptyProject(String space, String project, String description)
@@ -2,10 +2,13 @@ package life.qbic.projectwizard.registration;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import org.apache.commons.lang.NotImplementedException;
@@ -35,16 +38,24 @@ import life.qbic.xml.study.Qexperiment;
  */
 public class OpenbisCreationController implements IOpenbisCreationController {
   final int RETRY_UNTIL_SECONDS_PASSED = 5;
+  final long EXPERIMENT_UPDATE_TIMEOUT_MILLIS = 10000;
   final int SPLIT_AT_ENTITY_SIZE = 100;
+  final int MIN_BATCH_SIZE = 25;
+  final int MAX_BATCH_SIZE = 500;
+  final long TARGET_BATCH_MILLIS = 20000;
   private IOpenBisClient openbis;
+  private OpenbisV3APIWrapper api;
+  private AdaptiveBatchSizer.BatchMetricsListener batchMetricsListener;
   private static final Logger logger = LogManager.getLogger(OpenbisCreationController.class);
   private String errors;
   private String user;
 
 
-  public OpenbisCreationController(IOpenBisClient openbis, String user) {
+  public OpenbisCreationController(IOpenBisClient openbis, String user,
+      OpenbisV3APIWrapper v3API) {
     this.openbis = openbis;
     this.user = user;
+    this.api = v3API;
   }
 
   /**
@@ -144,8 +155,6 @@ public class OpenbisCreationController implements IOpenbisCreationController {
   @Override
   public boolean registerExperiments(String space, String proj, List<RegisterableExperiment> exps) {
     errors = "";
-    int step = 100;
-    int max = RETRY_UNTIL_SECONDS_PASSED * 1000;
     List<String> codes = new ArrayList<String>();
     List<String> types = new ArrayList<String>();
     List<Map<String, Object>> props = new ArrayList<Map<String, Object>>();
@@ -157,17 +166,10 @@ public class OpenbisCreationController implements IOpenbisCreationController {
       }
     }
     if (codes.size() > 0) {
-      while (!openbis.projectExists(space, proj) && max > 0) {
-        try {
-          Thread.sleep(step);
-          max -= step;
-        } catch (InterruptedException e) {
-          logger.error("thread sleep waiting for project creation interruped.");
-          e.printStackTrace();
-        }
-      }
+      boolean projectExists = api.getStateWatcher()
+          .awaitProject(space, proj, RETRY_UNTIL_SECONDS_PASSED * 1000).join();
       logger.info("Creating experiments " + codes);
-      if (!openbis.projectExists(space, proj)) {
+      if (!projectExists) {
         errors = proj + " in " + space + " does not exist. Not creating experiments.";
         logger.error(errors);
         return false;
@@ -184,20 +186,47 @@ public class OpenbisCreationController implements IOpenbisCreationController {
     return true;
   }
 
-  private List<List<ISampleBean>> splitSamplesIntoBatches(List<ISampleBean> samples,
-      int targetSize) {
-    List<List<ISampleBean>> res = new ArrayList<List<ISampleBean>>();
-    int size = samples.size();
-    if (size < targetSize)
-      return new ArrayList<List<ISampleBean>>(Arrays.asList(samples));
-    for (int i = 0; i < size / targetSize; i++) {
-      int from = i * targetSize;
-      int to = (i + 1) * targetSize;
-      res.add(samples.subList(from, to));
-      if (to > size - targetSize && to != size)
-        res.add(samples.subList(to, size));
+  /**
+   * Sets a listener that is informed about the size and registration time of every sample batch
+   * 
+   * @param listener the listener, can be null
+   */
+  public void setBatchMetricsListener(AdaptiveBatchSizer.BatchMetricsListener listener) {
+    this.batchMetricsListener = listener;
+  }
+
+  /**
+   * Updates the metadata of existing experiments and waits until openBIS reports all of them as
+   * modified
+   * 
+   * @return false if not all experiments were updated in time
+   */
+  private boolean updateExperimentsAndWait(String space, String project,
+      Map<String, Map<String, Object>> entitiesToUpdate) {
+    if (entitiesToUpdate.isEmpty()) {
+      return true;
     }
-    return res;
+    List<String> expIDs = new ArrayList<>();
+    for (String experiment : entitiesToUpdate.keySet()) {
+      expIDs.add(ExperimentCodeFunctions.getExperimentIdentifier(space, project, experiment));
+    }
+    Map<String, Date> modificationDates = api.getExperimentModificationDates(expIDs);
+    List<CompletableFuture<Boolean>> updates = new ArrayList<>();
+    for (String experiment : entitiesToUpdate.keySet()) {
+      String expID = ExperimentCodeFunctions.getExperimentIdentifier(space, project, experiment);
+      updateExperiment(expID, entitiesToUpdate.get(experiment));
+      updates.add(api.getStateWatcher().awaitExperimentModified(expID,
+          modificationDates.get(expID), EXPERIMENT_UPDATE_TIMEOUT_MILLIS));
+    }
+    for (CompletableFuture<Boolean> updated : updates) {
+      if (!updated.join()) {
+        errors = "could not update existing experimental design, not registering samples!";
+        logger.error(errors);
+        return false;
+      }
+    }
+    logger.debug("completed update of experimental design successfully");
+    return true;
   }
 
   /**
@@ -215,43 +244,13 @@ public class OpenbisCreationController implements IOpenbisCreationController {
   public void registerProjectWithExperimentsAndSamplesBatchWise(
       final List<List<ISampleBean>> tsvSampleHierarchy, final String description,
       final List<OpenbisExperiment> informativeExperiments, final ProgressBar bar, final Label info,
-      final Runnable ready, Map<String, Map<String, Object>> entitiesToUpdate,
+      final Runnable ready, final Map<String, Map<String, Object>> entitiesToUpdate,
       final boolean isPilot) {
     errors = "";
 
     RegisterableProject p =
         new RegisterableProject(tsvSampleHierarchy, description, informativeExperiments, isPilot);
 
-    for (String experiment : entitiesToUpdate.keySet()) {
-      String expID = ExperimentCodeFunctions.getExperimentIdentifier(p.getSpace(),
-          p.getProjectCode(), experiment);
-      long modificationTime = openbis.getExperimentById(expID).getModificationDate().getTime();
-
-      updateExperiment(expID, entitiesToUpdate.get(experiment));
-
-      long newModificationTime = modificationTime;
-      double TIMEOUT = 10000;
-
-      while (newModificationTime == modificationTime && TIMEOUT > 0) {
-        newModificationTime = openbis.getExperimentById(expID).getModificationDate().getTime();
-        TIMEOUT -= 300;
-        try {
-          Thread.sleep(300);
-        } catch (InterruptedException e1) {
-          // TODO Auto-generated catch block
-          e1.printStackTrace();
-        }
-
-      }
-      if (TIMEOUT < 0) {
-        errors = "could not update existing experimental design, not registering samples!";
-        logger.error(errors);
-        return;
-      } else {
-        logger.debug("completed update of experimental design successfully");
-      }
-    }
-
     logger.debug("User sending samples: " + user);
     Thread t = new Thread(new Runnable() {
       volatile int current = -1;
@@ -260,23 +259,24 @@ public class OpenbisCreationController implements IOpenbisCreationController {
       public void run() {
         info.setCaption("Collecting information");
         UI.getCurrent().access(new UpdateProgressBar(bar, info, 0.01));
+        if (!updateExperimentsAndWait(p.getSpace(), p.getProjectCode(), entitiesToUpdate)) {
+          bar.setVisible(false);
+          info.setCaption("An error occured.");
+          UI.getCurrent().setPollInterval(-1);
+          UI.getCurrent().access(ready);
+          return;
+        }
         List<RegisterableExperiment> exps = p.getExperiments();
         String space = p.getSpace().toUpperCase();
         String project = p.getProjectCode();
         String desc = p.getDescription();
 
-        int splitSteps = 0;
-        // find out which experiments have so many samples they should be sent in multiple packages
-        for (RegisterableExperiment exp : exps) {
-          splitSteps += exp.getSamples().size() / (SPLIT_AT_ENTITY_SIZE + 1);
+        int todo = 0;
+        for (List<ISampleBean> level : tsvSampleHierarchy) {
+          todo += level.size();
         }
-
-        // final int todo = exps.size() + splitSteps + 1;// TODO huge number of samples should be
-        // split
-        // into groups
-        final int todo = tsvSampleHierarchy.size() + splitSteps + 1;
-        // of 50 or 100. this needs to be reflected in the progress
-        // bar
+        // project and experiments count as one more step
+        todo++;
         current++;
         double frac = current * 1.0 / todo;
         info.setCaption("Registering Project and Experiments");
@@ -294,51 +294,38 @@ public class OpenbisCreationController implements IOpenbisCreationController {
           return;
         }
 
-        try {
-          Thread.sleep(500);
-        } catch (InterruptedException e) {
-          logger.error("thread sleep waiting for experiment creation interruped.");
-          e.printStackTrace();
+        List<String> expIDs = new ArrayList<String>();
+        for (RegisterableExperiment exp : exps) {
+          expIDs.add(
+              ExperimentCodeFunctions.getExperimentIdentifier(space, project, exp.getCode()));
+        }
+        if (!api.getStateWatcher().awaitExperiments(expIDs, RETRY_UNTIL_SECONDS_PASSED * 1000)
+            .join()) {
+          logger.warn("Not all experiments could be found in openBIS after registration.");
         }
-        // for (RegisterableExperiment exp : exps) { old version!
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(SPLIT_AT_ENTITY_SIZE, MIN_BATCH_SIZE,
+            MAX_BATCH_SIZE, TARGET_BATCH_MILLIS);
+        sizer.setMetricsListener(batchMetricsListener);
         int i = 0;
         for (List<ISampleBean> level : tsvSampleHierarchy) {
           i++;
           logger.info("registration of level " + i);
-          // List<ISampleBean> level = exp.getSamples(); old version!
           info.setCaption("Registering samples");
-          current++;
-          frac = current * 1.0 / todo;
-          UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
-          boolean batchSuccess;
-          if (level.size() > SPLIT_AT_ENTITY_SIZE) {
-            for (List<ISampleBean> batch : splitSamplesIntoBatches(level, SPLIT_AT_ENTITY_SIZE)) {
-              batchSuccess = registerSampleBatch(batch);
-              if (!batchSuccess) {
-                bar.setVisible(false);
-                info.setCaption("An error occured.");
-                UI.getCurrent().setPollInterval(-1);
-                UI.getCurrent().access(ready);
-                return;
-              }
+          int from = 0;
+          while (from < level.size()) {
+            int to = Math.min(from + sizer.getBatchSize(), level.size());
+            List<ISampleBean> batch = level.subList(from, to);
+            from = to;
+            long start = System.currentTimeMillis();
+            boolean batchSuccess = registerSampleBatch(batch);
+            if (batchSuccess) {
+              // ingestion is asynchronous, the batch is done once its last sample exists
               ISampleBean last = batch.get(batch.size() - 1);
               logger.info("waiting for last batch sample to reach openbis");
-              int step = 100;
-              int max = RETRY_UNTIL_SECONDS_PASSED * 1000;
-              while (!openbis.sampleExists(last.getCode()) && max > 0) {
-                try {
-                  Thread.sleep(step);
-                  max -= step;
-                } catch (InterruptedException e) {
-                  e.printStackTrace();
-                }
-              }
-              current++;
-              frac = current * 1.0 / todo;
-              UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
+              api.getStateWatcher().awaitSamples(Arrays.asList(last.getCode()),
+                  RETRY_UNTIL_SECONDS_PASSED * 1000).join();
             }
-          } else {
-            batchSuccess = registerSampleBatch(level);
+            sizer.report(batch.size(), System.currentTimeMillis() - start, batchSuccess);
             if (!batchSuccess) {
               bar.setVisible(false);
               info.setCaption("An error occured.");
@@ -346,20 +333,9 @@ public class OpenbisCreationController implements IOpenbisCreationController {
               UI.getCurrent().access(ready);
               return;
             }
-          }
-          if (level.size() > 0) {
-            ISampleBean last = level.get(level.size() - 1);
-            logger.info("waiting for last sample to reach openbis");
-            int step = 50;
-            int max = RETRY_UNTIL_SECONDS_PASSED * 1000;
-            while (!openbis.sampleExists(last.getCode()) && max > 0) {
-              try {
-                Thread.sleep(step);
-                max -= step;
-              } catch (InterruptedException e) {
-                e.printStackTrace();
-              }
-            }
+            current += batch.size();
+            frac = current * 1.0 / todo;
+            UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
           }
         }
         current++;
@@ -397,8 +373,14 @@ public class OpenbisCreationController implements IOpenbisCreationController {
     Map<String, Object> params = new HashMap<String, Object>();
     params.put("user", user);
 
+    List<String> codes = new ArrayList<String>();
+    for (ISampleBean sample : samples) {
+      codes.add(sample.getCode());
+    }
+    Set<String> existing = api.getExistingSampleCodes(codes);
+
     for (ISampleBean sample : samples) {
-      if (openbis.sampleExists(sample.getCode())) {
+      if (existing.contains(sample.getCode())) {
         logger.warn(sample.getCode() + " already exists in " + p
             + " Removing this sample from registration process.");
       } else {
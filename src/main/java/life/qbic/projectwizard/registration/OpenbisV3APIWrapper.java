@@ -1,9 +1,14 @@
 package life.qbic.projectwizard.registration;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
@@ -21,9 +26,17 @@ import ch.ethz.sis.openbis.generic.asapi.v3.dto.experiment.id.ExperimentIdentifi
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.experiment.id.IExperimentId;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.experiment.search.ExperimentSearchCriteria;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.experiment.update.ExperimentUpdate;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.AsynchronousOperationExecutionOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.AsynchronousOperationExecutionResults;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.OperationExecution;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.SynchronousOperationExecutionOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.fetchoptions.OperationExecutionFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.id.IOperationExecutionId;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.Project;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.fetchoptions.ProjectFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.create.CreateProjectsOperation;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.id.IProjectId;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.id.ProjectIdentifier;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.search.ProjectSearchCriteria;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.project.update.ProjectUpdate;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
@@ -40,7 +53,6 @@ import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.fetchoptions.Vocabula
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.id.IVocabularyTermId;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.id.VocabularyTermPermId;
 import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.search.VocabularyTermSearchCriteria;
-import ch.systemsx.cisd.common.spring.HttpInvokerUtils;
 
 public class OpenbisV3APIWrapper {
 
@@ -51,21 +63,20 @@ public class OpenbisV3APIWrapper {
   private String adminToken;
   private String userToken;
   private String errors;
-  private final int TIMEOUT = 10000;
-  private String adminUser;
+  private final int CODE_SEARCH_CHUNK_SIZE = 500;
   private String user;
-  private String pw;
-  private boolean userCantLogin = false;
+  private OpenbisV3SessionManager sessions;
+  private EntityStateWatcher stateWatcher;
 
   public OpenbisV3APIWrapper(String url, String adminUser, String pw, String user) {
     final String URL = url + "/openbis/openbis" + IApplicationServerApi.SERVICE_URL;
 
-    API = HttpInvokerUtils.createServiceStub(IApplicationServerApi.class, URL, TIMEOUT);
-    adminAPI = HttpInvokerUtils.createServiceStub(IApplicationServerApi.class, URL, TIMEOUT);
+    // proxy and sessions are shared with all other UIs using the same server
+    sessions = OpenbisV3SessionManager.getInstance(URL, adminUser, pw);
+    API = sessions.getApi();
+    adminAPI = API;
 
     this.user = user;
-    this.adminUser = adminUser;
-    this.pw = pw;
   }
 
 
@@ -104,44 +115,63 @@ public class OpenbisV3APIWrapper {
   }
 
   public TableModel callAggreationService(String name, String dss) {
+    checklogin();
     ReportingServiceExecutionOptions options = new ReportingServiceExecutionOptions();
     DssServicePermId serviceID = new DssServicePermId(name, new DataStorePermId(dss));
     TableModel table = API.executeReportingService(adminToken, serviceID, options);
     return table;
   }
 
-  private void checklogin() {
-    if (userToken == null && !userCantLogin) {
-      logger.info("Logging in to the openBIS V3 API as user " + user + ".");
-      userToken = API.loginAs(adminUser, pw, user);
-      if (userToken != null) {
-        logger.info("Successfully logged in.");
-      } else {
-        logger.info("Could not login, using config user.");
-        userCantLogin = true;
-      }
-    }
-    if (adminToken == null) {
-      logger.info("Logging in to the openBIS V3 API as config user: " + adminUser);
-      adminToken = adminAPI.login(adminUser, pw);
-      if (adminToken != null) {
-        logger.info("Successfully logged in.");
-      }
-    }
+  /**
+   * @return the manager of the sessions shared with other UIs of the same server
+   */
+  public OpenbisV3SessionManager getSessionManager() {
+    return sessions;
+  }
+
+  private synchronized void checklogin() {
+    userToken = sessions.getUserToken(user);
+    adminToken = sessions.getAdminToken();
   }
 
-  public void logout() {
-    logger.info("Logging out of the openBIS V3 API.");
-    API.logout(userToken);
-    adminAPI.logout(adminToken);
-    adminToken = null;
+  /**
+   * Logs the user out of the V3 API. Usually not needed, as the session is shared with other UIs
+   * of the same user and refreshed when it expires.
+   */
+  public synchronized void logout() {
+    sessions.logout(user);
     userToken = null;
   }
 
   public boolean handleOperations(IOperation operation) {
+    return handleOperations(Arrays.asList(operation));
+  }
+
+  /**
+   * Executes a list of operations in one call. openBIS runs them in the given order in a single
+   * transaction, so either all or none of them are applied. Project creations are sent in their own
+   * call before the other operations, as only they are retried with the config user if the user is
+   * not allowed to create projects.
+   * 
+   * @param ops operations to execute, later operations may reference entities of earlier ones
+   * @return true if all operations were executed
+   */
+  public boolean handleOperations(List<IOperation> ops) {
+    List<IOperation> projectOps = new ArrayList<>();
+    List<IOperation> otherOps = new ArrayList<>();
+    for (IOperation op : ops) {
+      if (op instanceof CreateProjectsOperation) {
+        projectOps.add(op);
+      } else {
+        otherOps.add(op);
+      }
+    }
+    if (!projectOps.isEmpty() && !otherOps.isEmpty()) {
+      return handleOperations(projectOps) && handleOperations(otherOps);
+    }
+    boolean mayEscalate = otherOps.isEmpty();
     checklogin();
     SynchronousOperationExecutionOptions options = new SynchronousOperationExecutionOptions();
-    List<IOperation> ops = Arrays.asList(operation);
     try {
       API.executeOperations(userToken, ops, options);
       return true;
@@ -149,7 +179,8 @@ public class OpenbisV3APIWrapper {
       e.printStackTrace();
       if (e.getCause() != null) {
         errors = e.getCause().getMessage();
-        if (errors.startsWith("Access denied to object with ProjectIdentifier")) {
+        if (mayEscalate
+            && errors.startsWith("Access denied to object with ProjectIdentifier")) {
           logger.warn("User " + user
               + " could not create project, most likely because they are no power user in openBIS.");
           logger.info("Trying to create project with config user instead.");
@@ -171,6 +202,42 @@ public class OpenbisV3APIWrapper {
     }
   }
 
+  /**
+   * Submits a list of operations for asynchronous execution. openBIS runs them in one transaction
+   * in the background, their state can be requested using the returned execution id.
+   * 
+   * @param ops operations to execute, later operations may reference entities of earlier ones
+   * @return the id of the execution or null, if the operations could not be submitted
+   */
+  public IOperationExecutionId submitOperations(List<IOperation> ops) {
+    checklogin();
+    AsynchronousOperationExecutionOptions options = new AsynchronousOperationExecutionOptions();
+    try {
+      AsynchronousOperationExecutionResults results =
+          (AsynchronousOperationExecutionResults) API.executeOperations(getActiveToken(), ops,
+              options);
+      return results.getExecutionId();
+    } catch (Exception e) {
+      errors = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+      logger.error("Operations could not be submitted: " + errors);
+      return null;
+    }
+  }
+
+  /**
+   * Fetches the state of submitted operation executions, including error details
+   * 
+   * @param ids execution ids returned by submitOperations
+   * @return executions by id, ids that are unknown to openBIS are missing
+   */
+  public Map<IOperationExecutionId, OperationExecution> getOperationExecutions(
+      Collection<IOperationExecutionId> ids) {
+    checklogin();
+    OperationExecutionFetchOptions fetchOptions = new OperationExecutionFetchOptions();
+    fetchOptions.withDetails().withError();
+    return API.getOperationExecutions(getActiveToken(), new ArrayList<>(ids), fetchOptions);
+  }
+
   public SearchResult<DataSet> searchDatasets(DataSetSearchCriteria criteria,
       DataSetFetchOptions fetchOptions) {
     checklogin();
@@ -237,6 +304,158 @@ public class OpenbisV3APIWrapper {
     return API.searchSamples(getActiveToken(), sc, options);
   }
 
+  /**
+   * Resolves which of the given sample codes are already registered in openBIS. Codes are sent in
+   * chunks of OR-combined code criteria, so a whole batch is checked in a few round trips instead of
+   * one per sample.
+   * 
+   * @param codes sample codes to check
+   * @return the subset of codes that exist
+   */
+  public Set<String> getExistingSampleCodes(Collection<String> codes) {
+    checklogin();
+    Set<String> res = new HashSet<String>();
+    List<String> distinct = new ArrayList<String>(new HashSet<String>(codes));
+    for (int from = 0; from < distinct.size(); from += CODE_SEARCH_CHUNK_SIZE) {
+      int to = Math.min(from + CODE_SEARCH_CHUNK_SIZE, distinct.size());
+      SampleSearchCriteria sc = new SampleSearchCriteria();
+      sc.withOrOperator();
+      for (String code : distinct.subList(from, to)) {
+        sc.withCode().thatEquals(code);
+      }
+      SearchResult<Sample> found =
+          API.searchSamples(getActiveToken(), sc, new SampleFetchOptions());
+      for (Sample s : found.getObjects()) {
+        res.add(s.getCode());
+      }
+    }
+    return res;
+  }
+
+  public Set<String> getExistingSpaces(Collection<String> codes) {
+    checklogin();
+    Set<String> res = new HashSet<String>();
+    if (codes.isEmpty()) {
+      return res;
+    }
+    SpaceSearchCriteria sc = new SpaceSearchCriteria();
+    sc.withOrOperator();
+    for (String code : new HashSet<String>(codes)) {
+      sc.withCode().thatEquals(code);
+    }
+    for (Space s : API.searchSpaces(getActiveToken(), sc, new SpaceFetchOptions()).getObjects()) {
+      res.add(s.getCode());
+    }
+    return res;
+  }
+
+  /**
+   * @param identifiers project identifiers of the form /SPACE/PROJECT
+   * @return the subset of identifiers that exist in openBIS
+   */
+  public Set<String> getExistingProjects(Collection<String> identifiers) {
+    checklogin();
+    List<ProjectIdentifier> ids = new ArrayList<ProjectIdentifier>();
+    for (String identifier : new HashSet<String>(identifiers)) {
+      ids.add(new ProjectIdentifier(identifier));
+    }
+    Set<String> res = new HashSet<String>();
+    for (IProjectId id : API.getProjects(getActiveToken(), ids, new ProjectFetchOptions())
+        .keySet()) {
+      res.add(((ProjectIdentifier) id).getIdentifier());
+    }
+    return res;
+  }
+
+  /**
+   * @param identifiers experiment identifiers of the form /SPACE/PROJECT/EXPERIMENT
+   * @return modification dates of the experiments that exist in openBIS
+   */
+  public Map<String, Date> getExperimentModificationDates(Collection<String> identifiers) {
+    checklogin();
+    List<ExperimentIdentifier> ids = new ArrayList<ExperimentIdentifier>();
+    for (String identifier : new HashSet<String>(identifiers)) {
+      ids.add(new ExperimentIdentifier(identifier));
+    }
+    Map<String, Date> res = new HashMap<String, Date>();
+    Map<IExperimentId, Experiment> found =
+        API.getExperiments(getActiveToken(), ids, new ExperimentFetchOptions());
+    for (IExperimentId id : found.keySet()) {
+      res.put(((ExperimentIdentifier) id).getIdentifier(), found.get(id).getModificationDate());
+    }
+    return res;
+  }
+
+  /**
+   * Counts the samples attached to experiments of a project without fetching them
+   */
+  public int countSamplesOfProject(String space, String project) {
+    checklogin();
+    SampleSearchCriteria sc = new SampleSearchCriteria();
+    sc.withExperiment().withProject().withCode().thatEquals(project);
+    sc.withExperiment().withProject().withSpace().withCode().thatEquals(space);
+    SampleFetchOptions options = new SampleFetchOptions();
+    options.count(0);
+    return API.searchSamples(getActiveToken(), sc, options).getTotalCount();
+  }
+
+  /**
+   * Fetches the samples attached to experiments of a project with their code and type only
+   */
+  public List<Sample> getSampleCodesAndTypesOfProject(String space, String project) {
+    checklogin();
+    SampleSearchCriteria sc = new SampleSearchCriteria();
+    sc.withExperiment().withProject().withCode().thatEquals(project);
+    sc.withExperiment().withProject().withSpace().withCode().thatEquals(space);
+    SampleFetchOptions options = new SampleFetchOptions();
+    options.withType();
+    return API.searchSamples(getActiveToken(), sc, options).getObjects();
+  }
+
+  /**
+   * Fetches the test samples of a project with their properties, experiment and parents
+   */
+  public List<Sample> getTestSamplesOfProject(String space, String project) {
+    checklogin();
+    SampleSearchCriteria sc = new SampleSearchCriteria();
+    sc.withExperiment().withProject().withCode().thatEquals(project);
+    sc.withExperiment().withProject().withSpace().withCode().thatEquals(space);
+    sc.withType().withCode().thatEquals("Q_TEST_SAMPLE");
+    SampleFetchOptions options = new SampleFetchOptions();
+    options.withType();
+    options.withProperties();
+    options.withExperiment().withProperties();
+    options.withParents().withType();
+    options.withParents().withProperties();
+    return API.searchSamples(getActiveToken(), sc, options).getObjects();
+  }
+
+  /**
+   * @return codes of the experiments of a project
+   */
+  public List<String> getExperimentCodesOfProject(String space, String project) {
+    checklogin();
+    ExperimentSearchCriteria sc = new ExperimentSearchCriteria();
+    sc.withProject().withCode().thatEquals(project);
+    sc.withProject().withSpace().withCode().thatEquals(space);
+    List<String> res = new ArrayList<String>();
+    for (Experiment e : API
+        .searchExperiments(getActiveToken(), sc, new ExperimentFetchOptions()).getObjects()) {
+      res.add(e.getCode());
+    }
+    return res;
+  }
+
+  /**
+   * @return the watcher that waits for entities of this API to reach a certain state
+   */
+  public synchronized EntityStateWatcher getStateWatcher() {
+    if (stateWatcher == null) {
+      stateWatcher = new EntityStateWatcher(this);
+    }
+    return stateWatcher;
+  }
+
   public Experiment getExperimentWithSamplesByID(String expID) {
     checklogin();
     ExperimentIdentifier id = new ExperimentIdentifier(expID);
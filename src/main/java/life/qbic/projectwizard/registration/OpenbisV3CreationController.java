@@ -2,11 +2,13 @@ package life.qbic.projectwizard.registration;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import org.apache.logging.log4j.LogManager;
@@ -58,7 +60,18 @@ import life.qbic.xml.study.Qexperiment;
  */
 public class OpenbisV3CreationController implements IOpenbisCreationController {
   final int RETRY_UNTIL_SECONDS_PASSED = 5;
+  final long EXPERIMENT_UPDATE_TIMEOUT_MILLIS = 10000;
   final int SPLIT_AT_ENTITY_SIZE = 300;
+  final int MIN_BATCH_SIZE = 50;
+  final int MAX_BATCH_SIZE = 1000;
+  final long TARGET_BATCH_MILLIS = 20000;
+  final int DEFAULT_REGISTRATION_PARALLELISM = 4;
+  final int MAX_ENTITIES_PER_CALL = 3000;
+  private int registrationParallelism = DEFAULT_REGISTRATION_PARALLELISM;
+  private boolean combinedRegistration = false;
+  private boolean asyncExecution = false;
+  private final OperationExecutionTracker tracker;
+  private AdaptiveBatchSizer.BatchMetricsListener batchMetricsListener;
   private IOpenBisClient openbis;
   private OpenbisV3APIWrapper api;
 
@@ -71,6 +84,7 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
     this.openbis = openbis;
     this.api = v3API;
     this.user = user;
+    this.tracker = new OperationExecutionTracker(v3API);
   }
 
   /**
@@ -103,10 +117,19 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
   @Override
   public boolean registerProject(String space, String name, String description) {
     errors = "";
+    ProjectCreation project = prepareProject(space, name, description);
+    if (project == null) {
+      return false;
+    }
+    IOperation operation = new CreateProjectsOperation(project);
+    return api.handleOperations(operation);
+  }
+
+  private ProjectCreation prepareProject(String space, String name, String description) {
     if (!openbis.spaceExists(space)) {
       errors = space + " does not exist!";
       logger.error(errors);
-      return false;
+      return null;
     }
     logger.info("Creating project " + name + " in space " + space);
     if (description == null || description.isEmpty()) {
@@ -118,9 +141,7 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
     project.setCode(name);
     project.setSpaceId(new SpacePermId(space));
     project.setDescription(description);
-
-    IOperation operation = new CreateProjectsOperation(project);
-    return api.handleOperations(operation);
+    return project;
   }
 
   /**
@@ -159,10 +180,21 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
 
   @Override
   public boolean registerExperiments(String space, String proj, List<RegisterableExperiment> exps) {
+    List<ExperimentCreation> expCreations = prepareExperiments(space, proj, exps, true);
+    if (expCreations.size() > 0) {
+      logger.info("Sending " + expCreations.size() + " new experiments to the V3 API.");
+      IOperation operation = new CreateExperimentsOperation(expCreations);
+      return executeOperations(Arrays.asList(operation));
+    }
+    return true;
+  }
+
+  private List<ExperimentCreation> prepareExperiments(String space, String proj,
+      List<RegisterableExperiment> exps, boolean skipExisting) {
     List<ExperimentCreation> expCreations = new ArrayList<>();
 
     for (RegisterableExperiment e : exps) {
-      if (!openbis.expExists(space, proj, e.getCode())) {
+      if (!skipExisting || !openbis.expExists(space, proj, e.getCode())) {
         ExperimentCreation exp = new ExperimentCreation();
         exp.setCode(e.getCode());
         exp.setProjectId(new ProjectIdentifier(space, proj));
@@ -171,28 +203,83 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
         expCreations.add(exp);
       }
     }
-    if (expCreations.size() > 0) {
-      logger.info("Sending " + expCreations.size() + " new experiments to the V3 API.");
-      IOperation operation = new CreateExperimentsOperation(expCreations);
-      return api.handleOperations(operation);
-    }
-    return true;
+    return expCreations;
+  }
+
+  /**
+   * Sets the number of sample batches that are sent to openBIS at the same time
+   * 
+   * @param parallelism number of concurrently registered batches, at least 1
+   */
+  public void setRegistrationParallelism(int parallelism) {
+    this.registrationParallelism = parallelism;
+  }
+
+  /**
+   * If set, project, experiments and samples are sent together in as few transactions as possible
+   * instead of one call for the project, one for the experiments and one per sample batch
+   * 
+   * @param combinedRegistration true to use combined registration
+   */
+  public void setCombinedRegistration(boolean combinedRegistration) {
+    this.combinedRegistration = combinedRegistration;
+  }
+
+  /**
+   * If set, experiments and samples are submitted for asynchronous execution in openBIS and their
+   * execution state is polled, instead of blocking on every call
+   * 
+   * @param asyncExecution true to use asynchronous execution
+   */
+  public void setAsyncExecution(boolean asyncExecution) {
+    this.asyncExecution = asyncExecution;
   }
 
-  private List<List<ISampleBean>> splitSamplesIntoBatches(List<ISampleBean> samples,
-      int targetSize) {
-    List<List<ISampleBean>> res = new ArrayList<List<ISampleBean>>();
-    int size = samples.size();
-    if (size < targetSize)
-      return new ArrayList<List<ISampleBean>>(Arrays.asList(samples));
-    for (int i = 0; i < size / targetSize; i++) {
-      int from = i * targetSize;
-      int to = (i + 1) * targetSize;
-      res.add(samples.subList(from, to));
-      if (to > size - targetSize && to != size)
-        res.add(samples.subList(to, size));
+  /**
+   * Sends operations to openBIS and blocks until they are executed
+   * 
+   * @param ops operations to execute in one transaction
+   * @return true if the operations were executed
+   */
+  private boolean executeOperations(List<IOperation> ops) {
+    return executeOperationsAsync(ops).join();
+  }
+
+  /**
+   * Sends operations to openBIS, asynchronously if that mode is set. In that mode the calling
+   * thread is not blocked while openBIS executes them. Project creation is always executed
+   * synchronously, so the fallback to the config user in handleOperations still works.
+   * 
+   * @param ops operations to execute in one transaction
+   * @return completed with true once the operations were executed
+   */
+  private CompletableFuture<Boolean> executeOperationsAsync(List<IOperation> ops) {
+    if (asyncExecution) {
+      boolean createsProject = false;
+      for (IOperation op : ops) {
+        createsProject |= op instanceof CreateProjectsOperation;
+      }
+      if (!createsProject) {
+        return tracker.execute(ops);
+      }
     }
-    return res;
+    return CompletableFuture.completedFuture(api.handleOperations(ops));
+  }
+
+  /**
+   * Sets a listener that is informed about the size and registration time of every sample batch
+   * 
+   * @param listener the listener, can be null
+   */
+  public void setBatchMetricsListener(AdaptiveBatchSizer.BatchMetricsListener listener) {
+    this.batchMetricsListener = listener;
+  }
+
+  private AdaptiveBatchSizer createBatchSizer() {
+    AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(SPLIT_AT_ENTITY_SIZE, MIN_BATCH_SIZE,
+        MAX_BATCH_SIZE, TARGET_BATCH_MILLIS);
+    sizer.setMetricsListener(batchMetricsListener);
+    return sizer;
   }
 
   /**
@@ -216,6 +303,12 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
         String project = p.getProjectCode();
         String desc = p.getDescription();
 
+        if (combinedRegistration) {
+          registerCombined(space, project, desc, exps, tsvSampleHierarchy, null);
+          UI.getCurrent().setPollInterval(-1);
+          return;
+        }
+
         boolean success = true;
 
         if (!openbis.projectExists(space, project)) {
@@ -236,36 +329,54 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
           UI.getCurrent().setPollInterval(-1);
           return;
         }
-        int i = 0;
-        for (List<ISampleBean> level : tsvSampleHierarchy) {
-          i++;
-          logger.info("registration of level " + i);
-
-          boolean batchSuccess;
-          if (level.size() > SPLIT_AT_ENTITY_SIZE) {
-            for (List<ISampleBean> batch : splitSamplesIntoBatches(level, SPLIT_AT_ENTITY_SIZE)) {
-              batchSuccess = registerSampleBatch(batch);
-              if (!batchSuccess) {
-                UI.getCurrent().setPollInterval(-1);
-                return;
-              }
-            }
-          } else {
-            batchSuccess = registerSampleBatch(level);
-            if (!batchSuccess) {
-              UI.getCurrent().setPollInterval(-1);
-              return;
-            }
-          }
+        SampleBatchRegistrationEngine engine = new SampleBatchRegistrationEngine(
+            OpenbisV3CreationController.this, registrationParallelism, createBatchSizer());
+        SampleBatchRegistrationEngine.Result result = engine.register(tsvSampleHierarchy, null);
+        if (!result.isSuccess()) {
+          errors = result.getErrorReport();
+          logger.error(errors);
         }
         UI.getCurrent().setPollInterval(-1);
-        api.logout();
       }
     });
     t.start();
     UI.getCurrent().setPollInterval(100);
   }
 
+  /**
+   * Updates the metadata of existing experiments and waits until openBIS reports all of them as
+   * modified
+   * 
+   * @return false if not all experiments were updated in time
+   */
+  private boolean updateExperimentsAndWait(String space, String project,
+      Map<String, Map<String, Object>> entitiesToUpdate) {
+    if (entitiesToUpdate.isEmpty()) {
+      return true;
+    }
+    List<String> expIDs = new ArrayList<>();
+    for (String experiment : entitiesToUpdate.keySet()) {
+      expIDs.add(ExperimentCodeFunctions.getExperimentIdentifier(space, project, experiment));
+    }
+    Map<String, Date> modificationDates = api.getExperimentModificationDates(expIDs);
+    List<CompletableFuture<Boolean>> updates = new ArrayList<>();
+    for (String experiment : entitiesToUpdate.keySet()) {
+      String expID = ExperimentCodeFunctions.getExperimentIdentifier(space, project, experiment);
+      updateExperiment(expID, entitiesToUpdate.get(experiment));
+      updates.add(api.getStateWatcher().awaitExperimentModified(expID,
+          modificationDates.get(expID), EXPERIMENT_UPDATE_TIMEOUT_MILLIS));
+    }
+    for (CompletableFuture<Boolean> updated : updates) {
+      if (!updated.join()) {
+        errors = "could not update existing experimental design, not registering samples!";
+        logger.error(errors);
+        return false;
+      }
+    }
+    logger.debug("completed update of experimental design successfully");
+    return true;
+  }
+
   /**
    * this is the one normally called!
    * 
@@ -281,68 +392,64 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
   public void registerProjectWithExperimentsAndSamplesBatchWise(
       final List<List<ISampleBean>> tsvSampleHierarchy, final String description,
       final List<OpenbisExperiment> informativeExperiments, final ProgressBar bar, final Label info,
-      final Runnable ready, Map<String, Map<String, Object>> entitiesToUpdate,
+      final Runnable ready, final Map<String, Map<String, Object>> entitiesToUpdate,
       final boolean isPilot) {
     errors = "";
 
     RegisterableProject p =
         new RegisterableProject(tsvSampleHierarchy, description, informativeExperiments, isPilot);
 
-    for (String experiment : entitiesToUpdate.keySet()) {
-      String expID = ExperimentCodeFunctions.getExperimentIdentifier(p.getSpace(),
-          p.getProjectCode(), experiment);
-      long modificationTime = openbis.getExperimentById(expID).getModificationDate().getTime();
-
-      updateExperiment(expID, entitiesToUpdate.get(experiment));
-
-      long newModificationTime = modificationTime;
-      double TIMEOUT = 10000;
-
-      while (newModificationTime == modificationTime && TIMEOUT > 0) {
-        newModificationTime = openbis.getExperimentById(expID).getModificationDate().getTime();
-        TIMEOUT -= 300;
-        try {
-          Thread.sleep(300);
-        } catch (InterruptedException e1) {
-          // TODO Auto-generated catch block
-          e1.printStackTrace();
-        }
-
-      }
-      if (TIMEOUT < 0) {
-        errors = "could not update existing experimental design, not registering samples!";
-        logger.error(errors);
-        return;
-      } else {
-        logger.debug("completed update of experimental design successfully");
-      }
-    }
-
     logger.debug("User sending samples: " + user);
+    final UI ui = UI.getCurrent();
     Thread t = new Thread(new Runnable() {
-      volatile int current = -1;
 
       @Override
       public void run() {
         info.setCaption("Collecting information");
-        UI.getCurrent().access(new UpdateProgressBar(bar, info, 0.01));
+        ui.access(new UpdateProgressBar(bar, info, 0.01));
+        if (!updateExperimentsAndWait(p.getSpace(), p.getProjectCode(), entitiesToUpdate)) {
+          bar.setVisible(false);
+          info.setCaption("An error occured.");
+          ui.setPollInterval(-1);
+          ui.access(ready);
+          return;
+        }
         List<RegisterableExperiment> exps = p.getExperiments();
         String space = p.getSpace().toUpperCase();
         String project = p.getProjectCode();
         String desc = p.getDescription();
 
-        int splitSteps = 0;
-        // find out which experiments have so many samples they should be sent in multiple packages
-        for (RegisterableExperiment exp : exps) {
-          splitSteps += exp.getSamples().size() / (SPLIT_AT_ENTITY_SIZE + 1);
+        // in asynchronous mode a batch is done once openBIS reports its execution as finished
+        SampleBatchRegistrationEngine.BatchListener progress =
+            new SampleBatchRegistrationEngine.BatchListener() {
+
+              @Override
+              public void batchDone(List<ISampleBean> batch, boolean success, int samplesDone,
+                  int samplesTotal) {
+                // the last step is only reported once all batches are done
+                double frac = Math.min(0.99, samplesDone * 1.0 / samplesTotal);
+                ui.access(new UpdateProgressBar(bar, info, frac));
+              }
+            };
+
+        if (combinedRegistration) {
+          info.setCaption("Registering Project, Experiments and Samples");
+          ui.access(new UpdateProgressBar(bar, info, 0.0));
+          if (!registerCombined(space, project, desc, exps, tsvSampleHierarchy, progress)) {
+            bar.setVisible(false);
+            info.setCaption("An error occured.");
+            ui.setPollInterval(-1);
+            ui.access(ready);
+            return;
+          }
+          ui.access(new UpdateProgressBar(bar, info, 1.0));
+          ui.setPollInterval(-1);
+          ui.access(ready);
+          return;
         }
 
-        final int todo = tsvSampleHierarchy.size() + splitSteps + 1;
-        // bar
-        current++;
-        double frac = current * 1.0 / todo;
         info.setCaption("Registering Project and Experiments");
-        UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
+        ui.access(new UpdateProgressBar(bar, info, 0.0));
         boolean success = true;
         if (!openbis.projectExists(space, project)) {
           success = registerProject(space, project, desc);
@@ -360,56 +467,33 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
           // experiments were not registered, break registration
           bar.setVisible(false);
           info.setCaption("An error occured.");
-          UI.getCurrent().setPollInterval(-1);
-          UI.getCurrent().access(ready);
+          ui.setPollInterval(-1);
+          ui.access(ready);
           return;
         }
-        int i = 0;
-        for (List<ISampleBean> level : tsvSampleHierarchy) {
-          i++;
-          logger.info("registration of level " + i);
-          info.setCaption("Registering samples");
-          info.setValue("");
-          current++;
-          frac = current * 1.0 / todo;
-          UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
-          boolean batchSuccess;
-          if (level.size() > SPLIT_AT_ENTITY_SIZE) {
-            for (List<ISampleBean> batch : splitSamplesIntoBatches(level, SPLIT_AT_ENTITY_SIZE)) {
-              batchSuccess = registerSampleBatch(batch);
-              if (!batchSuccess) {
-                bar.setVisible(false);
-                info.setCaption("An error occured.");
-                UI.getCurrent().setPollInterval(-1);
-                UI.getCurrent().access(ready);
-                return;
-              }
-              current++;
-              frac = current * 1.0 / todo;
-              UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
-            }
-          } else {
-            batchSuccess = registerSampleBatch(level);
-            if (!batchSuccess) {
-              bar.setVisible(false);
-              info.setCaption("An error occured.");
-              UI.getCurrent().setPollInterval(-1);
-              UI.getCurrent().access(ready);
-              return;
-            }
-          }
+        info.setCaption("Registering samples");
+        info.setValue("");
+        SampleBatchRegistrationEngine engine = new SampleBatchRegistrationEngine(
+            OpenbisV3CreationController.this, registrationParallelism, createBatchSizer());
+        SampleBatchRegistrationEngine.Result result =
+            engine.register(tsvSampleHierarchy, progress);
+        if (!result.isSuccess()) {
+          errors = result.getErrorReport();
+          logger.error(errors);
+          bar.setVisible(false);
+          info.setCaption("An error occured.");
+          ui.setPollInterval(-1);
+          ui.access(ready);
+          return;
         }
-        current++;
-        frac = current * 1.0 / todo;
-        UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
+        ui.access(new UpdateProgressBar(bar, info, 1.0));
 
-        UI.getCurrent().setPollInterval(-1);
-        UI.getCurrent().access(ready);
-        api.logout();
+        ui.setPollInterval(-1);
+        ui.access(ready);
       }
     });
     t.start();
-    UI.getCurrent().setPollInterval(100);
+    ui.setPollInterval(100);
   }
 
   public void updateProjectSpace(List<String> projectCodes, String oldSpace, String newSpace) {
@@ -542,13 +626,32 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
 
   @Override
   public boolean registerSampleBatch(List<ISampleBean> samples) {
-    List<SampleCreation> newSamples = new ArrayList<>();
+    return registerSampleBatchAsync(samples).join();
+  }
 
+  @Override
+  public CompletableFuture<Boolean> registerSampleBatchAsync(List<ISampleBean> samples) {
     if (samples.size() == 0)
-      return true;
+      return CompletableFuture.completedFuture(true);
+
+    List<SampleCreation> newSamples = prepareSamples(samples);
+    logger.info("Sending " + newSamples.size() + " new samples to V3 API.");
+
+    IOperation operation = new CreateSamplesOperation(newSamples);
+    return executeOperationsAsync(Arrays.asList(operation));
+  }
+
+  private List<SampleCreation> prepareSamples(List<ISampleBean> samples) {
+    List<SampleCreation> newSamples = new ArrayList<>();
+
+    List<String> codes = new ArrayList<>();
+    for (ISampleBean sample : samples) {
+      codes.add(sample.getCode());
+    }
+    Set<String> existing = api.getExistingSampleCodes(codes);
 
     for (ISampleBean sample : samples) {
-      if (openbis.sampleExists(sample.getCode())) {
+      if (existing.contains(sample.getCode())) {
         logger.warn(sample.getCode() + " already exists."
             + " Removing this sample from registration process.");
       } else {
@@ -583,10 +686,91 @@ public class OpenbisV3CreationController implements IOpenbisCreationController {
         newSamples.add(sampleCreation);
       }
     }
-    logger.info("Sending " + newSamples.size() + " new samples to V3 API.");
+    return newSamples;
+  }
 
-    IOperation operation = new CreateSamplesOperation(newSamples);
-    return api.handleOperations(operation);
+  /**
+   * Registers project (if new), experiments and the sample hierarchy with as few calls to the V3
+   * API as possible. A new project is created in its own call first. Experiments and samples are
+   * collected in level order and only split into a new call once MAX_ENTITIES_PER_CALL is reached.
+   * Every call is one transaction, so experiments and samples that fit into a single call are
+   * either registered completely or not at all.
+   * 
+   * @param listener notified after every call with the samples it contained, can be null
+   * @return true if all calls were successful
+   */
+  private boolean registerCombined(String space, String project, String description,
+      List<RegisterableExperiment> exps, List<List<ISampleBean>> levels,
+      SampleBatchRegistrationEngine.BatchListener listener) {
+    List<List<IOperation>> calls = new ArrayList<>();
+    List<List<ISampleBean>> samplesOfCalls = new ArrayList<>();
+    List<IOperation> ops = new ArrayList<>();
+    List<ISampleBean> opSamples = new ArrayList<>();
+    int entities = 0;
+
+    boolean newProject = !openbis.projectExists(space, project);
+    if (newProject) {
+      // sent alone, so only the project is created by the config user if the user may not
+      if (!registerProject(space, project, description)) {
+        if (errors.isEmpty()) {
+          errors = "Project could not be registered.";
+        }
+        return false;
+      }
+    }
+    // experiments of a new project can't exist yet
+    List<ExperimentCreation> expCreations = prepareExperiments(space, project, exps, !newProject);
+    if (!expCreations.isEmpty()) {
+      ops.add(new CreateExperimentsOperation(expCreations));
+      entities += expCreations.size();
+    }
+    int total = 0;
+    for (List<ISampleBean> level : levels) {
+      total += level.size();
+      int from = 0;
+      while (from < level.size()) {
+        if (entities >= MAX_ENTITIES_PER_CALL) {
+          calls.add(ops);
+          samplesOfCalls.add(opSamples);
+          ops = new ArrayList<>();
+          opSamples = new ArrayList<>();
+          entities = 0;
+        }
+        int to = Math.min(from + MAX_ENTITIES_PER_CALL - entities, level.size());
+        List<ISampleBean> part = level.subList(from, to);
+        from = to;
+        List<SampleCreation> sampleCreations = prepareSamples(part);
+        if (!sampleCreations.isEmpty()) {
+          ops.add(new CreateSamplesOperation(sampleCreations));
+        }
+        opSamples.addAll(part);
+        entities += part.size();
+      }
+    }
+    if (!ops.isEmpty() || !opSamples.isEmpty()) {
+      calls.add(ops);
+      samplesOfCalls.add(opSamples);
+    }
+
+    int done = 0;
+    for (int i = 0; i < calls.size(); i++) {
+      List<IOperation> call = calls.get(i);
+      List<ISampleBean> samples = samplesOfCalls.get(i);
+      logger.info("Sending " + call.size() + " operations (call " + (i + 1) + " of "
+          + calls.size() + ") to the V3 API.");
+      boolean success = call.isEmpty() || executeOperations(call);
+      done += samples.size();
+      if (listener != null) {
+        listener.batchDone(samples, success, done, total);
+      }
+      if (!success) {
+        errors = "Registration failed in call " + (i + 1) + " of " + calls.size()
+            + ". Entities of this and later calls were not registered.";
+        logger.error(errors);
+        return false;
+      }
+    }
+    return true;
   }
 
   public String getErrors() {
@@ -0,0 +1,164 @@
+package life.qbic.projectwizard.registration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ch.ethz.sis.openbis.generic.asapi.v3.IApplicationServerApi;
+import ch.systemsx.cisd.common.spring.HttpInvokerUtils;
+
+/**
+ * Keeps openBIS V3 sessions of the config user and of the users it logs in on behalf of, so they
+ * can be shared by all UIs of the portlet. There is one manager and one API proxy per server and
+ * config user. Sessions are created on first use, checked again once they have not been validated
+ * for a while and replaced once the server reports them as inactive. Replaced sessions are not
+ * logged out, other threads of the user may still use their token. Calls to the server only lock
+ * the session of the user they are made for, so slow logins do not hold up other users.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class OpenbisV3SessionManager {
+
+  private static final Logger logger = LogManager.getLogger(OpenbisV3SessionManager.class);
+
+  private static final int TIMEOUT = 10000;
+  private static final long LOGIN_RETRY_MILLIS = 60 * 60 * 1000;
+  private static final long VALIDATE_AFTER_MILLIS = 5 * 60 * 1000;
+
+  private static final Map<String, OpenbisV3SessionManager> managers = new HashMap<>();
+
+  private final IApplicationServerApi api;
+  private final String adminUser;
+  private final String pw;
+  private final Object adminLock = new Object();
+  private Session adminSession;
+  private final Map<String, Session> userSessions = new ConcurrentHashMap<>();
+  private final Map<String, Object> userLocks = new ConcurrentHashMap<>();
+
+  private static class Session {
+    // null if the user could not be logged in
+    private final String token;
+    private final long created = System.currentTimeMillis();
+    private long validated = created;
+
+    private Session(String token) {
+      this.token = token;
+    }
+  }
+
+  private OpenbisV3SessionManager(String serviceURL, String adminUser, String pw) {
+    this.api = HttpInvokerUtils.createServiceStub(IApplicationServerApi.class, serviceURL, TIMEOUT);
+    this.adminUser = adminUser;
+    this.pw = pw;
+  }
+
+  /**
+   * @param serviceURL URL of the V3 application server API
+   * @param adminUser config user that logs in other users
+   * @param pw password of the config user
+   * @return the manager shared by all users of this server and config user
+   */
+  public static synchronized OpenbisV3SessionManager getInstance(String serviceURL,
+      String adminUser, String pw) {
+    String key = adminUser + "@" + serviceURL;
+    if (!managers.containsKey(key)) {
+      managers.put(key, new OpenbisV3SessionManager(serviceURL, adminUser, pw));
+    }
+    return managers.get(key);
+  }
+
+  public IApplicationServerApi getApi() {
+    return api;
+  }
+
+  /**
+   * @return a valid session token of the config user, logging in if needed
+   */
+  public String getAdminToken() {
+    synchronized (adminLock) {
+      if (!isUsable(adminSession)) {
+        logger.info("Logging in to the openBIS V3 API as config user: " + adminUser);
+        adminSession = new Session(api.login(adminUser, pw));
+        if (adminSession.token != null) {
+          logger.info("Successfully logged in.");
+        }
+      }
+      return adminSession.token;
+    }
+  }
+
+  /**
+   * @return a valid session token of the user or null, if the user can not be logged in
+   */
+  public String getUserToken(String user) {
+    synchronized (lockOf(user)) {
+      Session session = userSessions.get(user);
+      if (!isUsable(session)) {
+        logger.info("Logging in to the openBIS V3 API as user " + user + ".");
+        session = new Session(api.loginAs(adminUser, pw, user));
+        if (session.token != null) {
+          logger.info("Successfully logged in.");
+        } else {
+          logger.info("Could not login, using config user.");
+        }
+        userSessions.put(user, session);
+      }
+      return session.token;
+    }
+  }
+
+  /**
+   * Logs out the session of a user and removes it from the cache
+   */
+  public void logout(String user) {
+    synchronized (lockOf(user)) {
+      logout(userSessions.remove(user), user);
+    }
+  }
+
+  private Object lockOf(String user) {
+    return userLocks.computeIfAbsent(user, u -> new Object());
+  }
+
+  /**
+   * Logs out a session that is removed. Sessions that already ended on the server are ignored.
+   */
+  private void logout(Session session, String user) {
+    if (session == null || session.token == null) {
+      return;
+    }
+    logger.info("Logging out " + user + " of the openBIS V3 API.");
+    try {
+      api.logout(session.token);
+    } catch (RuntimeException e) {
+      logger.warn("Could not log out openBIS session of " + user + ": " + e.getMessage());
+    }
+  }
+
+  private boolean isUsable(Session session) {
+    if (session == null) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    // failed logins are retried after a while
+    if (session.token == null) {
+      return now - session.created <= LOGIN_RETRY_MILLIS;
+    }
+    // the server extends sessions that are in use, so only inactive ones are replaced
+    if (now - session.validated > VALIDATE_AFTER_MILLIS) {
+      try {
+        if (!api.isSessionActive(session.token)) {
+          return false;
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Could not validate openBIS session: " + e.getMessage());
+        return false;
+      }
+      session.validated = now;
+    }
+    return true;
+  }
+
+}
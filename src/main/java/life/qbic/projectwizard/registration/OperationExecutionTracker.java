@@ -0,0 +1,141 @@
+package life.qbic.projectwizard.registration;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.common.operation.IOperation;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.OperationExecution;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.OperationExecutionState;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.operation.id.IOperationExecutionId;
+
+/**
+ * Waits for asynchronously submitted openBIS operations. All tracked executions are fetched with
+ * one call per tick. The poll interval grows while nothing changes and is reset when an execution
+ * changes its state. Callers get a future per execution, so no thread is blocked while openBIS
+ * executes the operations.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class OperationExecutionTracker {
+
+  private static final Logger logger = LogManager.getLogger(OperationExecutionTracker.class);
+
+  private static final long MIN_POLL_MILLIS = 200;
+  private static final long MAX_POLL_MILLIS = 5000;
+  private static final long MAX_WAIT_MILLIS = 60 * 60 * 1000;
+
+  private final OpenbisV3APIWrapper api;
+  private final Map<IOperationExecutionId, TrackedExecution> pending = new LinkedHashMap<>();
+  private ScheduledExecutorService scheduler;
+  private long delay = MIN_POLL_MILLIS;
+
+  private static class TrackedExecution {
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+    private final long start = System.currentTimeMillis();
+    private OperationExecutionState state;
+  }
+
+  public OperationExecutionTracker(OpenbisV3APIWrapper api) {
+    this.api = api;
+  }
+
+  /**
+   * Starts waiting for an execution
+   *
+   * @param id execution id returned by the V3 API
+   * @return completed with true once the execution is finished or with false if it failed
+   */
+  public synchronized CompletableFuture<Boolean> track(IOperationExecutionId id) {
+    TrackedExecution execution = new TrackedExecution();
+    pending.put(id, execution);
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor();
+      delay = MIN_POLL_MILLIS;
+      scheduler.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+    }
+    return execution.future;
+  }
+
+  /**
+   * Submits operations for asynchronous execution
+   *
+   * @return completed with true once the operations are executed, with false if they could not be
+   *         submitted or failed
+   */
+  public CompletableFuture<Boolean> execute(List<IOperation> ops) {
+    IOperationExecutionId id = api.submitOperations(ops);
+    if (id == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return track(id);
+  }
+
+  private void poll() {
+    Map<IOperationExecutionId, TrackedExecution> current;
+    synchronized (this) {
+      current = new HashMap<>(pending);
+    }
+    boolean changed = false;
+    try {
+      Map<IOperationExecutionId, OperationExecution> executions =
+          api.getOperationExecutions(current.keySet());
+      for (IOperationExecutionId id : current.keySet()) {
+        TrackedExecution tracked = current.get(id);
+        OperationExecution execution = executions.get(id);
+        if (execution == null) {
+          continue;
+        }
+        OperationExecutionState state = execution.getState();
+        if (state != tracked.state) {
+          changed = true;
+          tracked.state = state;
+        }
+        if (OperationExecutionState.FINISHED.equals(state)) {
+          finish(id, tracked, true);
+        } else if (OperationExecutionState.FAILED.equals(state)) {
+          String error = "unknown error";
+          if (execution.getDetails() != null && execution.getDetails().getError() != null) {
+            error = execution.getDetails().getError().getMessage();
+          }
+          logger.error("Operation execution " + id + " failed: " + error);
+          finish(id, tracked, false);
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Could not fetch state of operation executions: " + e.getMessage());
+    }
+    long now = System.currentTimeMillis();
+    for (IOperationExecutionId id : current.keySet()) {
+      TrackedExecution tracked = current.get(id);
+      if (!tracked.future.isDone() && now - tracked.start > MAX_WAIT_MILLIS) {
+        logger.error("Gave up waiting for operation execution " + id);
+        finish(id, tracked, false);
+      }
+    }
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        scheduler.shutdown();
+        scheduler = null;
+      } else {
+        delay = changed ? MIN_POLL_MILLIS : Math.min(delay * 2, MAX_POLL_MILLIS);
+        scheduler.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void finish(IOperationExecutionId id, TrackedExecution tracked, boolean success) {
+    synchronized (this) {
+      pending.remove(id);
+    }
+    tracked.future.complete(success);
+  }
+
+}
@@ -0,0 +1,297 @@
+package life.qbic.projectwizard.registration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import life.qbic.datamodel.samples.ISampleBean;
+
+/**
+ * Registers the levels of a sample hierarchy in batches. Batches are sent concurrently through a
+ * bounded thread pool. A batch only waits for the batches that contain its parent samples, so
+ * independent batches of the same or of different levels do not block each other.
+ *
+ * Every batch is sent in its own openBIS transaction, so a failed batch is rolled back by the
+ * server. Batches depending on a failed batch are skipped. Both are reported in the result. If the
+ * registering thread is interrupted, no further batches are sent and the rest are skipped.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class SampleBatchRegistrationEngine {
+
+  private static final Logger logger = LogManager.getLogger(SampleBatchRegistrationEngine.class);
+
+  private final IOpenbisCreationController creator;
+  private final int parallelism;
+  private final AdaptiveBatchSizer batchSizer;
+
+  /**
+   * Is notified after each batch was sent (or skipped). May be called from pool threads.
+   */
+  public interface BatchListener {
+    public void batchDone(List<ISampleBean> batch, boolean success, int samplesDone,
+        int samplesTotal);
+  }
+
+  /**
+   * Outcome of a registration. Failed batches were rolled back by openBIS, skipped batches were
+   * never sent because one of their parent batches failed.
+   */
+  public static class Result {
+    private final List<List<ISampleBean>> failed = new ArrayList<>();
+    private final List<List<ISampleBean>> skipped = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+    private int batches = 0;
+    private boolean interrupted = false;
+
+    public boolean isSuccess() {
+      return failed.isEmpty() && skipped.isEmpty();
+    }
+
+    public List<List<ISampleBean>> getFailedBatches() {
+      return failed;
+    }
+
+    public List<List<ISampleBean>> getSkippedBatches() {
+      return skipped;
+    }
+
+    public int getNumberOfBatches() {
+      return batches;
+    }
+
+    /**
+     * @return true if sending batches was stopped by an interrupt
+     */
+    public boolean isInterrupted() {
+      return interrupted;
+    }
+
+    public String getSummary() {
+      if (interrupted) {
+        return "Registration was interrupted. " + failed.size() + " of " + batches
+            + " sample batches could not be registered, " + skipped.size() + " were not sent.";
+      }
+      return failed.size() + " of " + batches + " sample batches could not be registered, "
+          + skipped.size() + " depending batches were skipped.";
+    }
+
+    /**
+     * @return one error message per failed batch
+     */
+    public List<String> getErrors() {
+      return errors;
+    }
+
+    /**
+     * @return the summary followed by the error of every failed batch
+     */
+    public String getErrorReport() {
+      StringBuilder res = new StringBuilder(getSummary());
+      for (String error : errors) {
+        res.append("\n").append(error);
+      }
+      return res.toString();
+    }
+  }
+
+  public SampleBatchRegistrationEngine(IOpenbisCreationController creator, int parallelism,
+      int batchSize) {
+    this(creator, parallelism, AdaptiveBatchSizer.fixed(batchSize));
+  }
+
+  /**
+   * @param creator controller used to register single batches
+   * @param parallelism maximum number of batches sent at the same time
+   * @param batchSizer asked for the size of every new batch and informed about its timing
+   */
+  public SampleBatchRegistrationEngine(IOpenbisCreationController creator, int parallelism,
+      AdaptiveBatchSizer batchSizer) {
+    this.creator = creator;
+    this.parallelism = Math.max(1, parallelism);
+    this.batchSizer = batchSizer;
+  }
+
+  /**
+   * Registers all levels of the sample hierarchy and blocks until every batch is done.
+   *
+   * @param levels sample hierarchy, parents are expected in earlier levels than their children
+   * @param listener notified after every batch, can be null
+   * @return the outcome of all batches
+   */
+  public Result register(List<List<ISampleBean>> levels, BatchListener listener) {
+    Result result = new Result();
+    int total = 0;
+    for (List<ISampleBean> level : levels) {
+      total += level.size();
+    }
+    final int samplesTotal = total;
+    final int[] samplesDone = new int[1];
+
+    ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+    // batches whose parents are done and that are queued or running. Batches still waiting for
+    // their parents do not count, so they can not keep independent batches from being sent
+    final int[] ready = new int[1];
+    Map<String, CompletableFuture<Boolean>> batchOfSample = new HashMap<>();
+    List<CompletableFuture<Boolean>> all = new ArrayList<>();
+    int unsent = 0;
+    boolean interrupted = false;
+    try {
+      int levelNum = 0;
+      for (List<ISampleBean> level : levels) {
+        levelNum++;
+        logger.info("registration of level " + levelNum);
+        int from = 0;
+        while (from < level.size()) {
+          // the size is chosen once a slot is free, so it reflects the latest measurements
+          if (!interrupted && !awaitFreeSlot(ready)) {
+            logger.warn("Registration was interrupted, remaining sample batches are not sent.");
+            interrupted = true;
+          }
+          int to = Math.min(from + batchSizer.getBatchSize(), level.size());
+          final List<ISampleBean> batch = level.subList(from, to);
+          from = to;
+          if (interrupted) {
+            synchronized (result) {
+              result.skipped.add(batch);
+            }
+            unsent++;
+            batchDone(listener, batch, false, samplesDone, samplesTotal);
+            continue;
+          }
+          final List<CompletableFuture<Boolean>> parents =
+              new ArrayList<>(parentBatches(batch, batchOfSample));
+
+          CompletableFuture<Boolean> f =
+              CompletableFuture.allOf(parents.toArray(new CompletableFuture[parents.size()]))
+                  .handle((v, e) -> {
+                    // the slot is taken once the parents are done
+                    synchronized (ready) {
+                      ready[0]++;
+                    }
+                    return v;
+                  }).thenComposeAsync(v -> {
+                    for (CompletableFuture<Boolean> p : parents) {
+                      if (!p.join()) {
+                        synchronized (result) {
+                          result.skipped.add(batch);
+                        }
+                        logger.warn("Skipping batch of " + batch.size()
+                            + " samples, because a parent batch was not registered.");
+                        return CompletableFuture.completedFuture(false);
+                      }
+                    }
+                    long start = System.currentTimeMillis();
+                    CompletableFuture<Boolean> registration;
+                    try {
+                      registration = creator.registerSampleBatchAsync(batch);
+                    } catch (RuntimeException e) {
+                      registration = new CompletableFuture<>();
+                      registration.completeExceptionally(e);
+                    }
+                    // the pool thread is free while openBIS executes an asynchronous registration
+                    return registration.whenComplete((success, e) -> {
+                      batchSizer.report(batch.size(), System.currentTimeMillis() - start,
+                          e == null && Boolean.TRUE.equals(success));
+                    }).thenApply(success -> {
+                      if (!success) {
+                        synchronized (result) {
+                          result.failed.add(batch);
+                          result.errors.add(describe(batch) + " could not be registered.");
+                        }
+                      }
+                      return success;
+                    });
+                  }, pool).exceptionally(e -> {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    logger.error("Registration of sample batch failed: " + cause.getMessage());
+                    synchronized (result) {
+                      result.failed.add(batch);
+                      result.errors
+                          .add(describe(batch) + " could not be registered: " + cause.getMessage());
+                    }
+                    return false;
+                  });
+          CompletableFuture<Boolean> done = f.whenComplete((success, e) -> {
+            synchronized (ready) {
+              ready[0]--;
+              ready.notifyAll();
+            }
+            batchDone(listener, batch, Boolean.TRUE.equals(success), samplesDone, samplesTotal);
+          });
+          for (ISampleBean s : batch) {
+            batchOfSample.put(s.getCode(), done);
+          }
+          all.add(done);
+        }
+      }
+      // batches that were already sent are waited for, so their outcome is known
+      CompletableFuture.allOf(all.toArray(new CompletableFuture[all.size()])).join();
+    } finally {
+      pool.shutdown();
+    }
+    result.batches = all.size() + unsent;
+    result.interrupted = interrupted;
+    return result;
+  }
+
+  private void batchDone(BatchListener listener, List<ISampleBean> batch, boolean success,
+      int[] samplesDone, int samplesTotal) {
+    int registered;
+    synchronized (samplesDone) {
+      samplesDone[0] += batch.size();
+      registered = samplesDone[0];
+    }
+    if (listener != null) {
+      try {
+        listener.batchDone(batch, success, registered, samplesTotal);
+      } catch (RuntimeException r) {
+        logger.warn("Could not report progress of sample registration: " + r.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return false if the thread was interrupted while waiting, the interrupt flag is kept
+   */
+  private boolean awaitFreeSlot(int[] ready) {
+    synchronized (ready) {
+      while (ready[0] >= parallelism) {
+        try {
+          ready.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return !Thread.currentThread().isInterrupted();
+  }
+
+  private String describe(List<ISampleBean> batch) {
+    return "Samples " + batch.get(0).getCode() + " to " + batch.get(batch.size() - 1).getCode();
+  }
+
+  private Set<CompletableFuture<Boolean>> parentBatches(List<ISampleBean> batch,
+      Map<String, CompletableFuture<Boolean>> batchOfSample) {
+    Set<CompletableFuture<Boolean>> res = new LinkedHashSet<>();
+    for (ISampleBean s : batch) {
+      for (String parent : s.getParentIDs()) {
+        CompletableFuture<Boolean> f = batchOfSample.get(parent);
+        if (f != null) {
+          res.add(f);
+        }
+      }
+    }
+    return res;
+  }
+
+}
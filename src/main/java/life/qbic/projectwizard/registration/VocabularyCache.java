@@ -0,0 +1,150 @@
+package life.qbic.projectwizard.registration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.VocabularyTerm;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.fetchoptions.VocabularyTermFetchOptions;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.vocabulary.search.VocabularyTermSearchCriteria;
+
+/**
+ * Portlet-wide cache of openBIS vocabulary terms. All vocabularies are loaded with one search and
+ * refreshed in the background, while the previously loaded terms are still returned. Terms are
+ * loaded with the session of the config user, so the cache does not depend on any single UI.
+ *
+ * @author Andreas Friedrich
+ *
+ */
+public class VocabularyCache {
+
+  private static final Logger logger = LogManager.getLogger(VocabularyCache.class);
+
+  private static final Map<OpenbisV3SessionManager, VocabularyCache> instances = new HashMap<>();
+
+  private final OpenbisV3SessionManager sessions;
+  private final Set<String> vocabularies;
+  private final ScheduledExecutorService refresher;
+  // terms by vocabulary code, sorted by ordinal. replaced as a whole on refresh
+  private volatile Map<String, List<VocabularyTerm>> terms = new HashMap<>();
+
+  private VocabularyCache(OpenbisV3SessionManager sessions, Collection<String> vocabularies,
+      long refreshMinutes) {
+    this.sessions = sessions;
+    this.vocabularies = new LinkedHashSet<>(vocabularies);
+    refresh();
+    refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "vocabulary-cache-refresh");
+      t.setDaemon(true);
+      return t;
+    });
+    refresher.scheduleWithFixedDelay(this::refresh, refreshMinutes, refreshMinutes,
+        TimeUnit.MINUTES);
+  }
+
+  /**
+   * Returns the cache shared by all UIs of a server, loading the vocabularies on first use
+   *
+   * @param sessions sessions of the server, the config user's is used to load the vocabularies
+   * @param vocabularies codes of all vocabularies to cache
+   * @param refreshMinutes minutes between two background refreshes
+   */
+  public static synchronized VocabularyCache getInstance(OpenbisV3SessionManager sessions,
+      Collection<String> vocabularies, long refreshMinutes) {
+    VocabularyCache instance = instances.get(sessions);
+    if (instance == null) {
+      instance = new VocabularyCache(sessions, vocabularies, refreshMinutes);
+      instances.put(sessions, instance);
+    } else if (instance.terms.isEmpty()) {
+      // the first load failed, don't wait for the next scheduled refresh
+      instance.refresh();
+    }
+    return instance;
+  }
+
+  /**
+   * @return labels of the terms of a vocabulary mapped to their codes. Terms without label are
+   *         mapped to themselves.
+   */
+  public Map<String, String> getLabelsToCodes(String vocabulary) {
+    Map<String, String> res = new HashMap<String, String>();
+    for (VocabularyTerm t : getTerms(vocabulary)) {
+      if (t.getLabel() != null && !t.getLabel().isEmpty()) {
+        res.put(t.getLabel(), t.getCode());
+      } else {
+        res.put(t.getCode(), t.getCode());
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return codes of the terms of a vocabulary, in the order defined in openBIS
+   */
+  public List<String> getCodes(String vocabulary) {
+    List<String> res = new ArrayList<String>();
+    for (VocabularyTerm t : getTerms(vocabulary)) {
+      res.add(t.getCode());
+    }
+    return res;
+  }
+
+  private List<VocabularyTerm> getTerms(String vocabulary) {
+    List<VocabularyTerm> res = terms.get(vocabulary);
+    if (res == null) {
+      logger.warn("Vocabulary " + vocabulary + " is not cached.");
+      return Collections.emptyList();
+    }
+    return res;
+  }
+
+  private void refresh() {
+    try {
+      Map<String, List<VocabularyTerm>> loaded = new HashMap<>();
+      for (String vocabulary : vocabularies) {
+        loaded.put(vocabulary, new ArrayList<VocabularyTerm>());
+      }
+      for (VocabularyTerm t : loadTerms()) {
+        String vocabulary = t.getVocabulary().getCode();
+        if (loaded.containsKey(vocabulary)) {
+          loaded.get(vocabulary).add(t);
+        }
+      }
+      for (List<VocabularyTerm> list : loaded.values()) {
+        list.sort(Comparator.comparing(VocabularyTerm::getOrdinal,
+            Comparator.nullsLast(Comparator.naturalOrder())));
+      }
+      terms = loaded;
+      logger.info("Loaded terms of " + loaded.size() + " vocabularies.");
+    } catch (RuntimeException e) {
+      // keep serving the terms of the last successful refresh
+      logger.error("Could not refresh vocabularies: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Fetches the terms of all cached vocabularies with one search
+   */
+  private List<VocabularyTerm> loadTerms() {
+    VocabularyTermSearchCriteria vc = new VocabularyTermSearchCriteria();
+    vc.withOrOperator();
+    for (String vocabulary : vocabularies) {
+      vc.withVocabulary().withCode().thatEquals(vocabulary);
+    }
+    VocabularyTermFetchOptions options = new VocabularyTermFetchOptions();
+    options.withVocabulary();
+    return sessions.getApi().searchVocabularyTerms(sessions.getAdminToken(), vc, options)
+        .getObjects();
+  }
+
+}
@@ -37,6 +37,7 @@ import org.vaadin.teemu.wizards.WizardStep;
 import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
 import com.vaadin.ui.TabSheet;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.TextField;
@@ -69,6 +70,9 @@ public class ConditionInstanceStep implements WizardStep {
   private Map<String, TissueInfo> specialTissueInfos;
 
   private boolean infectionStudy = false;
+  private Label sizeEstimate;
+  private long sampleLimit = Long.MAX_VALUE;
+  private boolean tooManyCombinations = false;
 
   /**
    * Create a new Condition Step for the wizard
@@ -91,6 +95,8 @@ public class ConditionInstanceStep implements WizardStep {
     VerticalLayout frame = new VerticalLayout();
     frame.setCaption("Preview of Combinations");
     frame.addComponent(preview);
+    sizeEstimate = new Label();
+    frame.addComponent(sizeEstimate);
     previewFrame = new CustomVisibilityComponent(frame);
     previewFrame.setVisible(false);
 
@@ -108,13 +114,22 @@ public class ConditionInstanceStep implements WizardStep {
     permutations = new LinkedHashMap<Object, Integer>();
   }
 
+  /**
+   * Sets the maximum number of samples that can be created in the next step
+   */
+  public void setSampleLimit(long sampleLimit) {
+    this.sampleLimit = sampleLimit;
+  }
+
   public void destroyTable() {
     previewFrame.setVisible(false);
     preview.removeAllItems();
   }
 
   public void buildTable(List<String> permutations, String startAmount) {
+    tooManyCombinations = false;
     preview.removeAllItems();
+    preview.setVisible(true);
     int i = 0;
     for (String s : permutations) {
       s = s.replace("###", " ; ");
@@ -122,12 +137,52 @@ public class ConditionInstanceStep implements WizardStep {
       Integer itemId = new Integer(i);
       TextField tf = new StandardTextField();
       tf.setValue(startAmount);
+      tf.addValueChangeListener(e -> updateSizeEstimate());
       preview.addItem(new Object[] {s, tf}, itemId);
     }
     preview.setPageLength(preview.size());
+    updateSizeEstimate();
+    previewFrame.setVisible(true);
+  }
+
+  /**
+   * Replaces the preview by a warning, used if there are too many combinations to list them
+   */
+  public void showTooManyCombinations(long combinations) {
+    tooManyCombinations = true;
+    preview.removeAllItems();
+    preview.setVisible(false);
+    sizeEstimate.setValue(combinations
+        + " combinations of variables would create more samples than the wizard can handle ("
+        + sampleLimit + "). Please remove some variables or levels.");
+    sizeEstimate.setStyleName(ValoTheme.LABEL_FAILURE);
     previewFrame.setVisible(true);
   }
 
+  private long getEstimatedSamples() {
+    long res = 0;
+    for (Object id : preview.getItemIds()) {
+      try {
+        res += parseAmount(preview.getItem(id).getItemProperty("Samples").getValue());
+      } catch (NumberFormatException e) {
+        // invalid amounts are reported when advancing
+      }
+    }
+    return res;
+  }
+
+  private void updateSizeEstimate() {
+    long samples = getEstimatedSamples();
+    if (samples > sampleLimit) {
+      sizeEstimate.setValue(samples + " samples will be created. This is more than the wizard can "
+          + "handle (" + sampleLimit + "), please reduce the number of samples.");
+      sizeEstimate.setStyleName(ValoTheme.LABEL_FAILURE);
+    } else {
+      sizeEstimate.setValue(samples + " samples will be created.");
+      sizeEstimate.setStyleName(ValoTheme.LABEL_LIGHT);
+    }
+  }
+
   @Override
   public String getCaption() {
     return stepName;
@@ -183,6 +238,12 @@ public class ConditionInstanceStep implements WizardStep {
 
   @Override
   public boolean onAdvance() {
+    if (!skip && (tooManyCombinations || getEstimatedSamples() > sampleLimit)) {
+      Styles.notification("Too many samples",
+          "This design would create more than " + sampleLimit + " samples.",
+          NotificationType.ERROR);
+      return false;
+    }
     boolean valid = validInput();
     if (!valid) {
       String error = "";
@@ -22,6 +22,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import org.apache.commons.lang3.tuple.Pair;
@@ -52,6 +56,7 @@ import life.qbic.openbis.openbisclient.OpenBisClient;
 import life.qbic.projectwizard.model.Vocabularies;
 import life.qbic.projectwizard.processes.TSVReadyRunnable;
 import life.qbic.projectwizard.registration.IOpenbisCreationController;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import life.qbic.projectwizard.registration.UpdateProgressBar;
 import life.qbic.projectwizard.uicomponents.UploadsPanel;
 import life.qbic.xml.manager.StudyXMLParser;
@@ -84,14 +89,20 @@ public class FinishStep implements WizardStep {
   private Button browserLink;
 
   private static final Logger logger = LogManager.getLogger(FinishStep.class);
+  private static final long SAMPLE_WAIT_TIMEOUT_MILLIS = 5 * 60 * 1000;
   private List<FileDownloader> downloaders = new ArrayList<FileDownloader>();
   private IOpenbisCreationController creator;
+  private OpenbisV3APIWrapper v3API;
+  private CompletableFuture<Boolean> sampleWait;
+  private CompletableFuture<Void> spreadsheetTask;
+  private ExecutorService tsvPool;
 
   public FinishStep(final Wizard w, AttachmentConfig attachmentConfig,
-      IOpenbisCreationController openbisCreator) {
+      IOpenbisCreationController openbisCreator, OpenbisV3APIWrapper v3API) {
     this.w = w;
     this.attachConfig = attachmentConfig;
     this.creator = openbisCreator;
+    this.v3API = v3API;
 
     main = new VerticalLayout();
     main.setMargin(true);
@@ -225,65 +236,98 @@ public class FinishStep implements WizardStep {
 
   private void prepareSpreadsheets(List<String> sampleTypes, int numSamples, String space,
       final String project, String designExpID, IOpenBisClient openbis) {
+    cancelSpreadsheetPreparation();
 
     FinishStep layout = this;
     bar.setVisible(true);
     info.setVisible(true);
 
-    int todo = 3;
-    Thread t = new Thread(new Runnable() {
-      volatile int current = 0;
-
-      @Override
-      public void run() {
-        updateProgressBar(current, todo, bar, info);
-
-        while (openbis.getSamplesOfProject("/" + space + "/" + project).size() < numSamples) {
-          try {
-            Thread.sleep(50);
-          } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-          }
-        }
-        logger.debug("designexpID " + designExpID);
-        Experiment experiment = openbis.getExperimentById(designExpID);
-        StudyXMLParser parser = new StudyXMLParser();
-        Set<String> factors = new HashSet<>();
-        Map<Pair<String, String>, Property> factorsForLabelsAndSamples = new HashMap<>();
-        String xml = "";
-        if (experiment != null) {
-          xml = experiment.getProperties().get("Q_EXPERIMENTAL_SETUP");
-        }
-        try {
-          JAXBElement<Qexperiment> expDesign = parser.parseXMLString(xml);
-          factors.addAll(parser.getFactorLabels(expDesign));
-          factorsForLabelsAndSamples = parser.getFactorsForLabelsAndSamples(expDesign);
-        } catch (JAXBException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-        // }
-
-        Map<String, List<String>> tables = new HashMap<String, List<String>>();
-        for (String type : sampleTypes) {
-          tables.put(type, openbis.getProjectTSV(project, type));
-          current++;
-          updateProgressBar(current, todo, bar, info);
+    final UI ui = UI.getCurrent();
+    // waiting for the samples counts as one step, each spreadsheet as another
+    final int todo = sampleTypes.size() + 1;
+    final AtomicInteger current = new AtomicInteger(0);
+    updateProgressBar(ui, current.get(), todo);
+
+    // one thread parses the design while the others load the spreadsheets
+    final ExecutorService pool = Executors.newFixedThreadPool(sampleTypes.size() + 1);
+    tsvPool = pool;
+    sampleWait = v3API.getStateWatcher().awaitSampleCount(space, project, numSamples,
+        SAMPLE_WAIT_TIMEOUT_MILLIS);
+    spreadsheetTask = sampleWait.thenComposeAsync(found -> {
+      if (!found) {
+        logger.warn("Not all " + numSamples + " samples of " + project
+            + " could be found, spreadsheets might be incomplete.");
+      }
+      updateProgressBar(ui, current.incrementAndGet(), todo);
+      // spreadsheets are loaded in parallel while the design is parsed
+      Map<String, CompletableFuture<List<String>>> tsvs = new HashMap<>();
+      for (String type : sampleTypes) {
+        tsvs.put(type, CompletableFuture.supplyAsync(() -> {
+          List<String> tsv = openbis.getProjectTSV(project, type);
+          updateProgressBar(ui, current.incrementAndGet(), todo);
+          return tsv;
+        }, pool));
+      }
+      logger.debug("designexpID " + designExpID);
+      Experiment experiment = openbis.getExperimentById(designExpID);
+      StudyXMLParser parser = new StudyXMLParser();
+      Set<String> factors = new HashSet<>();
+      Map<Pair<String, String>, Property> factorsForLabelsAndSamples = new HashMap<>();
+      String xml = "";
+      if (experiment != null) {
+        xml = experiment.getProperties().get("Q_EXPERIMENTAL_SETUP");
+      }
+      try {
+        JAXBElement<Qexperiment> expDesign = parser.parseXMLString(xml);
+        factors.addAll(parser.getFactorLabels(expDesign));
+        factorsForLabelsAndSamples = parser.getFactorsForLabelsAndSamples(expDesign);
+      } catch (JAXBException e) {
+        e.printStackTrace();
+      }
+      final Map<Pair<String, String>, Property> factorMap = factorsForLabelsAndSamples;
+      return CompletableFuture
+          .allOf(tsvs.values().toArray(new CompletableFuture[tsvs.size()])).thenApply(v -> {
+            Map<String, List<String>> tables = new HashMap<String, List<String>>();
+            for (String type : tsvs.keySet()) {
+              tables.put(type, tsvs.get(type).join());
+            }
+            return new TSVReadyRunnable(layout, tables, project, factors, factorMap);
+          });
+    }, pool).thenAccept(tablesReady -> ui.access(() -> {
+      ui.setPollInterval(-1);
+      tablesReady.run();
+    }));
+    spreadsheetTask.whenComplete((v, e) -> {
+      pool.shutdown();
+      if (e != null) {
+        ui.access(() -> ui.setPollInterval(-1));
+        if (!spreadsheetTask.isCancelled()) {
+          logger.error("Spreadsheets could not be prepared: " + e.getMessage());
         }
-
-        UI.getCurrent().setPollInterval(-1);
-        UI.getCurrent().access(
-            new TSVReadyRunnable(layout, tables, project, factors, factorsForLabelsAndSamples));
       }
     });
-    t.start();
-    UI.getCurrent().setPollInterval(100);
+    ui.setPollInterval(100);
+  }
+
+  /**
+   * Stops waiting for samples and loading spreadsheets of a previous registration, if this is still
+   * running
+   */
+  public void cancelSpreadsheetPreparation() {
+    if (sampleWait != null) {
+      sampleWait.cancel(true);
+    }
+    if (spreadsheetTask != null) {
+      spreadsheetTask.cancel(true);
+    }
+    if (tsvPool != null) {
+      tsvPool.shutdownNow();
+    }
   }
 
-  private void updateProgressBar(int current, int todo, ProgressBar bar, Label info) {
+  private void updateProgressBar(UI ui, int current, int todo) {
     double frac = current * 1.0 / todo;
-    UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
+    ui.access(new UpdateProgressBar(bar, info, frac));
   }
 
   public void armButtons(List<StreamResource> streams) {
@@ -317,7 +361,7 @@ public class FinishStep implements WizardStep {
 
     this.uploads = new UploadsPanel(space, project,
         new ArrayList<String>(Arrays.asList("Experimental Design")), userID, attachConfig,
-        (OpenBisClient) openbis, creator);// TODO this cast is not safe in dev mode when openbis is
+        (OpenBisClient) openbis, v3API, creator);// TODO this cast is not safe in dev mode when openbis is
                                           // down
     this.uploads.setVisible(false);
     main.addComponent(uploads);
@@ -340,6 +384,7 @@ public class FinishStep implements WizardStep {
 
   @Override
   public boolean onBack() {
+    cancelSpreadsheetPreparation();
     return true;
   }
 
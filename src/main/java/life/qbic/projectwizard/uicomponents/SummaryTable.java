@@ -101,8 +101,12 @@ public class SummaryTable extends VerticalLayout {
         if (isotopes) {
           String method = labelingMethod.getName();
           String value = parseComboLabel(method, id);
-          if (value != null)
-            s.addFactor(new Property(method.toLowerCase(), value, PropertyType.Factor));
+          // conditions can be shared with other samples, so they are copied before adding
+          if (value != null) {
+            List<Property> factors = new ArrayList<Property>(s.getFactors());
+            factors.add(new Property(method.toLowerCase(), value, PropertyType.Factor));
+            s.setFactors(factors);
+          }
         }
         res.add(s);
       }
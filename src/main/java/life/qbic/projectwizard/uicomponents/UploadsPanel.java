@@ -5,10 +5,12 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -24,6 +26,7 @@ import com.vaadin.ui.Label;
 import com.vaadin.ui.ProgressBar;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
 import com.vaadin.ui.Upload.FinishedEvent;
 import com.vaadin.ui.Upload.FinishedListener;
 import com.vaadin.ui.themes.ValoTheme;
@@ -38,6 +41,7 @@ import life.qbic.projectwizard.io.AttachmentInformation;
 import life.qbic.projectwizard.io.AttachmentMover;
 import life.qbic.projectwizard.processes.MoveUploadsReadyRunnable;
 import life.qbic.projectwizard.registration.IOpenbisCreationController;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import life.qbic.portal.Styles;
 import life.qbic.portal.Styles.NotificationType;
 import life.qbic.portal.portlet.ProjectWizardUI;
@@ -53,6 +57,8 @@ public class UploadsPanel extends VerticalLayout {
   private static final long serialVersionUID = 6971325287434528738L;
 
   private static final Logger logger = LogManager.getLogger(UploadsPanel.class);
+  // time to wait for the attachment sample and its experiment to be created
+  private static final long TIMEOUT_MILLIS = 10000;
 
   private File current;
   private Map<Object, AttachmentInformation> attachments;
@@ -66,6 +72,7 @@ public class UploadsPanel extends VerticalLayout {
   private Button commit;
 
   private OpenBisClient openbis;
+  private OpenbisV3APIWrapper v3API;
   private IOpenbisCreationController openbisCreator;
   private Label info;
   private ProgressBar bar;
@@ -73,8 +80,10 @@ public class UploadsPanel extends VerticalLayout {
   private String userID;
 
   public UploadsPanel(String space, String project, List<String> expOptions, String userID,
-      AttachmentConfig attachConfig, OpenBisClient openbis, IOpenbisCreationController creator) {
+      AttachmentConfig attachConfig, OpenBisClient openbis, OpenbisV3APIWrapper v3API,
+      IOpenbisCreationController creator) {
     this.openbis = openbis;
+    this.v3API = v3API;
     this.openbisCreator = creator;
     this.userID = userID;
     this.space = space;
@@ -117,13 +126,23 @@ public class UploadsPanel extends VerticalLayout {
 
       @Override
       public void buttonClick(ClickEvent event) {
-        startCommit();
-        try {
-          mover.moveAttachments(new ArrayList<AttachmentInformation>(getAttachments().values()),
-              getBar(), getLabel(), new MoveUploadsReadyRunnable(view));
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+        final UI ui = UI.getCurrent();
+        ui.setPollInterval(500);
+        // files are moved once the attachment sample exists
+        startCommit().thenAccept(ready -> ui.access(new Runnable() {
+
+          @Override
+          public void run() {
+            ui.setPollInterval(-1);
+            try {
+              mover.moveAttachments(
+                  new ArrayList<AttachmentInformation>(getAttachments().values()), getBar(),
+                  getLabel(), new MoveUploadsReadyRunnable(view));
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          }
+        }));
       }
     });
 
@@ -257,45 +276,66 @@ public class UploadsPanel extends VerticalLayout {
     return bar;
   }
 
-  public void startCommit() {
+  /**
+   * Creates the attachment sample of the project if it does not exist yet. Waiting for openBIS
+   * happens in the background, follow-up work is done with the session lock of the UI.
+   * 
+   * @return completed with true once the attachment sample exists
+   */
+  public CompletableFuture<Boolean> startCommit() {
     commit.setEnabled(false);
     bar.setVisible(true);
 
     String sample = project + "000";
     String experiment = project + "_INFO";
-    if (!openbis.sampleExists(sample)) {
-      if (!openbis.expExists(space, project, experiment)) {
-        openbisCreator.registerExperiment(space, project, ExperimentType.Q_PROJECT_DETAILS,
-            experiment, new HashMap<String, Object>());
-        while (!openbis.expExists(space, project, experiment))
-          try {
-            Thread.sleep(100);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
+    if (sampleExists(sample)) {
+      return CompletableFuture.completedFuture(true);
+    }
+    CompletableFuture<Boolean> experimentReady = CompletableFuture.completedFuture(true);
+    if (!openbis.expExists(space, project, experiment)) {
+      openbisCreator.registerExperiment(space, project, ExperimentType.Q_PROJECT_DETAILS,
+          experiment, new HashMap<String, Object>());
+      String expID = "/" + space + "/" + project + "/" + experiment;
+      experimentReady =
+          v3API.getStateWatcher().awaitExperiments(Arrays.asList(expID), TIMEOUT_MILLIS);
+    }
+    final UI ui = UI.getCurrent();
+    CompletableFuture<Boolean> sampleRegistered = new CompletableFuture<>();
+    experimentReady.thenAccept(created -> ui.access(new Runnable() {
+
+      @Override
+      public void run() {
+        List<ISampleBean> samples = new ArrayList<ISampleBean>();
+        samples.add(new TSVSampleBean(sample, experiment, project, space,
+            SampleType.Q_ATTACHMENT_SAMPLE, "", new ArrayList<String>(),
+            new HashMap<String, Object>()));
+        try {
+          openbisCreator.registerSampleBatch(samples);
+        } finally {
+          sampleRegistered.complete(true);
+        }
       }
-      List<ISampleBean> samples = new ArrayList<ISampleBean>();
-      samples.add(new TSVSampleBean(sample, experiment, project, space, SampleType.Q_ATTACHMENT_SAMPLE, "",
-          new ArrayList<String>(), new HashMap<String, Object>()));
-      openbisCreator.registerSampleBatch(samples);
-      double timeoutS = 10.0;
-      while (!openbis.sampleExists(sample))
-        if (timeoutS <= 0) {
-          logger.error("Could not create attachment sample. User has been informed");
-          Styles.notification("Upload failed",
-              "Upload failed, the data management system might be offline. Please contact us if the problem persists.",
-              NotificationType.ERROR);
-          break;
-        } else {
-          try {
-            double sleeptimeMS = 100.0;
-            Thread.sleep((long) sleeptimeMS);
-            timeoutS -= sleeptimeMS / 1000;
-          } catch (InterruptedException e) {
-            e.printStackTrace();
+    }));
+    return sampleRegistered.thenCompose(registered -> v3API.getStateWatcher()
+        .awaitSamples(Arrays.asList(sample), TIMEOUT_MILLIS)).thenApply(exists -> {
+          if (!exists) {
+            logger.error("Could not create attachment sample. User has been informed");
+            ui.access(new Runnable() {
+
+              @Override
+              public void run() {
+                Styles.notification("Upload failed",
+                    "Upload failed, the data management system might be offline. Please contact us if the problem persists.",
+                    NotificationType.ERROR);
+              }
+            });
           }
-        }
-    }
+          return exists;
+        });
+  }
+
+  private boolean sampleExists(String code) {
+    return v3API.getExistingSampleCodes(Arrays.asList(code)).contains(code);
   }
 
   public void commitDone() {
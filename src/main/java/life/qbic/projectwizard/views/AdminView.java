@@ -27,6 +27,7 @@ import life.qbic.projectwizard.adminviews.MCCViewNew;
 import life.qbic.projectwizard.control.WizardController;
 import life.qbic.projectwizard.model.Vocabularies;
 import life.qbic.projectwizard.registration.IOpenbisCreationController;
+import life.qbic.projectwizard.registration.OpenbisV3APIWrapper;
 import life.qbic.portal.Styles;
 import life.qbic.portal.Styles.NotificationType;
 
@@ -35,6 +36,7 @@ import com.vaadin.ui.Button;
 import com.vaadin.ui.TabSheet;
 import com.vaadin.ui.TextArea;
 import com.vaadin.ui.TextField;
+import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
 import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.themes.ValoTheme;
@@ -48,7 +50,9 @@ public class AdminView extends VerticalLayout {
 
   IOpenBisClient openbis;
   IOpenbisCreationController registrator;
+  OpenbisV3APIWrapper v3API;
   String user;
+  private static final long SPACE_CREATION_TIMEOUT_MILLIS = 7000;
 
   private TabSheet tabs;
   private WizardController mainController;
@@ -68,9 +72,10 @@ public class AdminView extends VerticalLayout {
   // logger
   private Logger logger = LogManager.getLogger(AdminView.class);
   
-  public AdminView(IOpenBisClient openbis, Vocabularies vocabularies,
+  public AdminView(IOpenBisClient openbis, OpenbisV3APIWrapper v3API, Vocabularies vocabularies,
       WizardController mainController, IOpenbisCreationController creationController, String user) {
     this.mainController = mainController;
+    this.v3API = v3API;
     
     this.user = user;
     this.registrator = creationController;
@@ -104,7 +109,7 @@ public class AdminView extends VerticalLayout {
     // tabs.addTab(metadataUpload, "Update Metadata");
 
     // MULTISCALE
-    addMultiScale = new MCCViewNew(openbis, creationController, user);
+    addMultiScale = new MCCViewNew(openbis, v3API, creationController, user);
     addMultiScale.setSpacing(true);
     addMultiScale.setMargin(true);   
 
@@ -140,34 +145,26 @@ public class AdminView extends VerticalLayout {
             if (getUsers().size() > 0)
               roleInfos.put(OpenbisSpaceUserRole.USER, getUsers());
             registrator.registerSpace(space, "test description", roleInfos);//TODO
-            // wait few seconds, then check for a maximum of timeout seconds, if space was created
-            int timeout = 5;
-            int wait = 2;
-            try {
-              Thread.sleep(wait * 1000);
-            } catch (InterruptedException e) {
-              // TODO Auto-generated catch block
-              e.printStackTrace();
-            }
-            while (timeout > 0 && !openbis.spaceExists(space)) {
-              timeout -= 1;
-              try {
-                Thread.sleep(1000);
-              } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-              }
-            }
-            if (openbis.spaceExists(space)) {
-              Styles.notification("Space created", "The space " + space + " has been created!",
-                  NotificationType.SUCCESS);
-              handleSpaceCreationSuccess();
-            } else {
-              Styles.notification("Problem creating space",
-                  "There seems to have been a problem while creating the space. Do the specified users already exist in openbis? If not, create them.",
-                  NotificationType.ERROR);
-            }
-
+            // check in the background for a maximum of timeout milliseconds, if space was created
+            final UI ui = UI.getCurrent();
+            ui.setPollInterval(500);
+            v3API.getStateWatcher().awaitSpace(space, SPACE_CREATION_TIMEOUT_MILLIS)
+                .thenAccept(created -> ui.access(new Runnable() {
+
+                  @Override
+                  public void run() {
+                    ui.setPollInterval(-1);
+                    if (created) {
+                      Styles.notification("Space created",
+                          "The space " + space + " has been created!", NotificationType.SUCCESS);
+                      handleSpaceCreationSuccess();
+                    } else {
+                      Styles.notification("Problem creating space",
+                          "There seems to have been a problem while creating the space. Do the specified users already exist in openbis? If not, create them.",
+                          NotificationType.ERROR);
+                    }
+                  }
+                }));
           } else {
             Styles.notification("Problem creating space",
                     "This space already exists.",
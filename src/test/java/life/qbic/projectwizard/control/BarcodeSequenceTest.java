@@ -0,0 +1,89 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+import life.qbic.datamodel.identifiers.SampleCodeFunctions;
+
+public class BarcodeSequenceTest {
+
+  private static final String PROJECT = "QTEST";
+
+  private String barcode(String counter, char letter) {
+    String base = PROJECT + counter + letter;
+    return base + SampleCodeFunctions.checksum(base);
+  }
+
+  private List<String> incrementSerially(String first, int n) {
+    List<String> res = new ArrayList<>();
+    String code = first;
+    for (int i = 0; i < n; i++) {
+      res.add(code);
+      code = SampleCodeFunctions.incrementSampleCode(code);
+    }
+    return res;
+  }
+
+  @Test
+  public void testCodeAfterMatchesIncrementSampleCode() {
+    String first = barcode("001", 'A');
+    List<String> expected = incrementSerially(first, 3000);
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), BarcodeSequence.codeAfter(first, i));
+    }
+    // wrapping around after the last barcode
+    first = barcode("990", 'Z');
+    expected = incrementSerially(first, 20);
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), BarcodeSequence.codeAfter(first, i));
+    }
+  }
+
+  @Test
+  public void testReservedRangesAreDeterministic() {
+    String first = barcode("500", 'C');
+    int[] rangeSizes = {1200, 0, 37, 2500};
+    List<String> expected = incrementSerially(first, 1200 + 37 + 2500);
+
+    // ranges filled in parallel, like the technologies of the wizard
+    List<CompletableFuture<List<String>>> ranges = new ArrayList<>();
+    int offset = 0;
+    for (int size : rangeSizes) {
+      final int from = offset;
+      ranges.add(CompletableFuture.supplyAsync(() -> {
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+          codes.add(BarcodeSequence.codeAfter(first, from + i));
+        }
+        return codes;
+      }));
+      offset += size;
+    }
+    List<String> res = new ArrayList<>();
+    for (CompletableFuture<List<String>> range : ranges) {
+      res.addAll(range.join());
+    }
+    assertEquals(expected, res);
+  }
+
+  @Test
+  public void testAllocatorHandsOutConsecutiveBarcodes() {
+    String first = barcode("997", 'Z');
+    List<String> expected = incrementSerially(first, 5);
+    BarcodeAllocator allocator = new BarcodeAllocator(first);
+    assertEquals(expected.get(0), allocator.next());
+    BarcodeAllocator.Range range = allocator.allocate(2);
+    assertEquals(expected.get(1), range.get(0));
+    assertEquals(expected.get(2), range.get(1));
+    assertFalse(allocator.isExhausted());
+    // the next barcode is 001A again
+    assertEquals(expected.get(3), allocator.next());
+    assertTrue(allocator.isExhausted());
+    assertEquals(expected.get(4), BarcodeAllocator.after(expected.get(3)).next());
+  }
+
+}
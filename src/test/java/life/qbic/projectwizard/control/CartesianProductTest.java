@@ -0,0 +1,167 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Compares the permutations of the index tuple based generator with the recursive generator of
+ * '###'-joined strings it replaced
+ */
+public class CartesianProductTest {
+
+  private final Map<String, String> taxMap = new HashMap<String, String>();
+
+  public CartesianProductTest() {
+    taxMap.put("Homo sapiens", "9606");
+    taxMap.put("Mus musculus", "10090");
+    taxMap.put("Escherichia coli", "562");
+  }
+
+  private WizardDataAggregator aggregator() {
+    return new WizardDataAggregator(new HashMap<>(), null, null, taxMap, new HashMap<>(),
+        new HashMap<>());
+  }
+
+  /**
+   * the generator used before CartesianProduct
+   */
+  private List<String> oldPermutations(List<List<String>> lists, boolean infectionStudy,
+      Set<String> infectantSpecies) {
+    List<String> res = new ArrayList<>();
+    oldPermutationsHelper(lists, res, 0, "");
+    if (infectionStudy) {
+      List<String> newRes = new ArrayList<>();
+      int n = 0;
+      for (String concat : res) {
+        String[] conditionSplit = concat.split("###");
+        n++;
+        if ((n % 2) == 0) {
+          for (String condition : conditionSplit) {
+            if (taxMap.containsKey(condition)) {
+              infectantSpecies.add(condition);
+            }
+          }
+        } else {
+          newRes.add(concat);
+        }
+      }
+      res = newRes;
+    }
+    return res;
+  }
+
+  private void oldPermutationsHelper(List<List<String>> lists, List<String> result, int depth,
+      String current) {
+    String separator = "###";
+    if (depth == lists.size()) {
+      result.add(current);
+      return;
+    }
+    for (int i = 0; i < lists.get(depth).size(); ++i) {
+      if (current.equals(""))
+        separator = "";
+      oldPermutationsHelper(lists, result, depth + 1,
+          current + separator + lists.get(depth).get(i));
+    }
+  }
+
+  /**
+   * condition lists as buildEntities and buildExtracts used to split them
+   */
+  private List<List<String>> split(List<String> permutations) {
+    List<List<String>> res = new ArrayList<>();
+    for (String concat : permutations) {
+      res.add(new ArrayList<String>(Arrays.asList(concat.split("###"))));
+    }
+    return res;
+  }
+
+  private void assertSamePermutations(List<List<String>> lists, boolean infectionStudy) {
+    Set<String> oldInfectants = new HashSet<>();
+    List<String> expected = oldPermutations(lists, infectionStudy, oldInfectants);
+    WizardDataAggregator aggregator = aggregator();
+    List<String> actual = aggregator.generatePermutations(lists, infectionStudy);
+    assertEquals(split(expected), split(actual));
+    assertEquals(expected.size(), WizardDataAggregator.countPermutations(lists, infectionStudy));
+    assertEquals(oldInfectants, aggregator.getInfectantSpecies());
+  }
+
+  private List<String> levels(String... names) {
+    return new ArrayList<String>(Arrays.asList(names));
+  }
+
+  @Test
+  public void testTuplesInOdometerOrder() {
+    Iterator<int[]> tuples = new CartesianProduct(new int[] {2, 3}).iterator();
+    for (int i = 0; i < 2; i++) {
+      for (int j = 0; j < 3; j++) {
+        int[] tuple = tuples.next();
+        assertEquals(i, tuple[0]);
+        assertEquals(j, tuple[1]);
+      }
+    }
+    assertFalse(tuples.hasNext());
+    assertFalse(new CartesianProduct(new int[] {2, 0, 3}).iterator().hasNext());
+    assertEquals(0, new CartesianProduct(new int[] {2, 0, 3}).size());
+  }
+
+  @Test
+  public void testSaturatingSize() {
+    int[] sizes = new int[10];
+    Arrays.fill(sizes, 1000);
+    assertEquals(Long.MAX_VALUE, new CartesianProduct(sizes).size());
+  }
+
+  @Test
+  public void testSameAsRecursiveGenerator() {
+    List<List<String>> lists = new ArrayList<>();
+    lists.add(levels("Homo sapiens", "Mus musculus"));
+    lists.add(levels("liver", "blood", "kidney"));
+    lists.add(levels("1 h", "2 h"));
+    assertSamePermutations(lists, false);
+  }
+
+  @Test
+  public void testLeadingAndTrailingEmptyNamesAreDropped() {
+    List<List<String>> lists = new ArrayList<>();
+    lists.add(levels("", "a"));
+    lists.add(levels("b", ""));
+    lists.add(levels("", "c"));
+    assertSamePermutations(lists, false);
+
+    lists = new ArrayList<>();
+    lists.add(levels(""));
+    lists.add(levels("x", ""));
+    lists.add(levels(""));
+    assertSamePermutations(lists, false);
+
+    // only empty names
+    lists = new ArrayList<>();
+    lists.add(levels(""));
+    lists.add(levels(""));
+    assertSamePermutations(lists, false);
+  }
+
+  @Test
+  public void testInfectantPermutationsAreSkipped() {
+    List<List<String>> lists = new ArrayList<>();
+    lists.add(levels("Homo sapiens", "Escherichia coli", "Mus musculus"));
+    assertSamePermutations(lists, true);
+
+    lists = new ArrayList<>();
+    lists.add(levels("Homo sapiens", "Mus musculus"));
+    lists.add(levels("Escherichia coli", "none"));
+    lists.add(levels("", "day 1", "day 2"));
+    assertSamePermutations(lists, true);
+  }
+
+}
@@ -0,0 +1,121 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import life.qbic.projectwizard.control.DesignSizeEstimator.DesignTooLargeException;
+import life.qbic.projectwizard.model.TestSampleInformation;
+
+public class DesignSizeEstimatorTest {
+
+  /**
+   * counts replicates the way buildEntities and buildExtracts create them
+   */
+  private long createdReplicates(long permutations, Map<Object, Integer> amounts,
+      int defaultAmount) {
+    long res = 0;
+    int amount = defaultAmount;
+    for (int permID = 1; permID <= permutations; permID++) {
+      if (amounts.containsKey(permID)) {
+        amount = amounts.get(permID);
+      }
+      res += amount;
+    }
+    return res;
+  }
+
+  @Test
+  public void testReplicatesWithoutAmounts() {
+    assertEquals(0, DesignSizeEstimator.countReplicates(0, new HashMap<>(), 3));
+    assertEquals(12, DesignSizeEstimator.countReplicates(4, new HashMap<>(), 3));
+  }
+
+  @Test
+  public void testAmountsAreCarriedOver() {
+    Map<Object, Integer> amounts = new HashMap<>();
+    amounts.put(3, 5);
+    amounts.put(6, 1);
+    amounts.put(7, 0);
+    // 2 * 2 + 3 * 5 + 1 * 1 + 4 * 0
+    assertEquals(20, DesignSizeEstimator.countReplicates(10, amounts, 2));
+    for (int permutations = 0; permutations <= 12; permutations++) {
+      assertEquals(createdReplicates(permutations, amounts, 2),
+          DesignSizeEstimator.countReplicates(permutations, amounts, 2));
+    }
+  }
+
+  @Test
+  public void testUnknownIdsAreIgnored() {
+    Map<Object, Integer> amounts = new HashMap<>();
+    amounts.put(0, 100);
+    amounts.put(5, 100);
+    amounts.put("2", 100);
+    amounts.put(2, 4);
+    assertEquals(1 + 4 + 4, DesignSizeEstimator.countReplicates(3, amounts, 1));
+  }
+
+  @Test
+  public void testOverflowSaturates() {
+    Map<Object, Integer> amounts = new HashMap<>();
+    amounts.put(2, Integer.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE,
+        DesignSizeEstimator.countReplicates(Long.MAX_VALUE / 2, amounts, 3));
+    assertEquals(Long.MAX_VALUE, DesignSizeEstimator.countReplicates(Long.MAX_VALUE, amounts, 1));
+
+    List<TestSampleInformation> techs = new ArrayList<>();
+    techs.add(new TestSampleInformation("DNA", false, Integer.MAX_VALUE, null));
+    techs.add(new TestSampleInformation("RNA", true, Integer.MAX_VALUE, null));
+    assertEquals(Long.MAX_VALUE, DesignSizeEstimator.countTests(Long.MAX_VALUE / 4, techs));
+    assertEquals(Long.MAX_VALUE, DesignSizeEstimator.countMaxPools(Long.MAX_VALUE, techs));
+  }
+
+  @Test
+  public void testTestsAndPools() {
+    List<TestSampleInformation> techs = new ArrayList<>();
+    techs.add(new TestSampleInformation("DNA", false, 2, null));
+    techs.add(new TestSampleInformation("RNA", true, 3, null));
+    techs.add(new TestSampleInformation("PROTEINS", true, 1, null));
+    assertEquals(60, DesignSizeEstimator.countTests(10, techs));
+    assertEquals(8, DesignSizeEstimator.countMaxPools(4, techs));
+  }
+
+  @Test
+  public void testInfectionStudiesCountEverySecondPermutation() {
+    WizardDataAggregator aggregator = new WizardDataAggregator(new HashMap<>(), null, null,
+        new HashMap<>(), new HashMap<>(), new HashMap<>());
+    Map<Object, Integer> amounts = new HashMap<>();
+    amounts.put(2, 3);
+    for (int levels = 1; levels <= 7; levels++) {
+      List<String> species = new ArrayList<>();
+      for (int i = 0; i < levels; i++) {
+        species.add("species " + i);
+      }
+      List<List<String>> lists = new ArrayList<>();
+      lists.add(species);
+      lists.add(new ArrayList<String>(Arrays.asList("a", "b", "c")));
+      long permutations = WizardDataAggregator.countPermutations(lists, true);
+      assertEquals((levels * 3 + 1) / 2, permutations);
+      assertEquals(aggregator.generatePermutations(lists, true).size(), permutations);
+      assertEquals(createdReplicates(permutations, amounts, 1),
+          DesignSizeEstimator.countReplicates(permutations, amounts, 1));
+    }
+  }
+
+  @Test
+  public void testCheck() {
+    DesignSizeEstimator.check("test samples", 100, 100);
+    try {
+      DesignSizeEstimator.check("test samples", 101, 100);
+      fail("design exceeding the limit was accepted");
+    } catch (DesignTooLargeException e) {
+      assertEquals(101, e.getSamples());
+      assertEquals(100, e.getLimit());
+    }
+  }
+
+}
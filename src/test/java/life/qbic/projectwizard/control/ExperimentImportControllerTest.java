@@ -20,6 +20,7 @@ import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import life.qbic.datamodel.samples.ISampleBean;
 import life.qbic.datamodel.samples.SampleType;
 import life.qbic.datamodel.samples.TSVSampleBean;
@@ -189,4 +190,29 @@ public class ExperimentImportControllerTest {
     // return builder.toString();
   }
 
+  @Test
+  public void testAddBarcodesToTSVWithReplacements() {
+    ExperimentImportController controller = new ExperimentImportController();
+    List<ISampleBean> runs = new ArrayList<>();
+    List<List<ISampleBean>> levels = new ArrayList<>();
+    TSVSampleBean msRun1 = new TSVSampleBean("1", SampleType.Q_MS_RUN, "", new HashMap<>());
+    msRun1.addProperty("File", "file1.raw");
+    runs.add(msRun1);
+    levels.add(runs);
+
+    List<String> tsv = new ArrayList<>();
+    tsv.add("Filename\tTissue\tDigestion Enzyme\tLCMS Method");
+    tsv.add("file1.raw\tliver\ttrypsin+lysc\tMethod1");
+
+    Map<String, String> replacements = new HashMap<>();
+    replacements.put("liver", "Liver");
+    replacements.put("trypsin", "Trypsin");
+    replacements.put("lysc", "LysC");
+    String withBarcodes = controller.addBarcodesToTSV(tsv, levels,
+        ExperimentalDesignType.MHC_Ligands_Finished, replacements);
+    String[] rowSplit = withBarcodes.split("\n");
+    assertTrue("cells and parts of joined cells are replaced",
+        rowSplit[1].equals("1\tfile1.raw\tLiver\tTrypsin+LysC\tMethod1"));
+  }
+
 }
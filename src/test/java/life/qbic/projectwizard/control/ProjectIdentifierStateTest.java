@@ -0,0 +1,127 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.Sample;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.SampleType;
+import ch.ethz.sis.openbis.generic.asapi.v3.dto.sample.fetchoptions.SampleFetchOptions;
+import life.qbic.datamodel.identifiers.SampleCodeFunctions;
+
+public class ProjectIdentifierStateTest {
+
+  private static final List<String> IGNORED = Arrays.asList("QMSHS001X3", "QMSHS002XB",
+      "QMSHS003XJ", "QMSHS004XR", "QMSHS005X1", "QMSHS006X9");
+
+  private String barcode(String project, String counter, char letter) {
+    String base = project + counter + letter;
+    return base + SampleCodeFunctions.checksum(base);
+  }
+
+  /**
+   * a sample as fetched by the scan, with code and type only
+   */
+  private Sample sample(String code, String type) {
+    SampleType sampleType = new SampleType();
+    sampleType.setCode(type);
+    Sample res = new Sample();
+    res.setCode(code);
+    res.setType(sampleType);
+    SampleFetchOptions options = new SampleFetchOptions();
+    options.withType();
+    res.setFetchOptions(options);
+    return res;
+  }
+
+  private List<Sample> testSamples(List<String> codes) {
+    List<Sample> res = new ArrayList<Sample>();
+    for (String code : codes) {
+      res.add(sample(code, "Q_TEST_SAMPLE"));
+    }
+    return res;
+  }
+
+  @Test
+  public void testIdentifierNumbers() {
+    assertEquals(12, ProjectIdentifierState.experimentNumber("QTEST", "QTESTE12"));
+    assertEquals(0, ProjectIdentifierState.experimentNumber("QTEST", "QTESTE"));
+    assertEquals(0, ProjectIdentifierState.experimentNumber("QTEST", "QTESTE_INFO"));
+    assertEquals(0, ProjectIdentifierState.experimentNumber("QTEST", "QOTHRE12"));
+    assertEquals(12, ProjectIdentifierState.entityNumber("QTESTENTITY-12"));
+    assertEquals(0, ProjectIdentifierState.entityNumber("QTESTENTITY"));
+    assertEquals(0, ProjectIdentifierState.entityNumber("QTESTENTITY-X"));
+  }
+
+  @Test
+  public void testCountedBarcode() {
+    for (String code : IGNORED) {
+      assertNull(code, ProjectIdentifierState.countedBarcode(code));
+    }
+    assertEquals("QMSHS006X9",
+        ProjectIdentifierState.countedBarcode(barcode("QMSHS", "999", 'W')));
+    String code = barcode("QMSHS", "007", 'X');
+    assertEquals(code, ProjectIdentifierState.countedBarcode(code));
+    code = barcode("QTEST", "999", 'W');
+    assertEquals(code, ProjectIdentifierState.countedBarcode(code));
+  }
+
+  @Test
+  public void testEmptyProject() {
+    ProjectIdentifierState state = ProjectIdentifierState.scan("QTEST",
+        Collections.<Sample>emptyList(), Collections.<String>emptyList());
+    assertEquals(1, state.getFirstFreeExperimentID());
+    assertEquals(1, state.getFirstFreeEntityID());
+    assertEquals("", state.getLastBarcode());
+    assertEquals("", state.getFirstFreeBarcode());
+    assertFalse(state.isBarcodeSpaceExhausted());
+  }
+
+  @Test
+  public void testScanFindsHighestIdentifiers() {
+    List<Sample> samples = new ArrayList<Sample>();
+    samples.add(sample("QTESTENTITY-3", "Q_BIOLOGICAL_ENTITY"));
+    samples.add(sample("QTESTENTITY-12", "Q_BIOLOGICAL_ENTITY"));
+    // only entities are counted
+    samples.add(sample("QTESTATTACHMENT-40", "Q_ATTACHMENT_SAMPLE"));
+    samples.addAll(testSamples(Arrays.asList(barcode("QTEST", "998", 'A'),
+        barcode("QTEST", "002", 'B'), barcode("QTEST", "010", 'A'))));
+    ProjectIdentifierState state = ProjectIdentifierState.scan("QTEST", samples,
+        Arrays.asList("QTESTE1", "QTESTE7", "QTESTE_INFO"));
+
+    assertEquals("QTEST", state.getProject());
+    assertEquals(8, state.getFirstFreeExperimentID());
+    assertEquals(13, state.getFirstFreeEntityID());
+    // the class letter counts before the number
+    assertEquals(barcode("QTEST", "002", 'B'), state.getLastBarcode());
+    assertEquals(barcode("QTEST", "003", 'B'), state.getFirstFreeBarcode());
+  }
+
+  @Test
+  public void testIgnoredBarcodesOfQMSHS() {
+    ProjectIdentifierState state =
+        ProjectIdentifierState.scan("QMSHS", testSamples(IGNORED), Collections.<String>emptyList());
+    assertEquals("", state.getLastBarcode());
+    assertEquals("", state.getFirstFreeBarcode());
+
+    List<String> codes = new ArrayList<String>(IGNORED);
+    codes.add(barcode("QMSHS", "999", 'W'));
+    codes.add(barcode("QMSHS", "010", 'W'));
+    state = ProjectIdentifierState.scan("QMSHS", testSamples(codes),
+        Collections.<String>emptyList());
+    assertEquals("QMSHS006X9", state.getLastBarcode());
+    assertEquals(barcode("QMSHS", "007", 'X'), state.getFirstFreeBarcode());
+
+    // barcodes registered after the ignored ones are counted as usual
+    codes.add(barcode("QMSHS", "012", 'X'));
+    state = ProjectIdentifierState.scan("QMSHS", testSamples(codes),
+        Collections.<String>emptyList());
+    assertEquals(barcode("QMSHS", "012", 'X'), state.getLastBarcode());
+    assertEquals(barcode("QMSHS", "013", 'X'), state.getFirstFreeBarcode());
+  }
+
+}
@@ -0,0 +1,289 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import life.qbic.datamodel.samples.AOpenbisSample;
+import life.qbic.datamodel.samples.OpenbisTestSample;
+import life.qbic.datamodel.samples.SampleType;
+import life.qbic.xml.properties.Property;
+import life.qbic.xml.properties.PropertyType;
+
+/**
+ * Compares test samples read from a table with the sample objects the aggregator created before
+ * tables were used, after the changes the fractionation steps make to them, and the memory both
+ * keep
+ */
+public class SampleTableTest {
+
+  private static final String SPACE = "TEST_SPACE";
+  private static final String PROJECT = "QTEST";
+  private static final List<String> HEADER = Arrays.asList("SAMPLE TYPE", "SPACE", "EXPERIMENT",
+      "Q_SECONDARY_NAME", "PARENT", "Q_PRIMARY_TISSUE", "Q_TISSUE_DETAILED", "Q_ADDITIONAL_INFO",
+      "Q_NCBI_ORGANISM", "Q_SAMPLE_TYPE", "Q_EXTERNALDB_ID");
+
+  private final List<Property> liver =
+      Arrays.asList(new Property("tissue", "liver", PropertyType.Factor));
+  private final List<Property> kidney =
+      Arrays.asList(new Property("tissue", "kidney", PropertyType.Factor));
+
+  private String[][] extracts() {
+    return new String[][] {{barcode(PROJECT, 0), "liver"}, {barcode(PROJECT, 1), "liver"},
+        {"QTEST003AZ", "kidney"}};
+  }
+
+  private static String barcode(String project, int index) {
+    return BarcodeSequence.codeAt(project, index);
+  }
+
+  private List<Property> factors(String tissue) {
+    return tissue.equals("liver") ? liver : kidney;
+  }
+
+  /**
+   * test samples as they are added to the table by buildTestTable
+   */
+  private List<AOpenbisSample> fromTable(List<String> techs) {
+    SampleTable table = new SampleTable(SampleType.Q_TEST_SAMPLE);
+    int n = 100;
+    for (int t = 0; t < techs.size(); t++) {
+      for (String[] e : extracts()) {
+        table.add(barcode(PROJECT, n++), SPACE, "QTESTE" + (t + 3), e[1], "", factors(e[1]),
+            techs.get(t), null, e[0], "");
+      }
+    }
+    return table.asList();
+  }
+
+  /**
+   * test samples as buildTestSamples created them before tables were used
+   */
+  private List<AOpenbisSample> created(List<String> techs) {
+    List<AOpenbisSample> res = new ArrayList<AOpenbisSample>();
+    int n = 100;
+    for (int t = 0; t < techs.size(); t++) {
+      for (String[] e : extracts()) {
+        res.add(new OpenbisTestSample(barcode(PROJECT, n++), SPACE, "QTESTE" + (t + 3), e[1], "",
+            factors(e[1]), techs.get(t), e[0], ""));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * the filter WizardController uses to find the protein samples to fractionate
+   */
+  private List<AOpenbisSample> proteins(List<AOpenbisSample> tests) {
+    List<AOpenbisSample> res = new ArrayList<AOpenbisSample>();
+    for (AOpenbisSample s : tests) {
+      if ("PROTEINS".equals(s.getValueMap().get("Q_SAMPLE_TYPE")))
+        res.add(s);
+    }
+    return res;
+  }
+
+  /**
+   * changes createFractionationSamplesAndExperiments makes to the base analytes
+   *
+   * @return base analytes that are not part of the tests and would be registered as pools
+   */
+  private List<AOpenbisSample> fractionate(List<AOpenbisSample> tests,
+      List<AOpenbisSample> baseAnalytes) {
+    Set<String> codes = new HashSet<String>();
+    for (AOpenbisSample s : baseAnalytes) {
+      codes.add(s.getCode());
+    }
+    Map<String, Integer> rows = WizardDataAggregator.rowsOf(tests, codes);
+    List<AOpenbisSample> pools = new ArrayList<AOpenbisSample>();
+    for (AOpenbisSample s : baseAnalytes) {
+      Integer row = rows.get(s.getCode());
+      s.setExperiment("QTESTE9");
+      s.setSpace(SPACE);
+      s.setSampleType("Q_TEST_SAMPLE");
+      s.setParent(s.getParent());
+      if (row == null)
+        pools.add(s);
+      else
+        tests.set(row, s);
+    }
+    return pools;
+  }
+
+  /**
+   * a row of the TSV, written like WizardDataAggregator.writeTSVRow
+   */
+  private String tsvRow(AOpenbisSample s) {
+    StringBuilder res = new StringBuilder(s.getCode());
+    Map<String, String> data = s.getValueMap();
+    for (String col : HEADER) {
+      String val = data.get(col);
+      res.append("\t");
+      if (val != null)
+        res.append(val);
+    }
+    for (String factor : s.getFactorStringsWithoutLabel()) {
+      res.append("\t").append(factor);
+    }
+    return res.toString();
+  }
+
+  private List<String> tsv(List<AOpenbisSample> samples) {
+    List<String> res = new ArrayList<String>();
+    for (AOpenbisSample s : samples) {
+      res.add(tsvRow(s));
+    }
+    return res;
+  }
+
+  @Test
+  public void testSamplesAreCreatedWhenRead() {
+    SampleTable table = new SampleTable(SampleType.Q_TEST_SAMPLE);
+    for (int i = 0; i < 20; i++) {
+      table.add(barcode(PROJECT, i), SPACE, "QTESTE3", "liver", "", liver, "DNA", null,
+          barcode(PROJECT, 500), "");
+    }
+    List<AOpenbisSample> view = table.asList();
+    assertNotSame(view.get(3), view.get(3));
+    // rows with the same conditions share them
+    assertSame(view.get(3).getFactors(), view.get(4).getFactors());
+    assertEquals(liver, view.get(3).getFactors());
+
+    AOpenbisSample changed = view.get(5);
+    changed.setExperiment("QTESTE9");
+    assertEquals("QTESTE3", view.get(5).getValueMap().get("EXPERIMENT"));
+    view.set(5, changed);
+    assertSame(changed, view.get(5));
+    assertSame(changed, table.rows(5, 10).get(0));
+    assertEquals("QTESTE3", table.getExperiment(5));
+    // rows added after the first read
+    table.add("QTEST20", SPACE, "QTESTE3", "liver", "", liver, "DNA", null, "QTEST001AX", "");
+    assertEquals(21, view.size());
+    assertEquals("QTEST20", view.get(20).getCode());
+  }
+
+  @Test
+  public void testCodesAreKept() {
+    SampleTable table = new SampleTable(SampleType.Q_BIOLOGICAL_SAMPLE);
+    String wrongChecksum = barcode(PROJECT, 7).substring(0, 9)
+        + (barcode(PROJECT, 7).charAt(9) == 'A' ? 'B' : 'A');
+    List<String> codes = Arrays.asList(barcode(PROJECT, 0), barcode(PROJECT, 25973),
+        barcode("QOTHR", 5), wrongChecksum, "QTEST000AX", "QTESTENTITY-1", "QTEST1234", null);
+    for (String code : codes) {
+      table.add(code, SPACE, "QTESTE2", "", "", liver, "LIVER", "", code, "");
+    }
+    for (int i = 0; i < codes.size(); i++) {
+      assertEquals(codes.get(i), table.getCode(i));
+      assertEquals(codes.get(i), table.getParent(i));
+      assertEquals(codes.get(i), table.asList().get(i).getCode());
+      assertEquals(codes.get(i), table.asList().get(i).getParent());
+    }
+  }
+
+  @Test
+  public void testFractionationChangesAreKept() {
+    List<String> techs = Arrays.asList("DNA", "PROTEINS");
+    List<AOpenbisSample> tests = fromTable(techs);
+    List<AOpenbisSample> expected = created(techs);
+    assertEquals(tsv(expected), tsv(tests));
+
+    List<AOpenbisSample> expectedPools = fractionate(expected, proteins(expected));
+    List<AOpenbisSample> pools = fractionate(tests, proteins(tests));
+    // base analytes taken from the tests are not registered a second time
+    assertTrue(expectedPools.isEmpty());
+    assertEquals(tsv(expectedPools), tsv(pools));
+
+    List<String> rows = tsv(tests);
+    assertEquals(tsv(expected), rows);
+    for (String row : rows) {
+      if (row.contains("PROTEINS"))
+        assertTrue(row, row.contains("\tQTESTE9\t"));
+      else
+        assertTrue(row, row.contains("\tQTESTE3\t"));
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /**
+   * test samples of one technology with two replicates per extract, as built by buildTestTable
+   */
+  private SampleTable testTable(String project, int extracts) {
+    SampleTable table = new SampleTable(SampleType.Q_TEST_SAMPLE);
+    int n = extracts;
+    for (int e = 0; e < extracts; e++) {
+      String tissue = e % 2 == 0 ? "liver" : "kidney";
+      for (int i = 0; i < 2; i++) {
+        table.add(barcode(project, n++), SPACE, project + "E3", tissue, "", factors(tissue),
+            "PROTEINS", null, barcode(project, e), "");
+      }
+    }
+    return table;
+  }
+
+  /**
+   * the same test samples as created by buildTestSamples before tables were used
+   */
+  private List<AOpenbisSample> testList(String project, int extracts) {
+    List<AOpenbisSample> res = new ArrayList<AOpenbisSample>();
+    String exp = project + "E3";
+    int n = extracts;
+    for (int e = 0; e < extracts; e++) {
+      // the extract's code and conditions were shared with its test samples
+      String parent = barcode(project, e);
+      String tissue = e % 2 == 0 ? "liver" : "kidney";
+      List<Property> factors = new ArrayList<Property>(factors(tissue));
+      for (int i = 0; i < 2; i++) {
+        res.add(new OpenbisTestSample(barcode(project, n++), SPACE, exp, tissue, "", factors,
+            "PROTEINS", parent, ""));
+      }
+    }
+    return res;
+  }
+
+  @Test
+  public void testTablesKeepLessThanSampleObjects() {
+    // the largest tier of eight projects, each with as many barcodes as a project can have
+    int extracts = BarcodeSequence.SIZE / 3;
+    List<String> projects = new ArrayList<String>();
+    for (int p = 10; p < 18; p++) {
+      projects.add("QMEM" + (char) ('A' + p));
+    }
+    long before = usedHeap();
+    List<SampleTable> tables = new ArrayList<SampleTable>();
+    for (String project : projects) {
+      tables.add(testTable(project, extracts));
+    }
+    long tableBytes = usedHeap() - before;
+
+    before = usedHeap();
+    List<List<AOpenbisSample>> lists = new ArrayList<List<AOpenbisSample>>();
+    for (String project : projects) {
+      lists.add(testList(project, extracts));
+    }
+    long listBytes = usedHeap() - before;
+
+    for (int p = 0; p < projects.size(); p++) {
+      assertEquals(tsv(lists.get(p).subList(0, 100)), tsv(tables.get(p).rows(0, 100)));
+      assertEquals(lists.get(p).size(), tables.get(p).size());
+    }
+    assertTrue(tableBytes + " bytes kept by the tables, " + listBytes + " by the lists",
+        tableBytes * 2 < listBytes);
+  }
+
+}
@@ -0,0 +1,126 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Compares the replacer with the regex loop ExperimentImportController used before, which ran one
+ * replaceAll per replacement over the TSV
+ */
+public class TSVCellReplacerTest {
+
+  private static final List<String> CELLS =
+      Arrays.asList("liver", "Liver", "trypsin", "lysc", "kidney", "", "1.5", "a (b)", "x.y*");
+
+  private String oldReplace(String line, Map<String, String> replacements) {
+    String res = line;
+    for (String userInput : replacements.keySet()) {
+      String selectedVocabValue = replacements.get(userInput);
+      // special characters have to be escaped for replaceAll to work
+      String cleanedInput = Pattern.quote(userInput);
+      String in = "(\\t|\\+)" + cleanedInput + "(\\t|\\+)";
+      res = res.replaceAll(in, "$1" + selectedVocabValue + "$2");
+    }
+    return res;
+  }
+
+  private Map<String, String> replacements(String... inputsAndValues) {
+    Map<String, String> res = new LinkedHashMap<String, String>();
+    for (int i = 0; i < inputsAndValues.length; i += 2) {
+      res.put(inputsAndValues[i], inputsAndValues[i + 1]);
+    }
+    return res;
+  }
+
+  private void assertSameAsRegex(String line, Map<String, String> replacements) {
+    assertEquals(oldReplace(line, replacements), new TSVCellReplacer(replacements).replace(line));
+  }
+
+  @Test
+  public void testCellsAndJoinedCells() {
+    Map<String, String> replacements =
+        replacements("liver", "Liver", "trypsin", "Trypsin", "lysc", "LysC", "x.y*", "XY");
+    assertSameAsRegex("file1.raw\tliver\ttrypsin+lysc\tMethod1", replacements);
+    assertEquals("file1.raw\tLiver\tTrypsin+LysC\tMethod1",
+        new TSVCellReplacer(replacements).replace("file1.raw\tliver\ttrypsin+lysc\tMethod1"));
+    assertSameAsRegex("a\tlysc+trypsin+liver\tb", replacements);
+    assertSameAsRegex("a\tx.y*\txxy*\tb", replacements);
+    // parts of a cell that are not separated by a delimiter
+    assertSameAsRegex("a\tliver tissue\tlysc-trypsin\tb", replacements);
+    assertSameAsRegex("a\t\t\tb", replacements);
+  }
+
+  @Test
+  public void testJoinedInput() {
+    Map<String, String> replacements = replacements("trypsin+lysc", "Trypsin/LysC");
+    assertSameAsRegex("a\ttrypsin+lysc\tb", replacements);
+    assertSameAsRegex("a\tliver+trypsin+lysc+kidney\tb", replacements);
+    assertSameAsRegex("a\ttrypsin\tlysc\tb", replacements);
+    assertEquals("a\tTrypsin/LysC\tb",
+        new TSVCellReplacer(replacements).replace("a\ttrypsin+lysc\tb"));
+  }
+
+  @Test
+  public void testFirstAndLastCellsAreKept() {
+    Map<String, String> replacements = replacements("liver", "Liver", "lysc", "LysC");
+    String[] lines = {"liver\ta\tliver", "liver+lysc\ta\tlysc+liver", "liver", "liver\tliver",
+        "\tliver", "liver\t", "\tliver\t"};
+    for (String line : lines) {
+      assertSameAsRegex(line, replacements);
+    }
+    assertEquals("liver+LysC\ta\tLysC+liver",
+        new TSVCellReplacer(replacements).replace("liver+lysc\ta\tlysc+liver"));
+    assertEquals("\tLiver\t", new TSVCellReplacer(replacements).replace("\tliver\t"));
+  }
+
+  @Test
+  public void testRandomLines() {
+    Map<String, String> replacements = replacements("liver", "LIVER", "trypsin", "Trypsin",
+        "lysc", "LysC", "", "unknown", "a (b)", "A (B)", "x.y*", "XY");
+    Random random = new Random(42);
+    for (int n = 0; n < 2000; n++) {
+      StringBuilder line = new StringBuilder();
+      String previous = null;
+      int cells = 1 + random.nextInt(8);
+      for (int i = 0; i < cells; i++) {
+        String cell = CELLS.get(random.nextInt(CELLS.size()));
+        // adjacent equal cells are replaced differently, see below
+        if (cell.equals(previous)) {
+          continue;
+        }
+        if (i > 0) {
+          line.append(random.nextInt(3) == 0 ? '+' : '\t');
+        }
+        line.append(cell);
+        previous = cell;
+      }
+      assertSameAsRegex(line.toString(), replacements);
+    }
+  }
+
+  @Test
+  public void testAdjacentEqualCellsAreAllReplaced() {
+    Map<String, String> replacements = replacements("liver", "Liver");
+    String line = "a\tliver\tliver\tliver+liver\tb";
+    assertEquals("a\tLiver\tLiver\tLiver+Liver\tb",
+        new TSVCellReplacer(replacements).replace(line));
+    // the regex consumed the delimiter between two matches
+    assertEquals("a\tLiver\tliver\tLiver+liver\tb", oldReplace(line, replacements));
+  }
+
+  @Test
+  public void testNoChainedReplacement() {
+    Map<String, String> replacements = replacements("liver", "Liver", "Liver", "LIVER");
+    String line = "a\tliver\tb\tLiver\tc";
+    assertEquals("a\tLiver\tb\tLIVER\tc", new TSVCellReplacer(replacements).replace(line));
+    // the second replaceAll ran over the output of the first
+    assertEquals("a\tLIVER\tb\tLIVER\tc", oldReplace(line, replacements));
+  }
+
+}
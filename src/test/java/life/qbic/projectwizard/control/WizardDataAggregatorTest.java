@@ -0,0 +1,276 @@
+package life.qbic.projectwizard.control;
+
+import static org.junit.Assert.assertEquals;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import life.qbic.datamodel.experiments.ExperimentType;
+import life.qbic.datamodel.experiments.OpenbisExperiment;
+import life.qbic.datamodel.identifiers.SampleCodeFunctions;
+import life.qbic.datamodel.samples.AOpenbisSample;
+import life.qbic.datamodel.samples.OpenbisBiologicalEntity;
+import life.qbic.datamodel.samples.OpenbisBiologicalSample;
+import life.qbic.datamodel.samples.OpenbisTestSample;
+import life.qbic.projectwizard.model.TestSampleInformation;
+import life.qbic.projectwizard.model.TissueInfo;
+import life.qbic.xml.properties.Property;
+import life.qbic.xml.properties.PropertyType;
+
+/**
+ * Builds extracts and test samples of a design with the aggregator, which fills barcode ranges in
+ * parallel, and with the serial code it replaced, and compares the samples and their order
+ */
+public class WizardDataAggregatorTest {
+
+  private static final String SPACE = "TEST_SPACE";
+  private static final String PROJECT = "QTEST";
+
+  private final Map<String, String> tissueMap = new HashMap<String, String>();
+  private final Map<String, Property> factorMap = new HashMap<String, Property>();
+  private final Map<String, TissueInfo> specialTissues = new HashMap<String, TissueInfo>();
+  private final List<List<String>> extractFactors = new ArrayList<List<String>>();
+  private final List<TestSampleInformation> techs = new ArrayList<TestSampleInformation>();
+  private final List<OpenbisExperiment> experiments = new ArrayList<OpenbisExperiment>();
+
+  public WizardDataAggregatorTest() {
+    tissueMap.put("Liver", "LIVER");
+    tissueMap.put("Blood", "BLOOD");
+    tissueMap.put("Other", "OTHER");
+    specialTissues.put("liver", new TissueInfo("Liver", "left lobe"));
+    specialTissues.put("blood", new TissueInfo("Blood", ""));
+    List<String> tissues = Arrays.asList("liver", "blood", "");
+    List<String> times = Arrays.asList("1 h", "2 h");
+    for (String name : tissues) {
+      factorMap.put(name, new Property("tissue", name, PropertyType.Factor));
+    }
+    for (String name : times) {
+      factorMap.put(name, new Property("time", name, PropertyType.Factor));
+    }
+    extractFactors.add(new ArrayList<String>(tissues));
+    extractFactors.add(new ArrayList<String>(times));
+    techs.add(new TestSampleInformation("DNA", false, 1, null));
+    techs.add(new TestSampleInformation("PROTEINS", true, 2, null));
+    for (int i = 2; i < 5; i++) {
+      experiments.add(new OpenbisExperiment(PROJECT + "E" + i, ExperimentType.Q_SAMPLE_EXTRACTION,
+          -1, null));
+    }
+  }
+
+  private List<AOpenbisSample> entities(int n) {
+    List<AOpenbisSample> res = new ArrayList<AOpenbisSample>();
+    for (int i = 1; i <= n; i++) {
+      String secName = i % 3 == 0 ? null : "mouse " + (i % 7);
+      res.add(new OpenbisBiologicalEntity(PROJECT + "ENTITY-" + i, SPACE, PROJECT + "E1", secName,
+          "", new ArrayList<Property>(), "10090", "", i % 2 == 0 ? "ext" + i : ""));
+    }
+    return res;
+  }
+
+  /**
+   * amounts of extracts by permutation id, as returned by the preview tables
+   */
+  private Map<Object, Integer> amounts(int permutations) {
+    Map<Object, Integer> res = new HashMap<Object, Integer>();
+    for (int id = 4; id <= permutations; id += 11) {
+      res.put(id, id % 3);
+    }
+    return res;
+  }
+
+  private static void set(Object target, String field, Object value) throws Exception {
+    Field f = target.getClass().getDeclaredField(field);
+    f.setAccessible(true);
+    f.set(target, value);
+  }
+
+  private static Object get(Object target, String field) throws Exception {
+    Field f = target.getClass().getDeclaredField(field);
+    f.setAccessible(true);
+    return f.get(target);
+  }
+
+  private WizardDataAggregator aggregator(String firstFreeBarcode) throws Exception {
+    WizardDataAggregator res = new WizardDataAggregator(new HashMap<>(), null, null,
+        new HashMap<String, String>(), tissueMap, new HashMap<String, Integer>());
+    set(res, "spaceCode", SPACE);
+    set(res, "projectCode", PROJECT);
+    set(res, "firstFreeBarcode", firstFreeBarcode);
+    set(res, "experiments", experiments);
+    set(res, "techTypeInfo", techs);
+    set(res, "extractFactors", extractFactors);
+    set(res, "factorMap", factorMap);
+    set(res, "extractReps", 2);
+    set(res, "tissue", "Other");
+    set(res, "specialTissue", "");
+    return res;
+  }
+
+  /**
+   * The aggregator state and sample creation before barcode ranges were filled in parallel
+   */
+  private class SerialDesign {
+    private final WizardDataAggregator aggregator;
+    private String firstFreeBarcode;
+    private String nextBarcode;
+    private char classChar = 'X';
+    private String tissue = "Other";
+    private String specialTissue = "";
+
+    private SerialDesign(WizardDataAggregator aggregator, String firstFreeBarcode) {
+      this.aggregator = aggregator;
+      this.firstFreeBarcode = firstFreeBarcode;
+    }
+
+    private void incrementOrCreateBarcode() {
+      if (nextBarcode == null) {
+        if (firstFreeBarcode.isEmpty()) {
+          classChar = 'A';
+          String base = PROJECT + SampleCodeFunctions.createCountString(1, 3) + classChar;
+          firstFreeBarcode = base + SampleCodeFunctions.checksum(base);
+        }
+        nextBarcode = firstFreeBarcode;
+      } else {
+        nextBarcode = SampleCodeFunctions.incrementSampleCode(nextBarcode);
+      }
+    }
+
+    private void updateClassChar(String secondaryName, Map<String, Character> classChars) {
+      if (classChars.containsKey(secondaryName)) {
+        classChar = classChars.get(secondaryName);
+      } else {
+        classChar = SampleCodeFunctions.incrementUppercase(classChar);
+        classChars.put(secondaryName, classChar);
+      }
+    }
+
+    private List<AOpenbisSample> buildExtracts(List<AOpenbisSample> entities,
+        Map<String, Character> classChars, Map<Object, Integer> map) {
+      int expNum = experiments.size() - techs.size() - 1;
+      List<AOpenbisSample> extracts = new ArrayList<AOpenbisSample>();
+      int permID = 0;
+      for (AOpenbisSample e : entities) {
+        List<List<String>> factorLists = new ArrayList<List<String>>();
+        String secName = e.getQ_SECONDARY_NAME();
+        if (secName == null)
+          secName = "";
+        factorLists.add(new ArrayList<String>(Arrays.asList(secName)));
+        factorLists.addAll(extractFactors);
+        for (String concat : aggregator.generatePermutations(factorLists, false)) {
+          List<String> secondaryNameList = Arrays.asList(concat.split("###"));
+          permID++;
+          List<Property> factors = new ArrayList<Property>();
+          factors.addAll(e.getFactors());
+          for (String name : secondaryNameList)
+            for (String element : name.split(";")) {
+              element = element.trim();
+              if (factorMap.containsKey(element)) {
+                if (!factors.contains(factorMap.get(element)))
+                  factors.add(factorMap.get(element));
+              }
+            }
+          String secondaryName = secondaryNameList.toString().replace(", ", " ; ");
+          secondaryName = secondaryName.substring(1, secondaryName.length() - 1);
+          int defExtrReps = 2;
+          if (map.containsKey(permID))
+            defExtrReps = map.get(permID);
+          for (int i = defExtrReps; i > 0; i--) {
+            for (String factorInstance : secondaryNameList) {
+              if (specialTissues.containsKey(factorInstance)) {
+                TissueInfo info = specialTissues.get(factorInstance);
+                tissue = info.getPrimary();
+                specialTissue = info.getSpecific();
+              }
+            }
+            String tissueCode = tissueMap.get(tissue);
+            updateClassChar(secondaryName, classChars);
+            incrementOrCreateBarcode();
+            extracts.add(new OpenbisBiologicalSample(nextBarcode, SPACE,
+                experiments.get(expNum).getExperimentCode(), secondaryName, "", factors,
+                tissueCode, specialTissue, e.getCode(), e.getQ_EXTERNALDB_ID()));
+          }
+        }
+      }
+      return extracts;
+    }
+
+    private List<List<AOpenbisSample>> buildTestSamples(List<AOpenbisSample> extracts,
+        Map<String, Character> classChars) {
+      List<List<AOpenbisSample>> tests = new ArrayList<>();
+      for (int j = 0; j < techs.size(); j++) {
+        List<AOpenbisSample> techTests = new ArrayList<AOpenbisSample>();
+        int techReps = techs.get(j).getReplicates();
+        String sampleType = techs.get(j).getTechnology();
+        int expNum = experiments.size() - techs.size() + j;
+        for (AOpenbisSample s : extracts) {
+          for (int i = techReps; i > 0; i--) {
+            String secondaryName = s.getQ_SECONDARY_NAME();
+            updateClassChar(secondaryName, classChars);
+            incrementOrCreateBarcode();
+            techTests.add(new OpenbisTestSample(nextBarcode, SPACE,
+                experiments.get(expNum).getExperimentCode(), secondaryName, "", s.getFactors(),
+                sampleType, s.getCode(), s.getQ_EXTERNALDB_ID()));
+          }
+        }
+        tests.add(techTests);
+      }
+      return tests;
+    }
+  }
+
+  private void assertSameSamples(List<AOpenbisSample> expected, List<AOpenbisSample> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      AOpenbisSample e = expected.get(i);
+      AOpenbisSample a = actual.get(i);
+      assertEquals(e.getCode(), a.getCode());
+      assertEquals(e.getValueMap(), a.getValueMap());
+      assertEquals(e.getFactors(), a.getFactors());
+    }
+  }
+
+  private void assertSameDesign(int numEntities, String firstFreeBarcode) throws Exception {
+    List<AOpenbisSample> entities = entities(numEntities);
+    Map<Object, Integer> amounts = amounts(numEntities * 6);
+
+    WizardDataAggregator aggregator = aggregator(firstFreeBarcode);
+    Map<String, Character> classChars = new HashMap<String, Character>();
+    List<AOpenbisSample> extracts =
+        aggregator.buildExtracts(entities, classChars, amounts, true, specialTissues);
+    List<List<AOpenbisSample>> tests = aggregator.buildTestSamples(extracts, classChars);
+
+    SerialDesign serial = new SerialDesign(aggregator(firstFreeBarcode), firstFreeBarcode);
+    Map<String, Character> serialClassChars = new HashMap<String, Character>();
+    List<AOpenbisSample> serialExtracts =
+        serial.buildExtracts(entities, serialClassChars, amounts);
+    List<List<AOpenbisSample>> serialTests =
+        serial.buildTestSamples(serialExtracts, serialClassChars);
+
+    assertSameSamples(serialExtracts, extracts);
+    assertEquals(serialTests.size(), tests.size());
+    for (int i = 0; i < tests.size(); i++) {
+      assertSameSamples(serialTests.get(i), tests.get(i));
+    }
+    assertEquals(serialClassChars, classChars);
+    assertEquals(serial.nextBarcode, get(aggregator, "nextBarcode"));
+    assertEquals(serial.classChar, get(aggregator, "classChar"));
+    assertEquals(serial.tissue, get(aggregator, "tissue"));
+    assertEquals(serial.specialTissue, get(aggregator, "specialTissue"));
+  }
+
+  @Test
+  public void testSmallDesignOfNewProject() throws Exception {
+    assertSameDesign(5, "");
+  }
+
+  @Test
+  public void testLargeDesignIsBuiltInParallelLikeSerially() throws Exception {
+    // more than MIN_SAMPLES_PER_TASK extracts, so they are built in several parallel parts
+    String base = PROJECT + "985X";
+    assertSameDesign(400, base + SampleCodeFunctions.checksum(base));
+  }
+
+}
@@ -0,0 +1,105 @@
+package life.qbic.projectwizard.registration;
+
+import static org.junit.Assert.assertEquals;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+  private static final long TARGET = 1000;
+
+  private AdaptiveBatchSizer sizer() {
+    return new AdaptiveBatchSizer(100, 10, 400, TARGET);
+  }
+
+  @Test
+  public void testFastFullBatchesGrow() {
+    AdaptiveBatchSizer sizer = sizer();
+    sizer.report(100, 100, true);
+    assertEquals(150, sizer.getBatchSize());
+    sizer.report(150, 100, true);
+    assertEquals(225, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testPartialOrMediumBatchesKeepSize() {
+    AdaptiveBatchSizer sizer = sizer();
+    // the last batch of a level is usually smaller
+    sizer.report(30, 100, true);
+    assertEquals(100, sizer.getBatchSize());
+    // between half the target and the target
+    sizer.report(100, 700, true);
+    assertEquals(100, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testSlowBatchesShrinkTowardsTarget() {
+    AdaptiveBatchSizer sizer = sizer();
+    sizer.report(100, 4000, true);
+    assertEquals(25, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testFailedBatchesHalveSize() {
+    AdaptiveBatchSizer sizer = sizer();
+    sizer.report(100, 100, false);
+    assertEquals(50, sizer.getBatchSize());
+    sizer.report(50, 100, false);
+    assertEquals(25, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testNoGrowthAfterRecentFailures() {
+    AdaptiveBatchSizer sizer = sizer();
+    sizer.report(100, 100, false);
+    assertEquals(50, sizer.getBatchSize());
+    // the smoothed failure rate is still too high to grow
+    sizer.report(50, 100, true);
+    assertEquals(50, sizer.getBatchSize());
+    for (int i = 0; i < 10; i++) {
+      sizer.report(sizer.getBatchSize(), 100, true);
+    }
+    assertEquals(400, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testSizesStayWithinBounds() {
+    AdaptiveBatchSizer sizer = sizer();
+    for (int i = 0; i < 20; i++) {
+      sizer.report(sizer.getBatchSize(), 1, true);
+    }
+    assertEquals(400, sizer.getBatchSize());
+    for (int i = 0; i < 20; i++) {
+      sizer.report(sizer.getBatchSize(), 1, false);
+    }
+    assertEquals(10, sizer.getBatchSize());
+    sizer.report(10, 1000000, true);
+    assertEquals(10, sizer.getBatchSize());
+    // the initial size is clamped as well
+    assertEquals(400, new AdaptiveBatchSizer(5000, 10, 400, TARGET).getBatchSize());
+    assertEquals(10, new AdaptiveBatchSizer(1, 10, 400, TARGET).getBatchSize());
+  }
+
+  @Test
+  public void testFixedSizeNeverChanges() {
+    AdaptiveBatchSizer sizer = AdaptiveBatchSizer.fixed(300);
+    sizer.report(300, 1, true);
+    sizer.report(300, 1000000, true);
+    sizer.report(300, 1, false);
+    assertEquals(300, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testListenerIsInformedAboutNextSize() {
+    AdaptiveBatchSizer sizer = sizer();
+    List<Integer> nextSizes = new ArrayList<>();
+    sizer.setMetricsListener((size, millis, success, next) -> nextSizes.add(next));
+    sizer.report(100, 100, true);
+    sizer.report(150, 100, false);
+    assertEquals(2, nextSizes.size());
+    assertEquals(150, (int) nextSizes.get(0));
+    assertEquals(75, (int) nextSizes.get(1));
+  }
+
+}
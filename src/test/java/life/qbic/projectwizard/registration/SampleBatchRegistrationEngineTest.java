@@ -0,0 +1,226 @@
+package life.qbic.projectwizard.registration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.ProgressBar;
+import life.qbic.datamodel.experiments.ExperimentType;
+import life.qbic.datamodel.experiments.OpenbisExperiment;
+import life.qbic.datamodel.persons.OpenbisSpaceUserRole;
+import life.qbic.datamodel.samples.ISampleBean;
+import life.qbic.datamodel.samples.SampleType;
+import life.qbic.datamodel.samples.TSVSampleBean;
+
+public class SampleBatchRegistrationEngineTest {
+
+  /**
+   * Registers sample batches in memory. Batches containing one of the failing codes are rejected,
+   * batches containing one of the throwing codes throw.
+   */
+  private static class FakeCreationController implements IOpenbisCreationController {
+
+    private final Set<String> registered = Collections.synchronizedSet(new HashSet<String>());
+    private final List<String> parentsMissing =
+        Collections.synchronizedList(new ArrayList<String>());
+    private final Set<String> failing = new HashSet<>();
+    private final Set<String> throwing = new HashSet<>();
+
+    @Override
+    public boolean registerSampleBatch(List<ISampleBean> samples) {
+      for (ISampleBean s : samples) {
+        for (String parent : s.getParentIDs()) {
+          if (!registered.contains(parent)) {
+            parentsMissing.add(s.getCode());
+          }
+        }
+        if (throwing.contains(s.getCode())) {
+          throw new IllegalStateException("connection lost");
+        }
+        if (failing.contains(s.getCode())) {
+          return false;
+        }
+      }
+      for (ISampleBean s : samples) {
+        registered.add(s.getCode());
+      }
+      return true;
+    }
+
+    @Override
+    public boolean registerSpace(String name, String description,
+        HashMap<OpenbisSpaceUserRole, ArrayList<String>> userInfo) {
+      return true;
+    }
+
+    @Override
+    public boolean registerProject(String space, String name, String description) {
+      return true;
+    }
+
+    @Override
+    public boolean registerExperiment(String space, String project, ExperimentType expType,
+        String name, Map<String, Object> map) {
+      return true;
+    }
+
+    @Override
+    public boolean registerExperiments(String space, String proj,
+        List<RegisterableExperiment> exps) {
+      return true;
+    }
+
+    @Override
+    public void registerProjectWithExperimentsAndSamplesBatchWise(
+        List<List<ISampleBean>> tsvSampleHierarchy, String description,
+        List<OpenbisExperiment> informativeExperiments, ProgressBar bar, Label info,
+        Runnable ready, Map<String, Map<String, Object>> entitiesToUpdate, boolean isPilot) {}
+
+    @Override
+    public void registerProjectWithExperimentsAndSamplesBatchWise(
+        List<List<ISampleBean>> tsvSampleHierarchy, List<OpenbisExperiment> informativeExperiments,
+        String description, boolean isPilot) {}
+
+    @Override
+    public String getErrors() {
+      return "";
+    }
+
+    @Override
+    public boolean setupEmptyProject(String space, String project, String description) {
+      return true;
+    }
+
+    @Override
+    public void updateExperiment(String expID, Map<String, Object> map) {}
+  }
+
+  private ISampleBean sample(String code, String... parents) {
+    return new TSVSampleBean(code, "QTESTE1", "QTEST", "SPACE", SampleType.Q_BIOLOGICAL_SAMPLE,
+        "", new ArrayList<String>(Arrays.asList(parents)), new HashMap<String, Object>());
+  }
+
+  /**
+   * Three levels: two entities, one extract per entity and one test sample per extract
+   */
+  private List<List<ISampleBean>> hierarchy() {
+    List<List<ISampleBean>> levels = new ArrayList<>();
+    levels.add(Arrays.asList(sample("E1"), sample("E2")));
+    levels.add(Arrays.asList(sample("X1", "E1"), sample("X2", "E2")));
+    levels.add(Arrays.asList(sample("T1", "X1"), sample("T2", "X2")));
+    return levels;
+  }
+
+  @Test
+  public void testParentsAreRegisteredBeforeChildren() {
+    FakeCreationController creator = new FakeCreationController();
+    SampleBatchRegistrationEngine engine = new SampleBatchRegistrationEngine(creator, 4, 1);
+    SampleBatchRegistrationEngine.Result result = engine.register(hierarchy(), null);
+
+    assertTrue(result.isSuccess());
+    assertEquals(6, result.getNumberOfBatches());
+    assertEquals(6, creator.registered.size());
+    assertTrue(creator.parentsMissing.isEmpty());
+  }
+
+  @Test
+  public void testChildrenOfFailedBatchesAreSkipped() {
+    FakeCreationController creator = new FakeCreationController();
+    creator.failing.add("E1");
+    creator.throwing.add("X2");
+    SampleBatchRegistrationEngine engine = new SampleBatchRegistrationEngine(creator, 2, 1);
+    SampleBatchRegistrationEngine.Result result = engine.register(hierarchy(), null);
+
+    assertFalse(result.isSuccess());
+    assertEquals(new HashSet<>(Arrays.asList("E2")), creator.registered);
+    assertEquals(2, result.getFailedBatches().size());
+    // X1 depends on E1, T1 on X1 and T2 on X2
+    assertEquals(3, result.getSkippedBatches().size());
+    assertEquals(2, result.getErrors().size());
+    assertTrue(result.getErrorReport().contains("connection lost"));
+    assertTrue(result.getErrorReport().startsWith(result.getSummary()));
+  }
+
+  @Test
+  public void testWaitingBatchesDoNotBlockIndependentBatches() throws InterruptedException {
+    CountDownLatch independentRegistered = new CountDownLatch(1);
+    FakeCreationController creator = new FakeCreationController() {
+      @Override
+      public boolean registerSampleBatch(List<ISampleBean> samples) {
+        String code = samples.get(0).getCode();
+        try {
+          if (code.equals("E1")
+              && !independentRegistered.await(10, TimeUnit.SECONDS)) {
+            // the independent batch was queued behind the children of E1
+            return false;
+          }
+        } catch (InterruptedException e) {
+          return false;
+        }
+        boolean res = super.registerSampleBatch(samples);
+        if (code.equals("E2")) {
+          independentRegistered.countDown();
+        }
+        return res;
+      }
+    };
+    // E1 is slow, the children of E1 wait for it, E2 has to be sent anyway
+    List<List<ISampleBean>> levels = new ArrayList<>();
+    levels.add(Arrays.asList(sample("E1")));
+    levels.add(Arrays.asList(sample("X1", "E1"), sample("X2", "E1"), sample("X3", "E1")));
+    levels.add(Arrays.asList(sample("E2")));
+    SampleBatchRegistrationEngine engine = new SampleBatchRegistrationEngine(creator, 2, 1);
+    SampleBatchRegistrationEngine.Result result = engine.register(levels, null);
+
+    assertTrue(result.isSuccess());
+    assertEquals(5, creator.registered.size());
+    assertTrue(creator.parentsMissing.isEmpty());
+  }
+
+  @Test
+  public void testInterruptStopsSendingBatches() throws InterruptedException {
+    CountDownLatch firstSent = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    FakeCreationController creator = new FakeCreationController() {
+      @Override
+      public boolean registerSampleBatch(List<ISampleBean> samples) {
+        firstSent.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          return false;
+        }
+        return super.registerSampleBatch(samples);
+      }
+    };
+    SampleBatchRegistrationEngine engine = new SampleBatchRegistrationEngine(creator, 1, 1);
+    SampleBatchRegistrationEngine.Result[] result = new SampleBatchRegistrationEngine.Result[1];
+    Thread registration = new Thread(() -> result[0] = engine.register(hierarchy(), null));
+    registration.start();
+    assertTrue(firstSent.await(10, TimeUnit.SECONDS));
+    // the registering thread waits for the only slot
+    registration.interrupt();
+    release.countDown();
+    registration.join(10000);
+
+    assertFalse(result[0].isSuccess());
+    assertTrue(result[0].isInterrupted());
+    // the batch that was sent is waited for, no other batch is sent
+    assertEquals(new HashSet<>(Arrays.asList("E1")), creator.registered);
+    assertTrue(result[0].getFailedBatches().isEmpty());
+    assertEquals(5, result[0].getSkippedBatches().size());
+    assertEquals(6, result[0].getNumberOfBatches());
+  }
+
+}